@@ -0,0 +1,174 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import android.os.Debug;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the EventJournal class.
+ */
+public class EventJournalTest extends TestCase {
+  private File mDirectory;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mDirectory = new File(System.getProperty("java.io.tmpdir"), "journal-test-" + System.nanoTime());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    File[] files = mDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    mDirectory.delete();
+    super.tearDown();
+  }
+
+  /**
+   * Tests that the records are read back as they were written.
+   */
+  public void testAppendAndReplay() throws IOException {
+    EventJournal journal = new EventJournal(mDirectory);
+    journal.append(PomodoroApi.ListenerAction.START, PomodoroApi.PomodoroState.POMODORO, true, 1500, 1000L, "Work");
+    journal.append(PomodoroApi.ListenerAction.FINISH, PomodoroApi.PomodoroState.LONG_BREAK, false, 0, 2000L, null);
+
+    EventJournal.Reader reader = journal.replay();
+    assertTrue(reader.next());
+    assertEquals(PomodoroApi.ListenerAction.START, reader.getAction());
+    assertEquals(PomodoroApi.PomodoroState.POMODORO, reader.getPhase());
+    assertTrue(reader.getAutoStart());
+    assertEquals(1500, reader.getCurrentTime());
+    assertEquals(1000L, reader.getTime());
+    assertEquals("Work", reader.getProject());
+
+    assertTrue(reader.next());
+    assertEquals(PomodoroApi.ListenerAction.FINISH, reader.getAction());
+    assertEquals(PomodoroApi.PomodoroState.LONG_BREAK, reader.getPhase());
+    assertFalse(reader.getAutoStart());
+    assertEquals(2000L, reader.getTime());
+    assertEquals("", reader.getProject());
+    assertFalse(reader.next());
+  }
+
+  /**
+   * Tests that records go to new segments when they're full and reopening continues after the last record.
+   */
+  public void testRollingAndReopening() throws IOException {
+    EventJournal journal = new EventJournal(mDirectory, 256);
+    for (int i = 0; i < 50; ++i) {
+      journal.append(PomodoroApi.ListenerAction.START, PomodoroApi.PomodoroState.POMODORO, false, i, i, "p" + i);
+    }
+    assertTrue(journal.getSegmentCount() > 1);
+
+    journal = new EventJournal(mDirectory, 256);
+    journal.append(PomodoroApi.ListenerAction.START, PomodoroApi.PomodoroState.POMODORO, false, 50, 50, "p50");
+
+    EventJournal.Reader reader = journal.replay();
+    StringBuilder project = new StringBuilder();
+    for (int i = 0; i <= 50; ++i) {
+      assertTrue(reader.next());
+      assertEquals(i, reader.getCurrentTime());
+      project.setLength(0);
+      reader.appendProject(project);
+      assertEquals("p" + i, project.toString());
+    }
+    assertFalse(reader.next());
+  }
+
+  /**
+   * Tests that a reader created at the offset where another one stopped only reads the records appended since, even
+   * from new segments.
+   */
+  public void testReplayFromOffset() throws IOException {
+    EventJournal journal = new EventJournal(mDirectory, 256);
+    assertFalse(journal.replay(EventJournal.START_OFFSET).next());
+    for (int i = 0; i < 20; ++i) {
+      journal.append(PomodoroApi.ListenerAction.START, PomodoroApi.PomodoroState.POMODORO, false, i, i, "p" + i);
+    }
+    EventJournal.Reader reader = journal.replay();
+    while (reader.next()) {
+    }
+    long offset = reader.getOffset();
+    assertEquals(offset, journal.replay(offset).getOffset());
+    assertFalse(journal.replay(offset).next());
+
+    journal = new EventJournal(mDirectory, 256);
+    for (int i = 20; i < 40; ++i) {
+      journal.append(PomodoroApi.ListenerAction.START, PomodoroApi.PomodoroState.POMODORO, false, i, i, "p" + i);
+    }
+    reader = journal.replay(offset);
+    for (int i = 20; i < 40; ++i) {
+      assertTrue(reader.next());
+      assertEquals(i, reader.getCurrentTime());
+      assertEquals("p" + i, reader.getProject());
+    }
+    assertFalse(reader.next());
+    assertTrue(reader.getOffset() > offset);
+
+    try {
+      journal.replay((long) (journal.getSegmentCount() + 1) << 32);
+      fail("Replayed from a segment that doesn't exist");
+    }
+    catch (IOException e) {
+      // Expected
+    }
+  }
+
+  /**
+   * Tests that appending doesn't allocate.
+   */
+  public void testAppendDoesntAllocate() throws IOException {
+    EventJournal journal = new EventJournal(mDirectory);
+    String project = "Project";
+    for (int i = 0; i < 1000; ++i) {
+      journal.append(PomodoroApi.ListenerAction.START, PomodoroApi.PomodoroState.POMODORO, false, i, i, project);
+    }
+
+    final int appendCount = 10000;
+    Debug.startAllocCounting();
+    Debug.resetThreadAllocCount();
+    for (int i = 0; i < appendCount; ++i) {
+      journal.append(PomodoroApi.ListenerAction.PAUSED, PomodoroApi.PomodoroState.POMODORO, false, i, i, project);
+    }
+    int allocations = Debug.getThreadAllocCount();
+    Debug.stopAllocCounting();
+    // Not 0 because the VM may allocate on its own (e.g. while compiling), but never once per append
+    assertTrue("Allocated " + allocations, allocations < appendCount);
+  }
+
+  /**
+   * Tests that the journal listener records the lifecycle events of a session, but not its ticks.
+   */
+  public void testJournalListener() throws IOException, PomodoroApi.AlreadyRunningException {
+    EventJournal journal = new EventJournal(mDirectory);
+    VirtualTimeScheduler scheduler = new VirtualTimeScheduler(1000000);
+    PomodoroApi api = new PomodoroApi(scheduler, scheduler);
+    api.setCurrentProject("journaled");
+    api.getEventBus().register(new JournalListener(journal));
+    api.subscribeTicks(PomodoroApi.TickGranularity.SECOND);
+
+    api.start();
+    scheduler.advanceBy(PomodoroApi.POMODORO_DURATION + PomodoroApi.SHORT_BREAK_DURATION, TimeUnit.SECONDS);
+
+    PomodoroApi.ListenerAction[] expected = new PomodoroApi.ListenerAction[]{
+        PomodoroApi.ListenerAction.START, PomodoroApi.ListenerAction.END_POMODORO,
+        PomodoroApi.ListenerAction.START_BREAK, PomodoroApi.ListenerAction.FINISH};
+    EventJournal.Reader reader = journal.replay();
+    for (PomodoroApi.ListenerAction action : expected) {
+      assertTrue(reader.next());
+      assertEquals(action, reader.getAction());
+      assertEquals("journaled", reader.getProject());
+    }
+    assertEquals(1000000 + PomodoroApi.POMODORO_DURATION * 1000L + PomodoroApi.SHORT_BREAK_DURATION * 1000L,
+                 reader.getTime());
+    assertFalse(reader.next());
+  }
+}
@@ -0,0 +1,68 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
+
+import java.util.TimeZone;
+
+/**
+ * Tests the LogicalDayClock class.
+ */
+public class LogicalDayClockTest extends TestCase {
+  private static final String       ZONE_ID   = "Europe/London";
+  private static final DateTimeZone JODA_ZONE = DateTimeZone.forID(ZONE_ID);
+  private static final LocalDate    EPOCH     = new LocalDate(1970, 1, 1);
+
+  private static int epochDay(int year, int month, int day) {
+    return Days.daysBetween(EPOCH, new LocalDate(year, month, day)).getDays();
+  }
+
+  private static long millis(int year, int month, int day, int hour, int minute) {
+    return new DateTime(year, month, day, hour, minute, JODA_ZONE).getMillis();
+  }
+
+  /**
+   * Tests that the day changes at 4am and not at midnight.
+   */
+  public void testDayStartsAt4am() {
+    LogicalDayClock clock = new LogicalDayClock(TimeZone.getTimeZone(ZONE_ID), 4);
+    assertEquals(epochDay(2014, 6, 2), clock.getDay(millis(2014, 6, 2, 9, 0)));
+    assertEquals(epochDay(2014, 6, 2), clock.getDay(millis(2014, 6, 3, 0, 30)));
+    assertEquals(epochDay(2014, 6, 2), clock.getDay(millis(2014, 6, 3, 3, 59)));
+    assertEquals(epochDay(2014, 6, 3), clock.getDay(millis(2014, 6, 3, 4, 0)));
+    assertEquals(millis(2014, 6, 4, 4, 0), clock.getNextRollover(millis(2014, 6, 3, 4, 0)));
+  }
+
+  /**
+   * Tests that the rollover stays at 4am local time across DST changes.
+   */
+  public void testDaylightSavingTime() {
+    LogicalDayClock clock = new LogicalDayClock(TimeZone.getTimeZone(ZONE_ID), 4);
+    // London changed the clocks on the morning of 2014-03-30 and 2014-10-26, so the logical days before are 23 and 25
+    // hours long
+    long springStart = millis(2014, 3, 29, 4, 0);
+    assertEquals(epochDay(2014, 3, 29), clock.getDay(springStart));
+    assertEquals(springStart + 23 * 3600000L, clock.getNextRollover(springStart));
+    assertEquals(epochDay(2014, 3, 30), clock.getDay(millis(2014, 3, 30, 4, 0)));
+    long autumnStart = millis(2014, 10, 25, 4, 0);
+    assertEquals(epochDay(2014, 10, 24), clock.getDay(autumnStart - 1));
+    assertEquals(epochDay(2014, 10, 25), clock.getDay(autumnStart));
+    assertEquals(autumnStart + 25 * 3600000L, clock.getNextRollover(autumnStart));
+    assertEquals(epochDay(2014, 10, 26), clock.getDay(millis(2014, 10, 26, 4, 0)));
+  }
+
+  /**
+   * Tests that going back in time still gives the right day.
+   */
+  public void testClockGoesBack() {
+    LogicalDayClock clock = new LogicalDayClock(TimeZone.getTimeZone(ZONE_ID), 4);
+    assertEquals(epochDay(2014, 6, 2), clock.getDay(millis(2014, 6, 2, 12, 0)));
+    assertEquals(epochDay(2014, 6, 1), clock.getDay(millis(2014, 6, 2, 1, 0)));
+    assertEquals(epochDay(1969, 12, 31), clock.getDay(millis(1970, 1, 1, 1, 0)));
+    assertEquals(epochDay(2014, 6, 2), clock.getDay(millis(2014, 6, 2, 12, 0)));
+  }
+}
@@ -16,31 +16,47 @@ import java.util.Set;
 public class MockSharedPreferences implements SharedPreferences {
   public class MockEditor implements Editor {
     private final Map<String, Object> mDataDestination;
+    private final boolean             mCommitFails;
+    private       int                 mChangeCount = 0;
 
-    private MockEditor(Map<String, Object> dataMap) {
+    private MockEditor(Map<String, Object> dataMap, boolean commitFails) {
       mDataDestination = dataMap;
+      mCommitFails = commitFails;
+    }
+
+    /**
+     * @return Number of keys put or removed with this editor.
+     */
+    public int getChangeCount() {
+      return mChangeCount;
     }
 
     @Override
     public Editor putString(String key, String value) {
-      throw new UnsupportedOperationException();
+      ++mChangeCount;
+      mDataDestination.put(key, value);
+      return this;
     }
 
     @Override
     public Editor putStringSet(String key, Set<String> values) {
+      ++mChangeCount;
       mDataDestination.put(key, values);
       return this;
     }
 
     @Override
     public Editor putInt(String key, int value) {
+      ++mChangeCount;
       mDataDestination.put(key, value);
       return this;
     }
 
     @Override
     public Editor putLong(String key, long value) {
-      throw new UnsupportedOperationException();
+      ++mChangeCount;
+      mDataDestination.put(key, value);
+      return this;
     }
 
     @Override
@@ -50,12 +66,16 @@ public class MockSharedPreferences implements SharedPreferences {
 
     @Override
     public Editor putBoolean(String key, boolean value) {
-      throw new UnsupportedOperationException();
+      ++mChangeCount;
+      mDataDestination.put(key, value);
+      return this;
     }
 
     @Override
     public Editor remove(String key) {
-      throw new UnsupportedOperationException();
+      ++mChangeCount;
+      mDataDestination.remove(key);
+      return this;
     }
 
     @Override
@@ -65,7 +85,7 @@ public class MockSharedPreferences implements SharedPreferences {
 
     @Override
     public boolean commit() {
-      return true;
+      return !mCommitFails;
     }
 
     @Override
@@ -73,7 +93,8 @@ public class MockSharedPreferences implements SharedPreferences {
     }
   }
 
-  private Map<String, Object> mDataMap;
+  private          Map<String, Object> mDataMap;
+  private volatile boolean             mCommitFails = false;
 
   protected MockSharedPreferences(final Map<String, Object> dataMap) {
     mDataMap = dataMap;
@@ -98,6 +119,15 @@ public class MockSharedPreferences implements SharedPreferences {
     return new MockSharedPreferences(dataMap);
   }
 
+  /**
+   * Makes the editors created from now on fail to commit, or not. The ones that fail lose what they were given.
+   *
+   * @param commitFails true if they fail.
+   */
+  protected void setCommitFails(boolean commitFails) {
+    mCommitFails = commitFails;
+  }
+
   @Override
   public Map<String, ?> getAll() {
     throw new UnsupportedOperationException();
@@ -105,7 +135,12 @@ public class MockSharedPreferences implements SharedPreferences {
 
   @Override
   public String getString(String key, String defValue) {
-    throw new UnsupportedOperationException();
+    if (mDataMap.containsKey(key)) {
+      return (String) mDataMap.get(key);
+    }
+    else {
+      return defValue;
+    }
   }
 
   @Override
@@ -131,7 +166,12 @@ public class MockSharedPreferences implements SharedPreferences {
 
   @Override
   public long getLong(String key, long defValue) {
-    throw new UnsupportedOperationException();
+    if (mDataMap.containsKey(key)) {
+      return (Long) mDataMap.get(key);
+    }
+    else {
+      return defValue;
+    }
   }
 
   @Override
@@ -141,17 +181,23 @@ public class MockSharedPreferences implements SharedPreferences {
 
   @Override
   public boolean getBoolean(String key, boolean defValue) {
-    throw new UnsupportedOperationException();
+    if (mDataMap.containsKey(key)) {
+      return (Boolean) mDataMap.get(key);
+    }
+    else {
+      return defValue;
+    }
   }
 
   @Override
   public boolean contains(String key) {
-    throw new UnsupportedOperationException();
+    return mDataMap.containsKey(key);
   }
 
   @Override
   public Editor edit() {
-    return new MockEditor(mDataMap);
+    boolean commitFails = mCommitFails;
+    return new MockEditor(commitFails ? new HashMap<String, Object>() : mDataMap, commitFails);
   }
 
   @Override
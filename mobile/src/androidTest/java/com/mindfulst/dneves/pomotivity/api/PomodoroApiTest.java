@@ -2,6 +2,16 @@ package com.mindfulst.dneves.pomotivity.api;
 
 import junit.framework.TestCase;
 
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.joda.time.LocalDateTime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Tests the PomodoroApi class.
  */
@@ -25,4 +35,233 @@ public class PomodoroApiTest extends TestCase {
     api.setCurrentProject("boom");
     assertTrue(api.getAllProjects().contains("boom"));
   }
+
+  /**
+   * Tests that start, pause, resume and stop called from lots of threads at the same time keep the state consistent.
+   * Every pomodoro that started must finish exactly once.
+   */
+  public void testConcurrentTransitions() throws InterruptedException {
+    final PomodoroApi api = new PomodoroApi();
+    final AtomicInteger started = new AtomicInteger(0);
+    final AtomicInteger finished = new AtomicInteger(0);
+    api.setPomodoroListener(new CountingListener() {
+      @Override
+      public void pomodoroStarted(PomodoroApi.PomodoroEvent event) {
+        started.incrementAndGet();
+      }
+
+      @Override
+      public void pomodoroFinished(PomodoroApi.PomodoroEvent event) {
+        finished.incrementAndGet();
+      }
+    });
+
+    final int threadCount = 4;
+    final CountDownLatch done = new CountDownLatch(threadCount);
+    for (int i = 0; i < threadCount; ++i) {
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 1000; ++j) {
+            try {
+              api.start();
+            }
+            catch (PomodoroApi.AlreadyRunningException e) {
+              // Expected, someone else started it
+            }
+            api.pause();
+            api.resume();
+            api.stop();
+          }
+          done.countDown();
+        }
+      }).start();
+    }
+
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    api.stop();
+    assertEquals(PomodoroApi.PomodoroState.NONE, api.getCurrentState());
+    assertFalse(api.isPaused());
+    // Notifications are delivered asynchronously, give them time to arrive
+    for (int i = 0; i < 100 && started.get() != finished.get(); ++i) {
+      Thread.sleep(50);
+    }
+    assertTrue(started.get() > 0);
+    assertEquals(started.get(), finished.get());
+  }
+
+  /**
+   * Tests that pausing keeps the exact time left, no matter how long it stays paused.
+   */
+  public void testPauseResumeKeepsRemainingTime() throws PomodoroApi.AlreadyRunningException {
+    VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+    PomodoroApi api = new PomodoroApi(scheduler, scheduler);
+    api.start();
+    scheduler.advanceBy(10300, TimeUnit.MILLISECONDS);
+    api.pause();
+    scheduler.advanceBy(1, TimeUnit.HOURS);
+    assertEquals(PomodoroApi.POMODORO_DURATION - 10, api.getCurrentTime());
+    api.resume();
+
+    scheduler.advanceBy((PomodoroApi.POMODORO_DURATION * 1000L) - 10300 - 1, TimeUnit.MILLISECONDS);
+    assertEquals(PomodoroApi.PomodoroState.POMODORO, api.getCurrentState());
+    scheduler.advanceBy(1, TimeUnit.MILLISECONDS);
+    assertEquals(PomodoroApi.PomodoroState.SHORT_BREAK, api.getCurrentState());
+  }
+
+  /**
+   * Tests that back to back pomodoros finish exactly on time, so the delays don't add up over many pomodoros.
+   */
+  public void testSimulatedPhasesDontDrift() throws PomodoroApi.AlreadyRunningException {
+    final VirtualTimeScheduler scheduler = new VirtualTimeScheduler(new DateTime(2014, 6, 2, 9, 0).getMillis());
+    final List<Long> finishTimes = new ArrayList<Long>();
+    PomodoroApi api = new PomodoroApi(scheduler, scheduler);
+    api.setAutoStart(true);
+    api.setPomodoroListener(new CountingListener() {
+      @Override
+      public void pomodoroFinished(PomodoroApi.PomodoroEvent event) {
+        finishTimes.add(scheduler.nanoTime());
+      }
+    });
+
+    api.start();
+    scheduler.advanceBy(10, TimeUnit.HOURS);
+    assertTrue(finishTimes.size() > 10);
+    long expected = 0;
+    for (int i = 0; i < finishTimes.size(); ++i) {
+      int breakDuration = (i + 1) % 4 == 0 ? PomodoroApi.LONG_BREAK_DURATION : PomodoroApi.SHORT_BREAK_DURATION;
+      expected += TimeUnit.SECONDS.toNanos(PomodoroApi.POMODORO_DURATION + breakDuration);
+      assertEquals(expected, (long) finishTimes.get(i));
+    }
+  }
+
+  /**
+   * Tests that every fourth pomodoro of the day is followed by a long break.
+   */
+  public void testSimulatedLongBreakCadence() throws PomodoroApi.AlreadyRunningException {
+    VirtualTimeScheduler scheduler = new VirtualTimeScheduler(new DateTime(2014, 6, 2, 9, 0).getMillis());
+    final List<PomodoroApi.PomodoroState> breaks = new ArrayList<PomodoroApi.PomodoroState>();
+    PomodoroApi api = new PomodoroApi(scheduler, scheduler);
+    api.setAutoStart(true);
+    api.setPomodoroListener(new CountingListener() {
+      @Override
+      public void breakStarted(PomodoroApi.PomodoroEvent event) {
+        breaks.add(event.currentState);
+      }
+    });
+
+    api.start();
+    scheduler.advanceBy(8, TimeUnit.HOURS);
+    assertTrue(breaks.size() >= 12);
+    for (int i = 0; i < breaks.size(); ++i) {
+      assertEquals((i + 1) % 4 == 0 ? PomodoroApi.PomodoroState.LONG_BREAK : PomodoroApi.PomodoroState.SHORT_BREAK,
+                   breaks.get(i));
+    }
+  }
+
+  /**
+   * Tests the stats after a whole year of non stop pomodoros, going through every day rollover.
+   */
+  public void testSimulatedYear() throws PomodoroApi.AlreadyRunningException {
+    final VirtualTimeScheduler scheduler = new VirtualTimeScheduler(new DateTime(2014, 1, 1, 9, 0).getMillis());
+    final List<LocalDate> days = new ArrayList<LocalDate>();
+    final int[] lastDayCount = new int[]{0};
+    PomodoroApi api = new PomodoroApi(scheduler, scheduler);
+    api.setAutoStart(true);
+    api.setCurrentProject("simulation");
+    api.setPomodoroListener(new CountingListener() {
+      @Override
+      public void pomodoroEnded(PomodoroApi.PomodoroEvent event) {
+        // Days start at 4am
+        LocalDate today = new LocalDateTime(scheduler.currentTimeMillis()).minusHours(4).toLocalDate();
+        if (days.isEmpty() || !days.get(days.size() - 1).equals(today)) {
+          days.add(today);
+          lastDayCount[0] = 0;
+        }
+        ++lastDayCount[0];
+      }
+    });
+
+    api.start();
+    scheduler.advanceBy(365, TimeUnit.DAYS);
+    api.stop();
+    scheduler.runPending();
+
+    Stats stats = api.getStats();
+    assertEquals(366, days.size());
+    assertEquals(days.size(), stats.totalDays);
+    assertEquals(lastDayCount[0], stats.finishedToday);
+    assertEquals(stats.allTime, (int) stats.getProjects().get("simulation"));
+    StatsHistory history = api.getHistory();
+    assertEquals(stats.allTime, history.getTotal(history.getLatestDay() - 400, history.getLatestDay() + 1));
+    assertEquals(lastDayCount[0], history.getTotal(api.getToday(), api.getToday() + 1));
+    // Roughly one pomodoro every 32 minutes
+    assertTrue(stats.allTime > 16000);
+  }
+
+  /**
+   * Tests that once every second of the phase ticked once, ticks reuse the cached events instead of creating new ones.
+   * <p/>
+   * This only covers the listeners registered directly. The ones registered with an executor get their ticks through
+   * a mailbox, which still allocates a delivery per tick (see PomodoroEventBus).
+   */
+  public void testTicksReuseEvents() throws PomodoroApi.AlreadyRunningException {
+    VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+    PomodoroApi api = new PomodoroApi(scheduler, scheduler);
+    final PomodoroApi.PomodoroEvent[] events = new PomodoroApi.PomodoroEvent[PomodoroApi.POMODORO_DURATION + 1];
+    final List<PomodoroApi.PomodoroEvent> ticks = new ArrayList<PomodoroApi.PomodoroEvent>();
+    api.setPomodoroListener(new CountingListener() {
+      @Override
+      public void pomodoroTicked(PomodoroApi.PomodoroEvent event) {
+        ticks.add(event);
+      }
+    });
+    api.subscribeTicks(PomodoroApi.TickGranularity.SECOND);
+
+    // Warm up with a whole pomodoro, then start over
+    api.start();
+    scheduler.advanceBy(PomodoroApi.POMODORO_DURATION, TimeUnit.SECONDS);
+    for (PomodoroApi.PomodoroEvent event : ticks) {
+      if (event.currentState == PomodoroApi.PomodoroState.POMODORO) {
+        events[event.currentTime] = event;
+      }
+    }
+    api.stop();
+    api.start();
+    scheduler.runPending();
+    ticks.clear();
+
+    scheduler.advanceBy(60, TimeUnit.SECONDS);
+    assertEquals(60, ticks.size());
+    for (PomodoroApi.PomodoroEvent event : ticks) {
+      assertNotNull(events[event.currentTime]);
+      assertSame(events[event.currentTime], event);
+    }
+  }
+
+  /**
+   * Listener that does nothing, override what you need to count.
+   */
+  private static class CountingListener implements PomodoroApi.PomodoroEventListener {
+    @Override
+    public void pomodoroStarted(PomodoroApi.PomodoroEvent event) {}
+
+    @Override
+    public void pomodoroTicked(PomodoroApi.PomodoroEvent event) {}
+
+    @Override
+    public void pomodoroEnded(PomodoroApi.PomodoroEvent event) {}
+
+    @Override
+    public void breakStarted(PomodoroApi.PomodoroEvent event) {}
+
+    @Override
+    public void pomodoroFinished(PomodoroApi.PomodoroEvent event) {}
+
+    @Override
+    public void paused(PomodoroApi.PomodoroEvent event) {}
+
+    @Override
+    public void resumed(PomodoroApi.PomodoroEvent event) {}
+  }
 }
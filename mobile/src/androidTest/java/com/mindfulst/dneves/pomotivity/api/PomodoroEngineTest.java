@@ -0,0 +1,89 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the PomodoroEngine class.
+ */
+public class PomodoroEngineTest extends TestCase {
+  private PomodoroEngine mEngine;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mEngine = new PomodoroEngine(4, new TimingWheelScheduler(1));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mEngine.getScheduler().shutdown();
+    super.tearDown();
+  }
+
+  /**
+   * Tests that getting a session twice returns the same session and different ids return different sessions.
+   */
+  public void testGetOrCreate() {
+    PomodoroApi one = mEngine.getOrCreate("one");
+    assertSame(one, mEngine.getOrCreate("one"));
+    assertSame(one, mEngine.get("one"));
+    assertNotSame(one, mEngine.getOrCreate("two"));
+    assertEquals(2, mEngine.getSessionCount());
+  }
+
+  /**
+   * Tests that creating an existing session throws.
+   */
+  public void testCreateExistingThrows() throws PomodoroEngine.SessionExistsException {
+    mEngine.create("existing");
+    try {
+      mEngine.create("existing");
+      fail("Creating an existing session should've thrown an exception");
+    }
+    catch (PomodoroEngine.SessionExistsException ex) {
+    }
+  }
+
+  /**
+   * Tests that looking up a session that doesn't exist doesn't create it.
+   */
+  public void testGetMissingSession() {
+    assertNull(mEngine.get("missing"));
+    assertEquals(0, mEngine.getSessionCount());
+  }
+
+  /**
+   * Tests that evicting removes and stops the session.
+   */
+  public void testEvict() throws PomodoroApi.AlreadyRunningException {
+    PomodoroApi session = mEngine.getOrCreate("evicted");
+    session.start();
+    assertSame(session, mEngine.evict("evicted"));
+    assertNull(mEngine.get("evicted"));
+    assertNull(mEngine.evict("evicted"));
+    // Must have stopped, otherwise this would throw
+    session.start();
+    session.stop();
+  }
+
+  /**
+   * Tests that the occupancy of all shards adds up to the number of sessions.
+   */
+  public void testShardOccupancy() {
+    final int sessionCount = 1000;
+    for (int i = 0; i < sessionCount; ++i) {
+      mEngine.getOrCreate("user" + i);
+    }
+
+    int[] occupancy = mEngine.getShardOccupancy();
+    assertEquals(4, occupancy.length);
+    int total = 0;
+    for (int shardCount : occupancy) {
+      // Not a strict distribution test, just checks no shard is left empty
+      assertTrue(shardCount > 0);
+      total += shardCount;
+    }
+    assertEquals(sessionCount, total);
+    assertEquals(sessionCount, mEngine.getSessionCount());
+  }
+}
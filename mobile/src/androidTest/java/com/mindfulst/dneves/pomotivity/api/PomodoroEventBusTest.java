@@ -0,0 +1,309 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the PomodoroEventBus class.
+ */
+public class PomodoroEventBusTest extends TestCase {
+  private VirtualTimeScheduler mScheduler;
+  private PomodoroApi          mApi;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mScheduler = new VirtualTimeScheduler();
+    mApi = new PomodoroApi(mScheduler, mScheduler);
+  }
+
+  /**
+   * Tests that all listeners get all events, in order.
+   */
+  public void testAllListenersGetEvents() throws PomodoroApi.AlreadyRunningException {
+    RecordingListener first = new RecordingListener();
+    RecordingListener second = new RecordingListener();
+    mApi.setPomodoroListener(first);
+    mApi.getEventBus().register(second);
+    assertEquals(2, mApi.getEventBus().getListenerCount());
+
+    mApi.start();
+    mApi.pause();
+    mApi.resume();
+    mApi.stop();
+    mScheduler.runPending();
+
+    assertEquals("start,paused,resumed,finish", first.toString());
+    assertEquals(first.toString(), second.toString());
+  }
+
+  /**
+   * Tests that replacing the listener unregisters the previous one.
+   */
+  public void testSetListenerReplaces() throws PomodoroApi.AlreadyRunningException {
+    RecordingListener first = new RecordingListener();
+    RecordingListener second = new RecordingListener();
+    mApi.setPomodoroListener(first);
+    mApi.setPomodoroListener(second);
+    assertEquals(1, mApi.getEventBus().getListenerCount());
+
+    mApi.start();
+    mScheduler.runPending();
+    assertEquals("", first.toString());
+    assertEquals("start", second.toString());
+
+    mApi.setPomodoroListener(null);
+    assertEquals(0, mApi.getEventBus().getListenerCount());
+  }
+
+  /**
+   * Tests that exceptions are counted per listener and don't stop the other listeners.
+   */
+  public void testExceptionsCounted() throws PomodoroApi.AlreadyRunningException {
+    RecordingListener recording = new RecordingListener();
+    PomodoroEventBus.Registration throwing = mApi.getEventBus().register(new RecordingListener() {
+      @Override
+      public void pomodoroStarted(PomodoroApi.PomodoroEvent event) {
+        throw new IllegalStateException("Boom");
+      }
+    });
+    PomodoroEventBus.Registration registration = mApi.getEventBus().register(recording);
+
+    mApi.start();
+    mApi.stop();
+    mScheduler.runPending();
+
+    assertEquals(2, throwing.getDeliveredCount());
+    assertEquals(1, throwing.getExceptionCount());
+    assertEquals(2, registration.getDeliveredCount());
+    assertEquals(0, registration.getExceptionCount());
+    assertEquals("start,finish", recording.toString());
+  }
+
+  /**
+   * Tests that a listener on its own executor doesn't hold up the others, and still gets its events in order.
+   */
+  public void testSlowListenerDoesntBlockOthers() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    RecordingListener slow = new RecordingListener() {
+      @Override
+      public void pomodoroStarted(PomodoroApi.PomodoroEvent event) {
+        try {
+          release.await();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        super.pomodoroStarted(event);
+      }
+    };
+    RecordingListener fast = new RecordingListener();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      PomodoroEventBus.Registration slowRegistration = mApi.getEventBus().register(slow, executor);
+      mApi.getEventBus().register(fast);
+
+      mApi.start();
+      mApi.stop();
+      mScheduler.runPending();
+      assertEquals("start,finish", fast.toString());
+      assertEquals("", slow.toString());
+
+      release.countDown();
+      for (int i = 0; i < 100 && slowRegistration.getDeliveredCount() < 2; ++i) {
+        Thread.sleep(10);
+      }
+      assertEquals("start,finish", slow.toString());
+      assertEquals(0, slowRegistration.getPendingCount());
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Tests that the latency includes the time waiting in the mailbox.
+   */
+  public void testLatency() throws PomodoroApi.AlreadyRunningException {
+    final List<Runnable> pending = new ArrayList<Runnable>();
+    PomodoroEventBus.Registration registration = mApi.getEventBus().register(new RecordingListener(),
+        new Executor() {
+          @Override
+          public void execute(Runnable task) {
+            pending.add(task);
+          }
+        });
+
+    mApi.start();
+    mScheduler.runPending();
+    assertEquals(1, registration.getPendingCount());
+    mScheduler.advanceBy(3, TimeUnit.SECONDS);
+    pending.remove(0).run();
+
+    assertEquals(1, registration.getDeliveredCount());
+    assertEquals(TimeUnit.SECONDS.toNanos(3), registration.getMaxLatencyNanos());
+    assertEquals(TimeUnit.SECONDS.toNanos(3), registration.getAverageLatencyNanos());
+  }
+
+  /**
+   * Tests that nothing is delivered after unregistering, even events already in the mailbox.
+   */
+  public void testUnregister() throws PomodoroApi.AlreadyRunningException {
+    final List<Runnable> pending = new ArrayList<Runnable>();
+    RecordingListener listener = new RecordingListener();
+    PomodoroEventBus.Registration registration = mApi.getEventBus().register(listener,
+        new Executor() {
+          @Override
+          public void execute(Runnable task) {
+            pending.add(task);
+          }
+        });
+
+    mApi.start();
+    mScheduler.runPending();
+    registration.unregister();
+    registration.unregister();
+    assertFalse(registration.isRegistered());
+    assertEquals(0, mApi.getEventBus().getListenerCount());
+    pending.remove(0).run();
+    assertEquals("", listener.toString());
+  }
+
+  /**
+   * Tests that ticks waiting in a mailbox are coalesced and dropped by lifecycle events, which are all delivered.
+   */
+  public void testTicksCoalesced() throws PomodoroApi.AlreadyRunningException {
+    final List<Runnable> pending = new ArrayList<Runnable>();
+    final int[] lastTick = new int[]{0};
+    RecordingListener listener = new RecordingListener() {
+      @Override
+      public void pomodoroTicked(PomodoroApi.PomodoroEvent event) {
+        super.pomodoroTicked(event);
+        lastTick[0] = event.currentTime;
+      }
+    };
+    PomodoroEventBus.Registration registration = mApi.getEventBus().register(listener, new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        pending.add(task);
+      }
+    });
+
+    mApi.start();
+    mApi.subscribeTicks(PomodoroApi.TickGranularity.SECOND);
+    // The tick sent when subscribing and one every second after
+    mScheduler.advanceBy(10, TimeUnit.SECONDS);
+    assertEquals(2, registration.getPendingCount());
+    assertEquals(10, registration.getCoalescedTickCount());
+
+    mApi.pause();
+    mScheduler.runPending();
+    assertEquals(1, registration.getDroppedTickCount());
+    pending.remove(0).run();
+    assertEquals("start,paused", listener.toString());
+
+    mApi.resume();
+    mScheduler.advanceBy(3, TimeUnit.SECONDS);
+    pending.remove(0).run();
+    assertEquals("start,paused,resumed,tick", listener.toString());
+    assertEquals(PomodoroApi.POMODORO_DURATION - 13, lastTick[0]);
+    assertEquals(0, registration.getPendingCount());
+    assertTrue(pending.isEmpty());
+  }
+
+  /**
+   * Tests that a listener whose executor is stuck is unregistered once its mailbox is full, the others carry on.
+   */
+  public void testMailboxOverflow() throws PomodoroApi.AlreadyRunningException {
+    final List<Runnable> pending = new ArrayList<Runnable>();
+    RecordingListener stuck = new RecordingListener();
+    RecordingListener other = new RecordingListener();
+    PomodoroEventBus.Registration registration = mApi.getEventBus().register(stuck, new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        pending.add(task);
+      }
+    }, 2);
+    mApi.getEventBus().register(other);
+
+    mApi.start();
+    mApi.pause();
+    mScheduler.runPending();
+    assertTrue(registration.isRegistered());
+    assertEquals(0, registration.getOverflowCount());
+
+    mApi.resume();
+    mScheduler.runPending();
+    assertFalse(registration.isRegistered());
+    assertEquals(1, registration.getOverflowCount());
+    assertEquals(0, registration.getPendingCount());
+    assertEquals("start,paused,resumed", other.toString());
+
+    mApi.stop();
+    mScheduler.runPending();
+    assertEquals(1, registration.getOverflowCount());
+    pending.remove(0).run();
+    assertEquals("", stuck.toString());
+  }
+
+  /**
+   * Records the events it gets, toString() lists them.
+   */
+  private static class RecordingListener implements PomodoroApi.PomodoroEventListener {
+    private final StringBuffer mEvents = new StringBuffer();
+
+    private void record(String event) {
+      if (mEvents.length() > 0) {
+        mEvents.append(',');
+      }
+      mEvents.append(event);
+    }
+
+    @Override
+    public void pomodoroStarted(PomodoroApi.PomodoroEvent event) {
+      record("start");
+    }
+
+    @Override
+    public void pomodoroTicked(PomodoroApi.PomodoroEvent event) {
+      record("tick");
+    }
+
+    @Override
+    public void pomodoroEnded(PomodoroApi.PomodoroEvent event) {
+      record("end");
+    }
+
+    @Override
+    public void breakStarted(PomodoroApi.PomodoroEvent event) {
+      record("break");
+    }
+
+    @Override
+    public void pomodoroFinished(PomodoroApi.PomodoroEvent event) {
+      record("finish");
+    }
+
+    @Override
+    public void paused(PomodoroApi.PomodoroEvent event) {
+      record("paused");
+    }
+
+    @Override
+    public void resumed(PomodoroApi.PomodoroEvent event) {
+      record("resumed");
+    }
+
+    @Override
+    public String toString() {
+      return mEvents.toString();
+    }
+  }
+}
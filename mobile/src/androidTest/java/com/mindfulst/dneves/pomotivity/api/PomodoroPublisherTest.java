@@ -0,0 +1,235 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import junit.framework.TestCase;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the PomodoroPublisher class.
+ */
+public class PomodoroPublisherTest extends TestCase {
+  private VirtualTimeScheduler mScheduler;
+  private PomodoroApi          mApi;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mScheduler = new VirtualTimeScheduler();
+    mApi = new PomodoroApi(mScheduler, mScheduler);
+  }
+
+  /**
+   * Tests that nothing is delivered until requested, and then only as many as requested, in order.
+   */
+  public void testDemand() throws PomodoroApi.AlreadyRunningException {
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    new PomodoroPublisher(mApi, mScheduler).subscribe(subscriber);
+    assertNotNull(subscriber.mSubscription);
+
+    mApi.start();
+    mApi.pause();
+    mApi.resume();
+    mScheduler.runPending();
+    assertEquals("", subscriber.toString());
+
+    subscriber.mSubscription.request(2);
+    assertEquals("", subscriber.toString());
+    mScheduler.runPending();
+    assertEquals("START,PAUSED", subscriber.toString());
+    subscriber.mSubscription.request(Long.MAX_VALUE);
+    mScheduler.runPending();
+    assertEquals("START,PAUSED,RESUMED", subscriber.toString());
+    mApi.stop();
+    mScheduler.runPending();
+    assertEquals("START,PAUSED,RESUMED,FINISH", subscriber.toString());
+  }
+
+  /**
+   * Tests that only the latest tick waits for demand and a lifecycle event drops it.
+   */
+  public void testTicksCoalesced() throws PomodoroApi.AlreadyRunningException {
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    new PomodoroPublisher(mApi, mScheduler).subscribe(subscriber);
+
+    mApi.start();
+    mScheduler.advanceBy(10, TimeUnit.SECONDS);
+    subscriber.mSubscription.request(10);
+    mScheduler.runPending();
+    assertEquals("START,TICK", subscriber.toString());
+    assertEquals(PomodoroApi.POMODORO_DURATION - 10, subscriber.mEvents.get(1).currentTime);
+
+    subscriber.mSubscription.request(10);
+    mScheduler.advanceBy(5, TimeUnit.SECONDS);
+    assertEquals(7, subscriber.mEvents.size());
+  }
+
+  /**
+   * Tests the views without ticks and with throttled ticks.
+   */
+  public void testViews() throws PomodoroApi.AlreadyRunningException {
+    RecordingSubscriber phases = new RecordingSubscriber();
+    RecordingSubscriber throttled = new RecordingSubscriber();
+    PomodoroPublisher publisher = new PomodoroPublisher(mApi, mScheduler);
+    publisher.phasesOnly().subscribe(phases);
+    publisher.throttleTicks(60).subscribe(throttled);
+    phases.mSubscription.request(Long.MAX_VALUE);
+    throttled.mSubscription.request(Long.MAX_VALUE);
+
+    mApi.start();
+    mScheduler.advanceBy(PomodoroApi.POMODORO_DURATION, TimeUnit.SECONDS);
+    assertEquals("START,END_POMODORO,START_BREAK", phases.toString());
+
+    int ticks = 0;
+    int lastTick = -1;
+    for (PomodoroApi.PomodoroEvent event : throttled.mEvents) {
+      if (event.action == PomodoroApi.ListenerAction.TICK) {
+        ++ticks;
+        assertTrue(lastTick < 0 || lastTick - event.currentTime >= 60);
+        lastTick = event.currentTime;
+      }
+    }
+    // Ticked every whole minute left, the last minute ends with END_POMODORO instead
+    assertEquals(PomodoroApi.POMODORO_DURATION / 60 - 1, ticks);
+  }
+
+  /**
+   * Tests that a subscriber that falls too far behind gets an error and is unregistered.
+   */
+  public void testBufferOverflow() throws PomodoroApi.AlreadyRunningException {
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    new PomodoroPublisher(mApi, mScheduler).withBufferSize(3).subscribe(subscriber);
+    assertEquals(1, mApi.getEventBus().getListenerCount());
+
+    mApi.start();
+    mApi.pause();
+    mApi.resume();
+    mApi.pause();
+    mScheduler.runPending();
+
+    assertTrue(subscriber.mError instanceof IllegalStateException);
+    assertEquals(0, mApi.getEventBus().getListenerCount());
+  }
+
+  /**
+   * Tests that requesting a non positive number of events is an error and cancelling stops the events.
+   */
+  public void testInvalidRequestAndCancel() throws PomodoroApi.AlreadyRunningException {
+    RecordingSubscriber invalid = new RecordingSubscriber();
+    RecordingSubscriber cancelled = new RecordingSubscriber();
+    PomodoroPublisher publisher = new PomodoroPublisher(mApi, mScheduler);
+    publisher.subscribe(invalid);
+    publisher.subscribe(cancelled);
+
+    invalid.mSubscription.request(0);
+    mScheduler.runPending();
+    assertTrue(invalid.mError instanceof IllegalArgumentException);
+    cancelled.mSubscription.request(10);
+    cancelled.mSubscription.cancel();
+    assertEquals(0, mApi.getEventBus().getListenerCount());
+
+    mApi.start();
+    mScheduler.runPending();
+    assertEquals("", cancelled.toString());
+  }
+
+  /**
+   * Tests that the session only ticks while there are subscriptions that want ticks.
+   */
+  public void testTickSubscription() throws PomodoroApi.AlreadyRunningException {
+    final int[] ticks = new int[]{0};
+    mApi.getEventBus().register(new PomodoroApi.PomodoroEventListener() {
+      @Override
+      public void pomodoroStarted(PomodoroApi.PomodoroEvent event) {
+      }
+
+      @Override
+      public void pomodoroTicked(PomodoroApi.PomodoroEvent event) {
+        ++ticks[0];
+      }
+
+      @Override
+      public void pomodoroEnded(PomodoroApi.PomodoroEvent event) {
+      }
+
+      @Override
+      public void breakStarted(PomodoroApi.PomodoroEvent event) {
+      }
+
+      @Override
+      public void pomodoroFinished(PomodoroApi.PomodoroEvent event) {
+      }
+
+      @Override
+      public void paused(PomodoroApi.PomodoroEvent event) {
+      }
+
+      @Override
+      public void resumed(PomodoroApi.PomodoroEvent event) {
+      }
+    });
+    RecordingSubscriber phases = new RecordingSubscriber();
+    RecordingSubscriber all = new RecordingSubscriber();
+    PomodoroPublisher publisher = new PomodoroPublisher(mApi, mScheduler);
+    publisher.phasesOnly().subscribe(phases);
+
+    mApi.start();
+    mScheduler.advanceBy(10, TimeUnit.SECONDS);
+    assertEquals(0, ticks[0]);
+
+    publisher.subscribe(all);
+    all.mSubscription.request(Long.MAX_VALUE);
+    mScheduler.advanceBy(10, TimeUnit.SECONDS);
+    assertEquals(11, ticks[0]);
+    assertEquals(11, all.mEvents.size());
+
+    all.mSubscription.cancel();
+    mScheduler.advanceBy(10, TimeUnit.SECONDS);
+    assertEquals(11, ticks[0]);
+  }
+
+  /**
+   * Records the events it gets, toString() lists their actions.
+   */
+  private static class RecordingSubscriber implements Subscriber<PomodoroApi.PomodoroEvent> {
+    private final List<PomodoroApi.PomodoroEvent> mEvents       = new ArrayList<PomodoroApi.PomodoroEvent>();
+    private       Subscription                    mSubscription = null;
+    private       Throwable                       mError        = null;
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+      mSubscription = subscription;
+    }
+
+    @Override
+    public void onNext(PomodoroApi.PomodoroEvent event) {
+      mEvents.add(event);
+    }
+
+    @Override
+    public void onError(Throwable error) {
+      mError = error;
+    }
+
+    @Override
+    public void onComplete() {
+      fail("The stream should never complete");
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder builder = new StringBuilder();
+      for (PomodoroApi.PomodoroEvent event : mEvents) {
+        if (builder.length() > 0) {
+          builder.append(',');
+        }
+        builder.append(event.action);
+      }
+      return builder.toString();
+    }
+  }
+}
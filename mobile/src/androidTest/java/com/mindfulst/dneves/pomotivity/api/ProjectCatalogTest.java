@@ -0,0 +1,66 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests the ProjectCatalog class.
+ */
+public class ProjectCatalogTest extends TestCase {
+  /**
+   * Tests that names are case insensitive and keep the name they were added with.
+   */
+  public void testCaseInsensitive() {
+    ProjectCatalog catalog = ProjectCatalog.of(Arrays.asList("Pomotivity", "pomotivity", "", null, "Garden"));
+    assertEquals(2, catalog.size());
+    assertTrue(catalog.contains("POMOTIVITY"));
+    assertEquals("Pomotivity", catalog.getName("pOmOtIvItY"));
+    assertNull(catalog.getName("Kitchen"));
+    assertEquals(-1, catalog.indexOf("Kitchen"));
+    assertSame(catalog, catalog.with("GARDEN"));
+  }
+
+  /**
+   * Tests that names are kept sorted when adding projects, and the old catalog doesn't change.
+   */
+  public void testWithKeepsOrder() {
+    ProjectCatalog catalog = ProjectCatalog.EMPTY.with("banana").with("Cherry").with("apple");
+    assertEquals(Arrays.asList("apple", "banana", "Cherry"), catalog.getNames());
+    for (int i = 0; i < catalog.size(); ++i) {
+      assertEquals(i, catalog.indexOf(catalog.getNames().get(i)));
+    }
+
+    ProjectCatalog next = catalog.with("Blueberry");
+    assertEquals(Arrays.asList("apple", "banana", "Blueberry", "Cherry"), next.getNames());
+    assertEquals(3, catalog.size());
+    assertFalse(catalog.contains("blueberry"));
+  }
+
+  /**
+   * Tests the prefix search.
+   */
+  public void testNamesWithPrefix() {
+    ProjectCatalog catalog = ProjectCatalog.of(Arrays.asList("Work", "workout", "Writing", "Word", "w", "Zzz"));
+    assertEquals(Arrays.asList("Word", "Work", "workout"), catalog.getNamesWithPrefix("WOR"));
+    assertEquals(Arrays.asList("Work", "workout"), catalog.getNamesWithPrefix("work"));
+    assertEquals(5, catalog.getNamesWithPrefix("w").size());
+    assertEquals(0, catalog.getNamesWithPrefix("a").size());
+    assertEquals(0, catalog.getNamesWithPrefix("zzzz").size());
+    assertEquals(catalog.getNames(), catalog.getNamesWithPrefix(""));
+  }
+
+  /**
+   * Tests that the lists can't be changed.
+   */
+  public void testNamesCantChange() {
+    List<String> names = ProjectCatalog.of(Arrays.asList("Work")).getNames();
+    try {
+      names.add("Play");
+      fail("Changing the names of a catalog should've thrown an exception");
+    }
+    catch (UnsupportedOperationException ex) {
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests the ProjectCounters class.
+ */
+public class ProjectCountersTest extends TestCase {
+  /**
+   * Tests that it behaves like a HashMap with lots of projects.
+   */
+  public void testMatchesHashMap() {
+    Random random = new Random(42);
+    Map<String, Integer> expected = new HashMap<String, Integer>();
+    ProjectCounters counters = ProjectCounters.create();
+    for (int i = 0; i < 20000; ++i) {
+      String project = "project " + random.nextInt(5000);
+      int count = random.nextInt(1000);
+      expected.put(project, count);
+      counters = counters.put(project, count);
+    }
+    assertEquals(expected.size(), counters.size());
+    for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+      assertEquals((int) entry.getValue(), counters.get(entry.getKey(), -1));
+    }
+    assertEquals(expected, counters.asMap());
+    assertEquals(expected.entrySet(), counters.asMap().entrySet());
+    assertFalse(counters.contains("project 5000"));
+  }
+
+  /**
+   * Tests that old counters don't change, even when the newer ones intern more projects.
+   */
+  public void testOldCountersDontChange() {
+    ProjectCounters first = ProjectCounters.create().put("one", 1).put("two", 2);
+    ProjectCounters second = first.put("one", 10).put("three", 3);
+    assertEquals(2, first.size());
+    assertEquals(1, first.get("one", -1));
+    assertFalse(first.contains("three"));
+    assertEquals(-1, first.get("three", -1));
+    assertFalse(first.asMap().containsKey("three"));
+    assertEquals(3, second.size());
+    assertEquals(10, second.get("one", -1));
+    assertEquals(2, second.get("two", -1));
+    assertSame(second, second.put("two", 2));
+  }
+
+  /**
+   * Tests that projects interned by counters that were dropped leave no trace in the others.
+   */
+  public void testGapsAreSkipped() {
+    ProjectCounters base = ProjectCounters.create().put("kept", 1);
+    for (int i = 0; i < 100; ++i) {
+      base.put("dropped " + i, i);
+    }
+    ProjectCounters counters = base.put("last", 7);
+    assertEquals(2, counters.size());
+    assertEquals(2, new HashMap<String, Integer>(counters.asMap()).size());
+
+    final List<String> visited = new ArrayList<String>();
+    counters.forEach(new Stats.ProjectVisitor() {
+      @Override
+      public void visit(String project, int count) {
+        visited.add(project + "," + count);
+      }
+    });
+    assertEquals(2, visited.size());
+    assertEquals("kept,1", visited.get(0));
+    assertEquals("last,7", visited.get(1));
+  }
+}
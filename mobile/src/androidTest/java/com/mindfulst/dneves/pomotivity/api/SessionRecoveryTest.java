@@ -0,0 +1,254 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.InstrumentationTestCase;
+
+import org.joda.time.DateTime;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that a running session carries on after the process is gone, from its checkpoint.
+ */
+public class SessionRecoveryTest extends InstrumentationTestCase {
+  private static final long START = new DateTime(2014, 6, 2, 9, 0).getMillis();
+
+  private Context           mContext;
+  private SharedPreferences mPrefs;
+  // Events of the restored session
+  private StringBuilder     mEvents;
+  // Wall clock times of those events
+  private List<Long>        mTimes;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mContext = getInstrumentation().getTargetContext();
+    new File(mContext.getFilesDir(), "stats.bin").delete();
+    mPrefs = MockSharedPreferences.createEmpty();
+    mEvents = new StringBuilder();
+    mTimes = new ArrayList<Long>();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    new File(mContext.getFilesDir(), "stats.bin").delete();
+    super.tearDown();
+  }
+
+  /**
+   * Tests that a pomodoro continues with the time it had left.
+   */
+  public void testRunningPomodoroRestored() throws PomodoroApi.AlreadyRunningException, IOException {
+    VirtualTimeScheduler scheduler = startAndSave(10);
+
+    // Killed for 2 minutes
+    PomodoroApi restored = load(after(scheduler, 2));
+    assertEquals(PomodoroApi.PomodoroState.POMODORO, restored.getCurrentState());
+    assertEquals(PomodoroApi.POMODORO_DURATION - 12 * 60, restored.getCurrentTime());
+    assertEquals(0, restored.getStats().allTime);
+    assertEquals("START " + (PomodoroApi.POMODORO_DURATION - 12 * 60), mEvents.toString());
+  }
+
+  /**
+   * Tests that loading doesn't restore the session until asked to, so the listeners can be registered before.
+   */
+  public void testRestoredOnlyWhenAsked() throws PomodoroApi.AlreadyRunningException, IOException {
+    VirtualTimeScheduler scheduler = startAndSave(10);
+
+    VirtualTimeScheduler restoredScheduler = after(scheduler, 17);
+    PomodoroApi restored = new PomodoroApi(restoredScheduler, restoredScheduler);
+    restored.load(mContext, mPrefs);
+    restoredScheduler.runPending();
+    assertEquals(PomodoroApi.PomodoroState.NONE, restored.getCurrentState());
+    assertEquals(0, restored.getStats().allTime);
+
+    restored.restoreSession();
+    assertEquals(PomodoroApi.PomodoroState.SHORT_BREAK, restored.getCurrentState());
+    restored.restoreSession();
+    assertEquals(1, restored.getStats().allTime);
+  }
+
+  /**
+   * Tests that a pomodoro caught up by a restore that doesn't happen (a session was started before it) isn't counted.
+   */
+  public void testNotCountedWhenNotRestored() throws PomodoroApi.AlreadyRunningException, IOException {
+    VirtualTimeScheduler scheduler = startAndSave(10);
+
+    VirtualTimeScheduler restoredScheduler = after(scheduler, 17);
+    PomodoroApi restored = new PomodoroApi(restoredScheduler, restoredScheduler);
+    restored.load(mContext, mPrefs);
+    restored.start();
+    restored.restoreSession();
+    restoredScheduler.runPending();
+    assertEquals(PomodoroApi.PomodoroState.POMODORO, restored.getCurrentState());
+    assertEquals(PomodoroApi.POMODORO_DURATION, restored.getCurrentTime());
+    assertEquals(0, restored.getStats().allTime);
+  }
+
+  /**
+   * Tests that a pomodoro that ended while the process was gone is counted and its break continues.
+   */
+  public void testEndedPomodoroCounted() throws PomodoroApi.AlreadyRunningException, IOException {
+    VirtualTimeScheduler scheduler = startAndSave(10);
+
+    VirtualTimeScheduler restoredScheduler = after(scheduler, 17);
+    PomodoroApi restored = load(restoredScheduler);
+    assertEquals(PomodoroApi.PomodoroState.SHORT_BREAK, restored.getCurrentState());
+    assertEquals(PomodoroApi.SHORT_BREAK_DURATION - 2 * 60, restored.getCurrentTime());
+    assertEquals(1, restored.getStats().allTime);
+    assertEquals(1, restored.getStats().getProjectCount("Work"));
+    // The pomodoro that ended is published like any other
+    assertEquals("END_POMODORO 0,START_BREAK " + (PomodoroApi.SHORT_BREAK_DURATION - 2 * 60), mEvents.toString());
+
+    // The restored session goes on as usual
+    restoredScheduler.advanceBy(3, TimeUnit.MINUTES);
+    assertEquals(PomodoroApi.PomodoroState.NONE, restored.getCurrentState());
+    assertTrue(mEvents.toString().endsWith(",FINISH 0"));
+  }
+
+  /**
+   * Tests that a session whose break also ended is just counted, without auto starting another one.
+   */
+  public void testEndedSessionFinished() throws PomodoroApi.AlreadyRunningException, IOException {
+    VirtualTimeScheduler scheduler = startAndSave(10);
+
+    PomodoroApi restored = load(after(scheduler, 60));
+    assertEquals(PomodoroApi.PomodoroState.NONE, restored.getCurrentState());
+    assertEquals(1, restored.getStats().allTime);
+    assertEquals("END_POMODORO 0,START_BREAK " + PomodoroApi.SHORT_BREAK_DURATION + ",FINISH 0", mEvents.toString());
+    // When they happened, not when the process came back
+    long pomodoroEnd = START + PomodoroApi.POMODORO_DURATION * 1000L;
+    assertEquals(pomodoroEnd, (long) mTimes.get(0));
+    assertEquals(pomodoroEnd, (long) mTimes.get(1));
+    assertEquals(pomodoroEnd + PomodoroApi.SHORT_BREAK_DURATION * 1000L, (long) mTimes.get(2));
+  }
+
+  /**
+   * Tests that the current project is counted even when the stats it was in were lost, and the session carries on.
+   */
+  public void testCurrentProjectOfLostStats() throws PomodoroApi.AlreadyRunningException, IOException {
+    VirtualTimeScheduler scheduler = startAndSave(10);
+    assertTrue(new File(mContext.getFilesDir(), "stats.bin").delete());
+
+    VirtualTimeScheduler restoredScheduler = after(scheduler, 2);
+    PomodoroApi restored = load(restoredScheduler);
+    restoredScheduler.advanceBy(13, TimeUnit.MINUTES);
+    assertEquals(PomodoroApi.PomodoroState.SHORT_BREAK, restored.getCurrentState());
+    assertEquals(1, restored.getStats().getProjectCount("Work"));
+    restoredScheduler.advanceBy(PomodoroApi.SHORT_BREAK_DURATION, TimeUnit.SECONDS);
+    assertEquals(PomodoroApi.PomodoroState.NONE, restored.getCurrentState());
+    assertTrue(mEvents.toString().endsWith(",END_POMODORO 0,START_BREAK " + PomodoroApi.SHORT_BREAK_DURATION +
+                                           ",FINISH 0"));
+  }
+
+  /**
+   * Tests that a paused session keeps its exact time left, no matter how long the process was gone.
+   */
+  public void testPausedSessionRestored() throws PomodoroApi.AlreadyRunningException, IOException {
+    VirtualTimeScheduler scheduler = new VirtualTimeScheduler(START);
+    PomodoroApi api = new PomodoroApi(scheduler, scheduler);
+    api.load(mContext, mPrefs);
+    api.start();
+    scheduler.advanceBy(90500, TimeUnit.MILLISECONDS);
+    api.pause();
+    save(api);
+
+    VirtualTimeScheduler restoredScheduler = after(scheduler, 600);
+    PomodoroApi restored = load(restoredScheduler);
+    assertTrue(restored.isPaused());
+    int remaining = PomodoroApi.POMODORO_DURATION - 90;
+    assertEquals("START " + remaining + ",PAUSED " + remaining, mEvents.toString());
+    restored.resume();
+    restoredScheduler.advanceBy((PomodoroApi.POMODORO_DURATION * 1000L) - 90500 - 1, TimeUnit.MILLISECONDS);
+    assertEquals(PomodoroApi.PomodoroState.POMODORO, restored.getCurrentState());
+    restoredScheduler.advanceBy(1, TimeUnit.MILLISECONDS);
+    assertEquals(PomodoroApi.PomodoroState.SHORT_BREAK, restored.getCurrentState());
+  }
+
+  /**
+   * Starts a pomodoro on the "Work" project and saves it after the given minutes.
+   */
+  private VirtualTimeScheduler startAndSave(int minutes) throws PomodoroApi.AlreadyRunningException, IOException {
+    VirtualTimeScheduler scheduler = new VirtualTimeScheduler(START);
+    PomodoroApi api = new PomodoroApi(scheduler, scheduler);
+    api.load(mContext, mPrefs);
+    api.setCurrentProject("Work");
+    api.start();
+    scheduler.advanceBy(minutes, TimeUnit.MINUTES);
+    save(api);
+    return scheduler;
+  }
+
+  private void save(PomodoroApi api) throws IOException {
+    SharedPreferences.Editor editor = mPrefs.edit();
+    assertTrue(api.save(mContext, editor));
+    editor.apply();
+  }
+
+  /**
+   * Creates the clock of a new process, the given minutes after the previous one was killed.
+   */
+  private static VirtualTimeScheduler after(VirtualTimeScheduler killed, int minutes) {
+    return new VirtualTimeScheduler(killed.currentTimeMillis() + TimeUnit.MINUTES.toMillis(minutes));
+  }
+
+  /**
+   * Loads the saved state in a new process and restores its session, recording the events in mEvents.
+   */
+  private PomodoroApi load(VirtualTimeScheduler scheduler) {
+    PomodoroApi api = new PomodoroApi(scheduler, scheduler);
+    api.load(mContext, mPrefs);
+    api.getEventBus().register(new PomodoroApi.PomodoroEventListener() {
+      private void record(PomodoroApi.PomodoroEvent event) {
+        if (mEvents.length() > 0) {
+          mEvents.append(',');
+        }
+        mEvents.append(event.action).append(' ').append(event.currentTime);
+        mTimes.add(event.time);
+      }
+
+      @Override
+      public void pomodoroStarted(PomodoroApi.PomodoroEvent event) {
+        record(event);
+      }
+
+      @Override
+      public void pomodoroTicked(PomodoroApi.PomodoroEvent event) {
+      }
+
+      @Override
+      public void pomodoroEnded(PomodoroApi.PomodoroEvent event) {
+        record(event);
+      }
+
+      @Override
+      public void breakStarted(PomodoroApi.PomodoroEvent event) {
+        record(event);
+      }
+
+      @Override
+      public void pomodoroFinished(PomodoroApi.PomodoroEvent event) {
+        record(event);
+      }
+
+      @Override
+      public void paused(PomodoroApi.PomodoroEvent event) {
+        record(event);
+      }
+
+      @Override
+      public void resumed(PomodoroApi.PomodoroEvent event) {
+        record(event);
+      }
+    });
+    api.restoreSession();
+    scheduler.runPending();
+    return api;
+  }
+}
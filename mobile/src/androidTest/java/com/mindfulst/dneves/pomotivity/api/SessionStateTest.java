@@ -0,0 +1,100 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import com.mindfulst.dneves.pomotivity.api.PomodoroApi.PomodoroState;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the SessionState class.
+ */
+public class SessionStateTest extends TestCase {
+  /**
+   * Tests that every field packed can be read back.
+   */
+  public void testPackAndRead() {
+    for (PomodoroState phase : PomodoroState.values()) {
+      long state = SessionState.pack(phase, true, 12345, SessionState.TIME_MASK);
+      assertEquals(phase, SessionState.getPhase(state));
+      assertTrue(SessionState.isPaused(state));
+      assertEquals(12345, SessionState.getGeneration(state));
+      assertEquals(SessionState.TIME_MASK, SessionState.getTime(state));
+      assertEquals(phase != PomodoroState.NONE, SessionState.isRunning(state));
+
+      state = SessionState.pack(phase, false, 0, 0);
+      assertEquals(phase, SessionState.getPhase(state));
+      assertFalse(SessionState.isPaused(state));
+      assertEquals(0, SessionState.getGeneration(state));
+      assertEquals(0, SessionState.getTime(state));
+    }
+  }
+
+  /**
+   * Tests that checkpoints keep the phase and pause, with the deadline moved to the wall clock.
+   */
+  public void testCheckpoint() {
+    long epochMillis = 1401699600000L;
+    assertEquals(SessionState.NO_CHECKPOINT, SessionState.toCheckpoint(SessionState.NONE, epochMillis));
+
+    long checkpoint = SessionState.toCheckpoint(SessionState.pack(PomodoroState.SHORT_BREAK, false, 7, 1500),
+                                                epochMillis);
+    assertEquals(PomodoroState.SHORT_BREAK, SessionState.getCheckpointPhase(checkpoint));
+    assertFalse(SessionState.isCheckpointPaused(checkpoint));
+    assertEquals(epochMillis + 1500, SessionState.getCheckpointTime(checkpoint));
+
+    checkpoint = SessionState.toCheckpoint(SessionState.pack(PomodoroState.POMODORO, true, 7, 123456789L),
+                                           epochMillis);
+    assertEquals(PomodoroState.POMODORO, SessionState.getCheckpointPhase(checkpoint));
+    assertTrue(SessionState.isCheckpointPaused(checkpoint));
+    assertEquals(123456789L, SessionState.getCheckpointTime(checkpoint));
+  }
+
+  /**
+   * Tests that the generation wraps around instead of corrupting the other fields.
+   */
+  public void testGenerationWraps() {
+    long state = SessionState.pack(PomodoroState.LONG_BREAK, false, SessionState.GENERATION_MASK, 42);
+    long next = SessionState.next(state, PomodoroState.LONG_BREAK, false, 42);
+    assertEquals(0, SessionState.getGeneration(next));
+    assertEquals(PomodoroState.LONG_BREAK, SessionState.getPhase(next));
+    assertFalse(SessionState.isPaused(next));
+    assertEquals(42, SessionState.getTime(next));
+    assertTrue(state != next);
+  }
+
+  /**
+   * Tests that a time that doesn't fit is rejected.
+   */
+  public void testTimeOutOfRangeThrows() {
+    try {
+      SessionState.pack(PomodoroState.POMODORO, false, 0, SessionState.TIME_MASK + 1);
+      fail("Packing a time that doesn't fit should've thrown an exception");
+    }
+    catch (IllegalArgumentException ex) {
+    }
+  }
+
+  /**
+   * Tests the remaining time while running, paused and stopped.
+   */
+  public void testRemainingNanos() {
+    long running = SessionState.pack(PomodoroState.POMODORO, false, 1, 5000);
+    assertEquals(5000000000L, SessionState.getDeadlineNanos(running));
+    assertEquals(3000000000L, SessionState.getRemainingNanos(running, 2000000000L));
+    assertEquals(0, SessionState.getRemainingNanos(running, 6000000000L));
+
+    // Paused keeps the exact nanoseconds
+    long paused = SessionState.pack(PomodoroState.POMODORO, true, 2, 1499999999L);
+    assertEquals(1499999999L, SessionState.getRemainingNanos(paused, 100000));
+
+    assertEquals(0, SessionState.getRemainingNanos(SessionState.NONE, 0));
+  }
+
+  /**
+   * Tests that deadlines are rounded to the nearest millisecond.
+   */
+  public void testToDeadline() {
+    assertEquals(1, SessionState.toDeadline(1499999));
+    assertEquals(2, SessionState.toDeadline(1500000));
+    assertEquals(25 * 60 * 1000, SessionState.toDeadline(25 * 60 * 1000000000L));
+  }
+}
@@ -0,0 +1,149 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.InstrumentationTestCase;
+
+import com.mindfulst.dneves.pomotivity.R;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that PomodoroApi only saves what changed.
+ */
+public class StatePersisterTest extends InstrumentationTestCase {
+  private File mStatsFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mStatsFile = new File(getInstrumentation().getTargetContext().getFilesDir(), "stats.bin");
+    mStatsFile.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mStatsFile.delete();
+    super.tearDown();
+  }
+
+  /**
+   * Tests that saving right after loading writes nothing.
+   */
+  public void testNothingWrittenWhenClean() throws IOException {
+    Context context = getInstrumentation().getTargetContext();
+    SharedPreferences prefs = MockSharedPreferences.createEmpty();
+    PomodoroApi api = new PomodoroApi(new VirtualTimeScheduler());
+    api.load(context, prefs);
+    assertEquals(0, save(context, prefs, api));
+    api.setAutoStart(true);
+    assertEquals(1, save(context, prefs, api));
+    assertEquals(0, save(context, prefs, api));
+
+    PomodoroApi loaded = new PomodoroApi(new VirtualTimeScheduler());
+    loaded.load(context, prefs);
+    assertEquals(0, save(context, prefs, loaded));
+  }
+
+  /**
+   * Tests that only the projects that changed are written.
+   */
+  public void testOnlyChangedProjectsWritten() throws IOException {
+    Context context = getInstrumentation().getTargetContext();
+    SharedPreferences prefs = MockSharedPreferences.createEmpty();
+    PomodoroApi api = new PomodoroApi(new VirtualTimeScheduler());
+    api.load(context, prefs);
+    for (int i = 0; i < 100; ++i) {
+      api.setCurrentProject("Project " + i);
+    }
+    save(context, prefs, api);
+    long fullLength = mStatsFile.length();
+
+    api.setCurrentProject("Project 7");
+    // The current project only
+    assertEquals(1, save(context, prefs, api));
+    assertEquals(fullLength, mStatsFile.length());
+    api.setCurrentProject("Project 100");
+    // The current project, and a record with the new project
+    assertEquals(1, save(context, prefs, api));
+    assertTrue(mStatsFile.length() - fullLength < 32);
+
+    PomodoroApi loaded = new PomodoroApi(new VirtualTimeScheduler());
+    loaded.load(context, prefs);
+    assertEquals(101, loaded.getStats().getProjects().size());
+    assertEquals("Project 100", loaded.getCurrentProject());
+  }
+
+  /**
+   * Tests that the format of older versions is moved to the new one on the first save.
+   */
+  public void testLegacyFormatMigrated() throws IOException {
+    Context context = getInstrumentation().getTargetContext();
+    SharedPreferences prefs = MockSharedPreferences.createWithTestData(context, "Old Project");
+    PomodoroApi api = new PomodoroApi(new VirtualTimeScheduler());
+    api.load(context, prefs);
+    assertTrue(save(context, prefs, api) > 0);
+    assertFalse(prefs.contains(context.getString(R.string.projects_key)));
+    assertFalse(prefs.contains(context.getString(R.string.all_time_key)));
+    assertTrue(mStatsFile.exists());
+
+    PomodoroApi loaded = new PomodoroApi(new VirtualTimeScheduler());
+    loaded.load(context, prefs);
+    assertEquals(1, loaded.getStats().getProjectCount("Old Project"));
+    assertEquals(4, loaded.getStats().allTime);
+    assertEquals(0, save(context, prefs, loaded));
+  }
+
+  /**
+   * Tests that the history is saved with the stats, the days compressed out of its ring included.
+   */
+  public void testHistorySavedAndLoaded() throws PomodoroApi.AlreadyRunningException, IOException {
+    Context context = getInstrumentation().getTargetContext();
+    SharedPreferences prefs = MockSharedPreferences.createEmpty();
+    VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+    PomodoroApi api = new PomodoroApi(scheduler, scheduler);
+    api.load(context, prefs);
+    int days = StatsHistory.RING_DAYS + 10;
+    for (int i = 0; i < days; ++i) {
+      api.setCurrentProject(i % 3 == 0 ? "Garden" : "Work");
+      api.start();
+      scheduler.advanceBy(PomodoroApi.POMODORO_DURATION, TimeUnit.SECONDS);
+      api.stop();
+      scheduler.runPending();
+      scheduler.advanceBy(1, TimeUnit.DAYS);
+      if (i % 5 == 0) {
+        save(context, prefs, api);
+      }
+    }
+    save(context, prefs, api);
+
+    PomodoroApi loaded = new PomodoroApi(scheduler, scheduler);
+    loaded.load(context, prefs);
+    StatsHistory history = api.getHistory();
+    StatsHistory loadedHistory = loaded.getHistory();
+    int latestDay = history.getLatestDay();
+    int firstDay = latestDay - 2 * days;
+    assertEquals(latestDay, loadedHistory.getLatestDay());
+    assertEquals(days, loadedHistory.getTotal(firstDay, latestDay + 1));
+    for (String project : new String[]{"Garden", "Work"}) {
+      assertTrue(Arrays.equals(history.getProjectCounts(project, firstDay, latestDay + 1),
+                               loadedHistory.getProjectCounts(project, firstDay, latestDay + 1)));
+    }
+  }
+
+  /**
+   * Saves the api state.
+   *
+   * @return Number of keys written.
+   */
+  private static int save(Context context, SharedPreferences prefs, PomodoroApi api) throws IOException {
+    MockSharedPreferences.MockEditor editor = (MockSharedPreferences.MockEditor) prefs.edit();
+    boolean changed = api.save(context, editor);
+    editor.apply();
+    assertEquals(changed, editor.getChangeCount() > 0);
+    return editor.getChangeCount();
+  }
+}
@@ -0,0 +1,168 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.InstrumentationTestCase;
+
+import com.mindfulst.dneves.pomotivity.R;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the StateWriter class.
+ */
+public class StateWriterTest extends InstrumentationTestCase {
+  private static final long LONG_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+  private Context           mContext;
+  private SharedPreferences mPrefs;
+  private PomodoroApi       mApi;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mContext = getInstrumentation().getTargetContext();
+    new File(mContext.getFilesDir(), "stats.bin").delete();
+    mPrefs = MockSharedPreferences.createEmpty();
+    mApi = new PomodoroApi(new VirtualTimeScheduler());
+    mApi.load(mContext, mPrefs);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    new File(mContext.getFilesDir(), "stats.bin").delete();
+    new File(mContext.getFilesDir(), "stats.bin.tmp").delete();
+    super.tearDown();
+  }
+
+  /**
+   * Tests that the barrier commits the pending saves without waiting for the interval.
+   */
+  public void testSyncCommitsPending() throws InterruptedException {
+    StateWriter writer = new StateWriter(mApi, mContext, mPrefs, LONG_INTERVAL, 100);
+    mApi.setCurrentProject("Work");
+    writer.requestSave();
+    mApi.setAutoStart(true);
+    writer.requestSave();
+    Thread.sleep(50);
+    assertEquals(0, writer.getCommitCount());
+
+    assertTrue(writer.sync(5, TimeUnit.SECONDS));
+    assertEquals(1, writer.getCommitCount());
+    assertEquals("Work", mPrefs.getString(mContext.getString(R.string.current_project), null));
+    assertTrue(mPrefs.getBoolean(mContext.getString(R.string.auto_start_key), false));
+    writer.close();
+  }
+
+  /**
+   * Tests that a full batch is committed as one without waiting for the interval.
+   */
+  public void testFullBatchCommitted() throws InterruptedException {
+    StateWriter writer = new StateWriter(mApi, mContext, mPrefs, LONG_INTERVAL, 3);
+    for (int i = 0; i < 3; ++i) {
+      mApi.setCurrentProject("Project " + i);
+      writer.requestSave();
+    }
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (writer.getCommitCount() == 0 && System.nanoTime() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(1, writer.getCommitCount());
+    assertEquals("Project 2", mPrefs.getString(mContext.getString(R.string.current_project), null));
+    writer.close();
+  }
+
+  /**
+   * Tests that the saves are committed once the interval passes, and that closing commits what's pending.
+   */
+  public void testIntervalAndClose() throws InterruptedException {
+    StateWriter writer = new StateWriter(mApi, mContext, mPrefs, 20, 100);
+    mApi.setCurrentProject("Work");
+    writer.requestSave();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (writer.getCommitCount() == 0 && System.nanoTime() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(1, writer.getCommitCount());
+
+    StateWriter closing = new StateWriter(mApi, mContext, mPrefs, LONG_INTERVAL, 100);
+    mApi.setCurrentProject("Garden");
+    closing.requestSave();
+    closing.close();
+    assertTrue(closing.sync(5, TimeUnit.SECONDS));
+    assertEquals("Garden", mPrefs.getString(mContext.getString(R.string.current_project), null));
+    writer.close();
+  }
+
+  /**
+   * Tests that a save that fails stays pending, the barrier doesn't pass and it's tried again until it works.
+   */
+  public void testFailedSaveRetried() throws InterruptedException {
+    // The snapshot can't replace a directory
+    File statsFile = new File(mContext.getFilesDir(), "stats.bin");
+    assertTrue(statsFile.mkdir());
+    StateWriter writer = new StateWriter(mApi, mContext, mPrefs, 20, 100);
+    mApi.setCurrentProject("Work");
+    assertFalse(writer.sync(200, TimeUnit.MILLISECONDS));
+    assertEquals(0, writer.getCommitCount());
+    assertTrue(writer.getFailureCount() > 0);
+
+    assertTrue(statsFile.delete());
+    assertTrue(writer.sync(5, TimeUnit.SECONDS));
+    assertEquals(1, writer.getCommitCount());
+    assertTrue(statsFile.isFile());
+    assertEquals("Work", mPrefs.getString(mContext.getString(R.string.current_project), null));
+    writer.close();
+  }
+
+  /**
+   * Tests that preferences whose commit failed are written again by the retry, not taken as saved.
+   */
+  public void testFailedCommitRetried() throws InterruptedException {
+    MockSharedPreferences prefs = (MockSharedPreferences) mPrefs;
+    prefs.setCommitFails(true);
+    StateWriter writer = new StateWriter(mApi, mContext, mPrefs, 20, 100);
+    mApi.setCurrentProject("Work");
+    mApi.setAutoStart(true);
+    assertFalse(writer.sync(200, TimeUnit.MILLISECONDS));
+    assertEquals(0, writer.getCommitCount());
+    assertTrue(writer.getFailureCount() > 0);
+
+    prefs.setCommitFails(false);
+    assertTrue(writer.sync(5, TimeUnit.SECONDS));
+    assertEquals(1, writer.getCommitCount());
+    assertEquals("Work", mPrefs.getString(mContext.getString(R.string.current_project), null));
+    assertTrue(mPrefs.getBoolean(mContext.getString(R.string.auto_start_key), false));
+    writer.close();
+  }
+
+  /**
+   * Tests that the metrics of the aggregator are checkpointed after the commits, only when they have new events.
+   */
+  public void testAggregatorCheckpointed() throws InterruptedException, IOException {
+    File checkpoint = new File(mContext.getFilesDir(), "aggregates.bin");
+    checkpoint.delete();
+    try {
+      StatsAggregator aggregator = new StatsAggregator(TimeZone.getTimeZone("UTC"));
+      StateWriter writer = new StateWriter(mApi, mContext, mPrefs, LONG_INTERVAL, 100);
+      writer.setAggregator(aggregator, checkpoint);
+      mApi.setCurrentProject("Work");
+      assertTrue(writer.sync(5, TimeUnit.SECONDS));
+      assertFalse(checkpoint.exists());
+
+      aggregator.add(PomodoroApi.ListenerAction.END_POMODORO, PomodoroApi.PomodoroState.POMODORO, 0, 0, "Work", 42);
+      writer.requestSave();
+      assertTrue(writer.sync(5, TimeUnit.SECONDS));
+      StatsAggregator restored = new StatsAggregator(TimeZone.getTimeZone("UTC"));
+      assertEquals(42, restored.load(checkpoint));
+      assertEquals(1, restored.getCompleted());
+      writer.close();
+    }
+    finally {
+      checkpoint.delete();
+    }
+  }
+}
@@ -0,0 +1,268 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import com.mindfulst.dneves.pomotivity.api.PomodoroApi.ListenerAction;
+import com.mindfulst.dneves.pomotivity.api.PomodoroApi.PomodoroState;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the StatsAggregator class.
+ */
+public class StatsAggregatorTest extends TestCase {
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+  /**
+   * Tests that streaks carry on over consecutive logical days and restart after a gap.
+   */
+  public void testStreaks() {
+    StatsAggregator aggregator = new StatsAggregator(UTC);
+    // 2014-06-02 is a Monday, a pomodoro at 2am still counts for Sunday
+    completed(aggregator, new DateTime(2014, 6, 2, 2, 0, DateTimeZone.UTC), "");
+    completed(aggregator, new DateTime(2014, 6, 2, 9, 0, DateTimeZone.UTC), "");
+    completed(aggregator, new DateTime(2014, 6, 2, 15, 0, DateTimeZone.UTC), "");
+    completed(aggregator, new DateTime(2014, 6, 3, 9, 0, DateTimeZone.UTC), "");
+    assertEquals(3, aggregator.getBestStreak());
+
+    int day = (int) TimeUnit.MILLISECONDS.toDays(new DateTime(2014, 6, 3, 0, 0, DateTimeZone.UTC).getMillis());
+    assertEquals(3, aggregator.getCurrentStreak(day));
+    assertEquals(3, aggregator.getCurrentStreak(day + 1));
+    assertEquals(0, aggregator.getCurrentStreak(day + 2));
+
+    completed(aggregator, new DateTime(2014, 6, 6, 9, 0, DateTimeZone.UTC), "");
+    assertEquals(1, aggregator.getCurrentStreak(day + 3));
+    assertEquals(3, aggregator.getBestStreak());
+  }
+
+  /**
+   * Tests that the pomodoros go to the hour of the week they ended in, in local time.
+   */
+  public void testHeatmap() {
+    StatsAggregator aggregator = new StatsAggregator(TimeZone.getTimeZone("Europe/London"));
+    // Monday 9:30 in London, summer time
+    completed(aggregator, new DateTime(2014, 6, 2, 8, 30, DateTimeZone.UTC), "");
+    // Sunday 23:10 in London, winter time
+    completed(aggregator, new DateTime(2014, 12, 7, 23, 10, DateTimeZone.UTC), "");
+    completed(aggregator, new DateTime(2014, 12, 7, 23, 50, DateTimeZone.UTC), "");
+
+    int[] heatmap = aggregator.getHeatmap();
+    assertEquals(StatsAggregator.HOURS_PER_WEEK, heatmap.length);
+    assertEquals(1, heatmap[9]);
+    assertEquals(2, heatmap[StatsAggregator.HOURS_PER_WEEK - 1]);
+    assertEquals(3, aggregator.getCompleted());
+  }
+
+  /**
+   * Tests the interruptions and completion rates fed by a running session, stopping pomodoros and breaks early.
+   */
+  public void testSessionEvents() throws PomodoroApi.AlreadyRunningException {
+    VirtualTimeScheduler scheduler = new VirtualTimeScheduler(new DateTime(2014, 6, 2, 9, 0).getMillis());
+    PomodoroApi api = new PomodoroApi(scheduler, scheduler);
+    StatsAggregator aggregator = new StatsAggregator(UTC);
+    api.getEventBus().register(aggregator);
+
+    api.setCurrentProject("Work");
+    api.start();
+    scheduler.advanceBy(PomodoroApi.POMODORO_DURATION + 60, TimeUnit.SECONDS);
+    // The break, not an interruption
+    api.stop();
+    api.start();
+    scheduler.advanceBy(10 * 60 + 30, TimeUnit.SECONDS);
+    api.stop();
+    // Before the events are delivered, they still go to the project they happened in
+    api.setCurrentProject("Garden");
+    api.start();
+    scheduler.advanceBy(30, TimeUnit.SECONDS);
+    api.stop();
+    scheduler.runPending();
+
+    assertEquals(1, aggregator.getCompleted());
+    assertEquals(2, aggregator.getInterrupted());
+    int[] histogram = aggregator.getInterruptionHistogram();
+    assertEquals(1, histogram[0]);
+    assertEquals(1, histogram[10]);
+    assertEquals(0.5f, aggregator.getCompletionRate("Work"));
+    assertEquals(0f, aggregator.getCompletionRate("Garden"));
+    assertEquals(0f, aggregator.getCompletionRate("Unknown"));
+  }
+
+  /**
+   * Tests that an event goes to the day and hour it happened in, not the one it's delivered in (e.g. a pomodoro caught
+   * up after a restart).
+   */
+  public void testEventTime() {
+    VirtualTimeScheduler scheduler = new VirtualTimeScheduler(new DateTime(2014, 6, 5, 9, 0).getMillis());
+    PomodoroApi api = new PomodoroApi(scheduler, scheduler);
+    StatsAggregator aggregator = new StatsAggregator(UTC);
+    // Monday 10:25, delivered on Thursday
+    long millis = new DateTime(2014, 6, 2, 10, 25, DateTimeZone.UTC).getMillis();
+    aggregator.pomodoroEnded(
+        api.new PomodoroEvent(api, ListenerAction.END_POMODORO, 0, false, PomodoroState.POMODORO, "Work", millis));
+
+    assertEquals(1, aggregator.getHeatmap()[10]);
+    int day = (int) TimeUnit.MILLISECONDS.toDays(millis);
+    assertEquals(1, aggregator.getCurrentStreak(day + 1));
+    assertEquals(0, aggregator.getCurrentStreak(day + 3));
+    assertEquals(1f, aggregator.getCompletionRate("Work"));
+  }
+
+  /**
+   * Tests that a checkpoint plus the events journaled after it gives the same metrics as replaying the whole journal,
+   * and that damaged or mismatched checkpoints aren't loaded.
+   */
+  public void testCheckpoint() throws IOException {
+    File directory = new File(System.getProperty("java.io.tmpdir"), "aggregator-test-" + System.nanoTime());
+    File checkpoint = new File(directory, "aggregates.bin");
+    try {
+      EventJournal journal = new EventJournal(new File(directory, "journal"), 256);
+      StatsAggregator aggregator = new StatsAggregator(UTC);
+      assertEquals(EventJournal.START_OFFSET, aggregator.load(checkpoint));
+      long millis = new DateTime(2014, 6, 2, 9, 0, DateTimeZone.UTC).getMillis();
+      for (int i = 0; i < 10; ++i) {
+        journalEvents(journal, millis + TimeUnit.DAYS.toMillis(i), i % 3 == 0 ? "Work" : "Garden");
+      }
+      EventJournal.Reader reader = journal.replay();
+      aggregator.replay(reader);
+      aggregator.save(checkpoint);
+
+      // Days 11 and 12, after a gap
+      for (int i = 11; i < 13; ++i) {
+        journalEvents(journal, millis + TimeUnit.DAYS.toMillis(i), "Garden");
+      }
+      StatsAggregator restored = new StatsAggregator(UTC);
+      reader = journal.replay(restored.load(checkpoint));
+      int tail = 0;
+      while (reader.next()) {
+        ListenerAction action = reader.getAction();
+        restored.add(action, reader.getPhase(), reader.getCurrentTime(), reader.getTime(), reader.getProject());
+        ++tail;
+      }
+      assertEquals(6, tail);
+
+      StatsAggregator replayed = new StatsAggregator(UTC);
+      replayed.replay(journal.replay());
+      assertEquals(12, replayed.getCompleted());
+      assertEquals(replayed.getCompleted(), restored.getCompleted());
+      assertEquals(replayed.getInterrupted(), restored.getInterrupted());
+      assertEquals(10, restored.getBestStreak());
+      int today = (int) TimeUnit.MILLISECONDS.toDays(millis) + 12;
+      assertEquals(2, restored.getCurrentStreak(today));
+      assertTrue(Arrays.equals(replayed.getHeatmap(), restored.getHeatmap()));
+      assertTrue(Arrays.equals(replayed.getInterruptionHistogram(), restored.getInterruptionHistogram()));
+      assertEquals(replayed.getCompletionRate("Work"), restored.getCompletionRate("Work"));
+      assertEquals(replayed.getCompletionRate("Garden"), restored.getCompletionRate("Garden"));
+
+      StatsAggregator otherZone = new StatsAggregator(TimeZone.getTimeZone("Europe/London"));
+      try {
+        otherZone.load(checkpoint);
+        fail("Loaded a checkpoint of another time zone");
+      }
+      catch (IOException e) {
+        assertEquals(0, otherZone.getCompleted());
+      }
+
+      RandomAccessFile file = new RandomAccessFile(checkpoint, "rw");
+      try {
+        file.seek(40);
+        int value = file.read();
+        file.seek(40);
+        file.write(value ^ 1);
+      }
+      finally {
+        file.close();
+      }
+      StatsAggregator damaged = new StatsAggregator(UTC);
+      try {
+        damaged.load(checkpoint);
+        fail("Loaded a damaged checkpoint");
+      }
+      catch (IOException e) {
+        assertEquals(0, damaged.getCompleted());
+      }
+    }
+    finally {
+      delete(directory);
+    }
+  }
+
+  /**
+   * Tests that the checkpoints of an aggregator fed by the journal listener, taken while the session runs, match the
+   * journal: restoring one and replaying what was journaled after it neither loses nor repeats an event.
+   */
+  public void testCheckpointWhileRunning() throws IOException, PomodoroApi.AlreadyRunningException {
+    File directory = new File(System.getProperty("java.io.tmpdir"), "aggregator-test-" + System.nanoTime());
+    File checkpoint = new File(directory, "aggregates.bin");
+    try {
+      EventJournal journal = new EventJournal(new File(directory, "journal"), 256);
+      StatsAggregator aggregator = new StatsAggregator(UTC);
+      assertFalse(aggregator.checkpoint(checkpoint));
+      VirtualTimeScheduler scheduler = new VirtualTimeScheduler(new DateTime(2014, 6, 2, 9, 0).getMillis());
+      PomodoroApi api = new PomodoroApi(scheduler, scheduler);
+      api.setCurrentProject("Work");
+      api.getEventBus().register(new JournalListener(journal, aggregator));
+
+      for (int i = 0; i < 3; ++i) {
+        api.start();
+        scheduler.advanceBy(PomodoroApi.POMODORO_DURATION + PomodoroApi.SHORT_BREAK_DURATION, TimeUnit.SECONDS);
+      }
+      assertTrue(aggregator.checkpoint(checkpoint));
+      assertFalse(aggregator.checkpoint(checkpoint));
+
+      // Journaled after the checkpoint, an interrupted pomodoro and a completed one
+      api.start();
+      scheduler.advanceBy(5, TimeUnit.MINUTES);
+      api.stop();
+      api.start();
+      scheduler.advanceBy(PomodoroApi.POMODORO_DURATION, TimeUnit.SECONDS);
+      assertEquals(4, aggregator.getCompleted());
+      assertEquals(1, aggregator.getInterrupted());
+
+      StatsAggregator restored = new StatsAggregator(UTC);
+      restored.replay(journal.replay(restored.load(checkpoint)));
+      assertEquals(4, restored.getCompleted());
+      assertEquals(1, restored.getInterrupted());
+      assertTrue(Arrays.equals(aggregator.getHeatmap(), restored.getHeatmap()));
+      assertTrue(Arrays.equals(aggregator.getInterruptionHistogram(), restored.getInterruptionHistogram()));
+      // The tail was replayed, only events journaled from now on need another checkpoint
+      assertTrue(restored.checkpoint(checkpoint));
+      assertFalse(restored.checkpoint(checkpoint));
+    }
+    finally {
+      delete(directory);
+    }
+  }
+
+  /**
+   * Journals a pomodoro completed at the given time and another one interrupted after 5 minutes.
+   */
+  private static void journalEvents(EventJournal journal, long millis, String project) throws IOException {
+    journal.append(ListenerAction.END_POMODORO, PomodoroState.POMODORO, false, 0, millis, project);
+    journal.append(ListenerAction.START_BREAK, PomodoroState.SHORT_BREAK, false, PomodoroApi.SHORT_BREAK_DURATION,
+                   millis, project);
+    journal.append(ListenerAction.FINISH, PomodoroState.POMODORO, false, PomodoroApi.POMODORO_DURATION - 5 * 60,
+                   millis + TimeUnit.HOURS.toMillis(1), project);
+  }
+
+  private static void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private static void completed(StatsAggregator aggregator, DateTime time, String project) {
+    aggregator.add(ListenerAction.END_POMODORO, PomodoroState.POMODORO, 0, time.getMillis(), project);
+  }
+}
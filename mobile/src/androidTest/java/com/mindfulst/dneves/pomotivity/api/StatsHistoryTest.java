@@ -0,0 +1,92 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests the StatsHistory class.
+ */
+public class StatsHistoryTest extends TestCase {
+  private static final int      FIRST_DAY = 16000;
+  private static final String[] PROJECTS  = new String[]{"Work", "Garden", "Reading"};
+
+  /**
+   * Tests that the queries give the same results for the days in the ring and the compressed ones.
+   */
+  public void testQueriesMatchRecords() {
+    Random random = new Random(42);
+    int dayCount = 400;
+    int[] totals = new int[dayCount];
+    int[][] projectCounts = new int[PROJECTS.length][dayCount];
+    StatsHistory history = new StatsHistory();
+    for (int i = 0; i < dayCount; ++i) {
+      // Some days without pomodoros
+      int pomodoros = random.nextInt(4) == 0 ? 0 : random.nextInt(12);
+      for (int j = 0; j < pomodoros; ++j) {
+        int project = random.nextInt(PROJECTS.length + 1);
+        history.record(FIRST_DAY + i, project < PROJECTS.length ? PROJECTS[project] : null);
+        ++totals[i];
+        if (project < PROJECTS.length) {
+          ++projectCounts[project][i];
+        }
+      }
+    }
+
+    for (int from = 0; from < dayCount; from += 13) {
+      for (int to = from; to <= dayCount; to += 29) {
+        int expected = 0;
+        for (int i = from; i < to; ++i) {
+          expected += totals[i];
+        }
+        assertEquals(expected, history.getTotal(FIRST_DAY + from, FIRST_DAY + to));
+      }
+    }
+    for (int project = 0; project < PROJECTS.length; ++project) {
+      assertTrue(Arrays.equals(projectCounts[project],
+                               history.getProjectCounts(PROJECTS[project], FIRST_DAY, FIRST_DAY + dayCount)));
+    }
+    assertTrue(Arrays.equals(new int[dayCount], history.getProjectCounts("Unknown", FIRST_DAY, FIRST_DAY + dayCount)));
+  }
+
+  /**
+   * Tests that the days are visited in order and only the ones with pomodoros.
+   */
+  public void testForEachDay() {
+    StatsHistory history = new StatsHistory();
+    history.record(FIRST_DAY, "Work");
+    history.record(FIRST_DAY + 2, null);
+    history.record(FIRST_DAY + 2, "Work");
+    history.record(FIRST_DAY + 100, "Work");
+    history.record(FIRST_DAY + 101, "Garden");
+
+    final List<String> visited = new ArrayList<String>();
+    history.forEachDay(FIRST_DAY, FIRST_DAY + 101, new StatsHistory.DayVisitor() {
+      @Override
+      public void visit(int day, int count) {
+        visited.add((day - FIRST_DAY) + ":" + count);
+      }
+    });
+    assertEquals(Arrays.asList("0:1", "2:2", "100:1"), visited);
+    assertEquals(FIRST_DAY + 101, history.getLatestDay());
+  }
+
+  /**
+   * Tests that days that were compressed can't be recorded anymore.
+   */
+  public void testOldDaysCantBeRecorded() {
+    StatsHistory history = new StatsHistory();
+    history.record(FIRST_DAY + StatsHistory.RING_DAYS, "Work");
+    history.record(FIRST_DAY + 1, "Work");
+    try {
+      history.record(FIRST_DAY, "Work");
+      fail("Recording a day out of the ring should've thrown an exception");
+    }
+    catch (IllegalArgumentException ex) {
+    }
+    assertEquals(2, history.getTotal(FIRST_DAY, FIRST_DAY + StatsHistory.RING_DAYS + 1));
+  }
+}
@@ -0,0 +1,224 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+
+import com.mindfulst.dneves.pomotivity.R;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests the StatsSnapshot class.
+ */
+public class StatsSnapshotTest extends InstrumentationTestCase {
+  private static final List<Integer> NO_DAYS     = Collections.emptyList();
+  private static final List<String>  NO_PROJECTS = Collections.emptyList();
+
+  private File         mFile;
+  private File         mBadFile;
+  // Empty, for the tests that don't need one
+  private StatsHistory mHistory;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mFile = new File(getInstrumentation().getTargetContext().getFilesDir(), "stats-test.bin");
+    mBadFile = new File(mFile.getPath() + ".bad");
+    mHistory = new StatsHistory();
+    mFile.delete();
+    mBadFile.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mFile.delete();
+    mBadFile.delete();
+    super.tearDown();
+  }
+
+  /**
+   * Tests that the appended records are applied on top of the full one, with any kind of name.
+   */
+  public void testAppendedChangesLoaded() throws IOException {
+    Stats stats = new Stats().addProject("Work, mostly").addProject("Café ☕").incrementCounter("Work, mostly");
+    StatsSnapshot snapshot = new StatsSnapshot(mFile);
+    snapshot.writeFull(stats, mHistory);
+    long fullLength = mFile.length();
+
+    stats = stats.incrementCounter("Café ☕").addProject("Garden");
+    snapshot.append(stats, true, Arrays.asList("Café ☕", "Garden"), mHistory, NO_DAYS);
+    snapshot.append(stats, false, NO_PROJECTS, mHistory, NO_DAYS);
+    assertTrue(mFile.length() - fullLength < 64);
+
+    Stats loaded = new StatsSnapshot(mFile).load(new StatsHistory());
+    assertEquals(2, loaded.finishedToday);
+    assertEquals(2, loaded.allTime);
+    assertEquals(stats.getProjects(), loaded.getProjects());
+  }
+
+  /**
+   * Tests that the days of the history are written with the stats and the ones that changed are appended.
+   */
+  public void testHistoryLoaded() throws IOException {
+    StatsHistory history = new StatsHistory();
+    for (int day = 1000; day < 1100; day += 3) {
+      history.record(day, "Work");
+      history.record(day, day % 2 == 0 ? "Garden" : null);
+    }
+    StatsSnapshot snapshot = new StatsSnapshot(mFile);
+    Stats stats = new Stats();
+    snapshot.writeFull(stats, history);
+    long fullLength = mFile.length();
+
+    history.record(1098, "Garden");
+    history.record(1101, "Work");
+    snapshot.append(stats, false, NO_PROJECTS, history, Arrays.asList(1098, 1101));
+    assertTrue(mFile.length() - fullLength < 64);
+
+    StatsHistory loaded = new StatsHistory();
+    new StatsSnapshot(mFile).load(loaded);
+    assertEquals(1101, loaded.getLatestDay());
+    assertEquals(history.getTotal(1000, 1102), loaded.getTotal(1000, 1102));
+    assertTrue(Arrays.equals(history.getProjectCounts("Garden", 1000, 1102),
+                             loaded.getProjectCounts("Garden", 1000, 1102)));
+    assertTrue(Arrays.equals(history.getProjectCounts("Work", 1000, 1102),
+                             loaded.getProjectCounts("Work", 1000, 1102)));
+  }
+
+  /**
+   * Tests that a record cut short ends the file and the next save rewrites it.
+   */
+  public void testDamagedRecordIgnored() throws IOException {
+    Stats stats = new Stats().addProject("Work").incrementCounter("Work");
+    StatsSnapshot snapshot = new StatsSnapshot(mFile);
+    snapshot.writeFull(stats, mHistory);
+    long goodLength = mFile.length();
+    snapshot.append(stats.incrementCounter("Work"), true, Arrays.asList("Work"), mHistory, NO_DAYS);
+
+    RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+    try {
+      file.setLength(file.length() - 1);
+    }
+    finally {
+      file.close();
+    }
+    snapshot = new StatsSnapshot(mFile);
+    Stats loaded = snapshot.load(new StatsHistory());
+    // The counters record is fine, the project one isn't
+    assertEquals(2, loaded.allTime);
+    assertEquals(1, loaded.getProjectCount("Work"));
+    assertTrue(snapshot.needsFullWrite());
+
+    byte[] data = StatsSnapshot.encode(stats);
+    data[data.length - 1] ^= 1;
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    assertEquals(0, StatsSnapshot.read(buffer, new StatsHistory()).allTime);
+    assertEquals(5, buffer.position());
+
+    snapshot.append(loaded, false, Arrays.asList("Work"), mHistory, NO_DAYS);
+    assertTrue(mFile.length() <= goodLength + 8);
+    assertEquals(2, new StatsSnapshot(mFile).load(new StatsHistory()).allTime);
+  }
+
+  /**
+   * Tests that files that aren't snapshots, or from newer versions, aren't read.
+   */
+  public void testUnknownFilesRejected() {
+    byte[] data = StatsSnapshot.encode(new Stats());
+    data[4] = StatsSnapshot.VERSION + 1;
+    try {
+      StatsSnapshot.read(ByteBuffer.wrap(data), new StatsHistory());
+      fail("Reading a newer version should've thrown an exception");
+    }
+    catch (IOException e) {
+    }
+    try {
+      StatsSnapshot.read(ByteBuffer.wrap("projects".getBytes()), new StatsHistory());
+      fail("Reading something else should've thrown an exception");
+    }
+    catch (IOException e) {
+    }
+  }
+
+  /**
+   * Tests that a file that can't be read is moved aside instead of being overwritten by the next save.
+   */
+  public void testUnreadableFileMovedAside() throws IOException {
+    byte[] data = StatsSnapshot.encode(new Stats().addProject("Work").incrementCounter("Work"));
+    data[4] = StatsSnapshot.VERSION + 1;
+    FileOutputStream output = new FileOutputStream(mFile);
+    try {
+      output.write(data);
+    }
+    finally {
+      output.close();
+    }
+
+    StatsSnapshot snapshot = new StatsSnapshot(mFile);
+    try {
+      snapshot.load(new StatsHistory());
+      fail("Loading a newer version should've thrown an exception");
+    }
+    catch (IOException e) {
+    }
+    assertFalse(mFile.exists());
+    assertEquals(data.length, mBadFile.length());
+    assertTrue(snapshot.needsFullWrite());
+
+    snapshot.append(new Stats().addProject("Home"), true, Arrays.asList("Home"), mHistory, NO_DAYS);
+    assertEquals(1, new StatsSnapshot(mFile).load(new StatsHistory()).getProjects().size());
+    assertEquals(data.length, mBadFile.length());
+  }
+
+  /**
+   * Tests that the string set of older versions is moved to a snapshot, names with commas included.
+   */
+  public void testLegacyStringSetMigrated() throws IOException {
+    Context context = getInstrumentation().getTargetContext();
+    Set<String> projectSet = new HashSet<String>();
+    projectSet.add("Work,3");
+    projectSet.add("Reading, writing,12");
+    Map<String, Object> dataMap = new HashMap<String, Object>();
+    dataMap.put(context.getString(R.string.projects_key), projectSet);
+    Stats legacy = new Stats(context, new MockSharedPreferences(dataMap));
+    new StatsSnapshot(mFile).writeFull(legacy, mHistory);
+
+    Stats loaded = new StatsSnapshot(mFile).load(new StatsHistory());
+    assertEquals(3, loaded.getProjectCount("Work"));
+    assertEquals(12, loaded.getProjectCount("Reading, writing"));
+    assertEquals(2, loaded.getProjects().size());
+  }
+
+  /**
+   * Tests loading a snapshot with lots of projects.
+   */
+  public void testManyProjects() throws IOException {
+    ProjectCounters.Builder builder = new ProjectCounters.Builder();
+    for (int i = 0; i < 10000; ++i) {
+      builder.add("Project number " + i, i);
+    }
+    Stats stats = new Stats(5, 5000, 300, builder.build());
+    new StatsSnapshot(mFile).writeFull(stats, mHistory);
+
+    long start = System.nanoTime();
+    Stats loaded = new StatsSnapshot(mFile).load(new StatsHistory());
+    long elapsed = System.nanoTime() - start;
+    assertEquals(10000, loaded.getProjects().size());
+    for (Map.Entry<String, Integer> project : stats.getProjects().entrySet()) {
+      assertEquals((int) project.getValue(), loaded.getProjectCount(project.getKey()));
+    }
+    // Generous, it's a few milliseconds on a phone
+    assertTrue("Took " + elapsed / 1000000 + "ms", elapsed < 1000000000L);
+  }
+}
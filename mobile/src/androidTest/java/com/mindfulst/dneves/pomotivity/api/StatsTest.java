@@ -5,6 +5,9 @@ import android.content.SharedPreferences;
 import android.test.InstrumentationTestCase;
 import android.test.MoreAsserts;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 /**
  * Tests the Stats class.
  */
@@ -196,6 +199,31 @@ public class StatsTest extends InstrumentationTestCase {
     assertEquals(1, (int) stats.getProjects().get(projectTwo));
   }
 
+  /**
+   * Tests that old stats don't change when newer ones add and increment projects, with more than a leaf of them.
+   */
+  public void testOldStatsDontChange() {
+    Stats stats = new Stats();
+    for (int i = 0; i < 100; ++i) {
+      stats = stats.addProject("Project " + i);
+    }
+    Stats old = stats.incrementCounter("Project 50");
+    Stats newer = old;
+    for (int i = 0; i < 100; ++i) {
+      newer = newer.addProject("Other " + i).incrementCounter("Project " + i);
+    }
+    assertEquals(1, old.allTime);
+    assertEquals(100, old.getProjects().size());
+    assertEquals(1, old.getProjectCount("Project 50"));
+    assertEquals(0, old.getProjectCount("Project 99"));
+    assertFalse(old.getProjects().containsKey("Other 0"));
+    assertEquals(101, newer.allTime);
+    assertEquals(200, newer.getProjects().size());
+    assertEquals(2, newer.getProjectCount("Project 50"));
+    assertEquals(1, newer.getProjectCount("Project 99"));
+    assertEquals(0, newer.getProjectCount("Other 99"));
+  }
+
   /**
    * Tests if incrementing the day with default values returns the same + 1 day.
    */
@@ -255,7 +283,7 @@ public class StatsTest extends InstrumentationTestCase {
   /**
    * Tests if saving saves all values and projects.
    */
-  public void testSave() {
+  public void testSave() throws IOException {
     final String projectOne = "One";
     final String projectTwo = "Two";
     Stats stats = new Stats();
@@ -265,13 +293,7 @@ public class StatsTest extends InstrumentationTestCase {
     stats = stats.nextDay().nextDay().nextDay();
     stats = stats.incrementCounter(projectTwo);
 
-    final Context context = getInstrumentation().getTargetContext();
-    SharedPreferences prefs = MockSharedPreferences.createEmpty();
-    MockSharedPreferences.MockEditor editor = (MockSharedPreferences.MockEditor) prefs.edit();
-    stats.save(context, editor);
-    editor.apply();
-
-    Stats loaded = new Stats(context, prefs);
+    Stats loaded = StatsSnapshot.read(ByteBuffer.wrap(StatsSnapshot.encode(stats)), new StatsHistory());
     assertEquals(1, loaded.finishedToday);
     assertEquals(3, loaded.allTime);
     assertEquals(3, loaded.totalDays);
@@ -0,0 +1,137 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the TimingWheelScheduler class.
+ */
+public class TimingWheelSchedulerTest extends TestCase {
+  private TimingWheelScheduler mScheduler;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mScheduler = new TimingWheelScheduler(1, TimeUnit.MILLISECONDS, 2);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mScheduler.shutdown();
+    super.tearDown();
+  }
+
+  /**
+   * Tests that a task runs once and never before its delay.
+   */
+  public void testScheduleRunsAfterDelay() throws InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final long start = System.nanoTime();
+    final long[] ranAfter = new long[1];
+    mScheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        ranAfter[0] = System.nanoTime() - start;
+        latch.countDown();
+      }
+    }, 50, TimeUnit.MILLISECONDS);
+
+    assertTrue(latch.await(2, TimeUnit.SECONDS));
+    assertTrue(ranAfter[0] >= TimeUnit.MILLISECONDS.toNanos(50));
+    assertEquals(0, mScheduler.getTimerCount());
+  }
+
+  /**
+   * Tests that a delay longer than the first level of the wheel cascades down and still runs.
+   */
+  public void testScheduleCascadesFromUpperLevels() throws InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final long start = System.nanoTime();
+    final long[] ranAfter = new long[1];
+    mScheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        ranAfter[0] = System.nanoTime() - start;
+        latch.countDown();
+      }
+    }, 600, TimeUnit.MILLISECONDS);
+
+    assertTrue(latch.await(3, TimeUnit.SECONDS));
+    assertTrue(ranAfter[0] >= TimeUnit.MILLISECONDS.toNanos(600));
+  }
+
+  /**
+   * Tests that a cancelled task never runs.
+   */
+  public void testCancelledTaskDoesNotRun() throws InterruptedException {
+    final AtomicInteger runs = new AtomicInteger(0);
+    PomodoroScheduler.ScheduledTask task = mScheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        runs.incrementAndGet();
+      }
+    }, 30, TimeUnit.MILLISECONDS);
+
+    assertTrue(task.cancel());
+    assertTrue(task.isCancelled());
+    assertFalse(task.cancel());
+    assertEquals(0, mScheduler.getTimerCount());
+    Thread.sleep(100);
+    assertEquals(0, runs.get());
+  }
+
+  /**
+   * Tests that fixed rate tasks keep running until cancelled.
+   */
+  public void testFixedRateRunsUntilCancelled() throws InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(5);
+    final AtomicInteger runs = new AtomicInteger(0);
+    PomodoroScheduler.ScheduledTask task = mScheduler.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        runs.incrementAndGet();
+        latch.countDown();
+      }
+    }, 5, 5, TimeUnit.MILLISECONDS);
+
+    assertTrue(latch.await(2, TimeUnit.SECONDS));
+    assertEquals(1, mScheduler.getTimerCount());
+    task.cancel();
+    assertEquals(0, mScheduler.getTimerCount());
+    // Let a run that was already going finish
+    Thread.sleep(20);
+    int runsAfterCancel = runs.get();
+    Thread.sleep(50);
+    assertEquals(runsAfterCancel, runs.get());
+  }
+
+  /**
+   * Tests that lots of timers can wait at the same time and all of them run.
+   */
+  public void testManyTimers() throws InterruptedException {
+    final int timerCount = 100000;
+    final CountDownLatch latch = new CountDownLatch(timerCount / 2);
+    Runnable countDown = new Runnable() {
+      @Override
+      public void run() {
+        latch.countDown();
+      }
+    };
+
+    for (int i = 0; i < timerCount; ++i) {
+      PomodoroScheduler.ScheduledTask task = mScheduler.schedule(countDown, 10 + (i % 500), TimeUnit.MILLISECONDS);
+      // Cancel half of them
+      if (i % 2 == 1) {
+        task.cancel();
+      }
+    }
+
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+    // Let the counter settle after the last run
+    Thread.sleep(20);
+    assertEquals(0, mScheduler.getTimerCount());
+  }
+}
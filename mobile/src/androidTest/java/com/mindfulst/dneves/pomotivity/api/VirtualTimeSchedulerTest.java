@@ -0,0 +1,109 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the VirtualTimeScheduler class.
+ */
+public class VirtualTimeSchedulerTest extends TestCase {
+  private VirtualTimeScheduler mScheduler;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mScheduler = new VirtualTimeScheduler(1000);
+  }
+
+  /**
+   * Tests that nothing runs until the clock moves past the deadline.
+   */
+  public void testRunsOnlyWhenDue() {
+    final List<Long> runTimes = new ArrayList<Long>();
+    mScheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        runTimes.add(mScheduler.nanoTime());
+      }
+    }, 5, TimeUnit.SECONDS);
+
+    mScheduler.advanceBy(4999, TimeUnit.MILLISECONDS);
+    assertTrue(runTimes.isEmpty());
+    mScheduler.advanceBy(10, TimeUnit.SECONDS);
+    // Runs with the clock at its deadline, not where the clock ended up
+    assertEquals(Arrays.asList(TimeUnit.SECONDS.toNanos(5)), runTimes);
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(14999), mScheduler.nanoTime());
+    assertEquals(1000 + 14999, mScheduler.currentTimeMillis());
+  }
+
+  /**
+   * Tests that tasks due at the same time run in the order they were scheduled.
+   */
+  public void testSameDeadlineRunsInOrder() {
+    final StringBuilder order = new StringBuilder();
+    for (final String name : new String[]{"a", "b", "c"}) {
+      mScheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          order.append(name);
+        }
+      }, 1, TimeUnit.SECONDS);
+    }
+    mScheduler.execute(new Runnable() {
+      @Override
+      public void run() {
+        order.append("now");
+      }
+    });
+
+    mScheduler.advanceBy(1, TimeUnit.SECONDS);
+    assertEquals("nowabc", order.toString());
+  }
+
+  /**
+   * Tests that periodic tasks run at fixed rate until cancelled.
+   */
+  public void testPeriodicAndCancel() {
+    final int[] runs = new int[]{0};
+    PomodoroScheduler.ScheduledTask task = mScheduler.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        ++runs[0];
+      }
+    }, 1, 2, TimeUnit.SECONDS);
+
+    mScheduler.advanceBy(10, TimeUnit.SECONDS);
+    assertEquals(5, runs[0]);
+    assertTrue(task.cancel());
+    assertFalse(task.cancel());
+    assertTrue(task.isCancelled());
+    mScheduler.advanceBy(10, TimeUnit.SECONDS);
+    assertEquals(5, runs[0]);
+    assertEquals(0, mScheduler.getTaskCount());
+  }
+
+  /**
+   * Tests that tasks scheduled while advancing run in the same advance if they're due before its end.
+   */
+  public void testTasksScheduledWhileAdvancing() {
+    final List<Long> runTimes = new ArrayList<Long>();
+    mScheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        mScheduler.schedule(new Runnable() {
+          @Override
+          public void run() {
+            runTimes.add(mScheduler.nanoTime());
+          }
+        }, 1, TimeUnit.SECONDS);
+      }
+    }, 1, TimeUnit.SECONDS);
+
+    mScheduler.advanceBy(2, TimeUnit.SECONDS);
+    assertEquals(Arrays.asList(TimeUnit.SECONDS.toNanos(2)), runTimes);
+  }
+}
@@ -0,0 +1,217 @@
+package com.mindfulst.dneves.pomotivity;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.AudioManager;
+import android.media.SoundPool;
+import android.util.Log;
+
+import com.mindfulst.dneves.pomotivity.api.EventJournal;
+import com.mindfulst.dneves.pomotivity.api.JournalListener;
+import com.mindfulst.dneves.pomotivity.api.PomodoroApi;
+import com.mindfulst.dneves.pomotivity.api.ProjectCatalog;
+import com.mindfulst.dneves.pomotivity.api.StateWriter;
+import com.mindfulst.dneves.pomotivity.api.StatsAggregator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Loads everything the UI needs before it can be used, on a background thread, once per process.
+ * <p/>
+ * This is the saved state of the session (stats, projects, last pomodoro date) and the writer that saves it, the
+ * event journal and the metrics aggregated from it, the sounds and the classes that are slow to initialise (the
+ * countdown texts). The UI shows what it can right away and binds the rest when it's ready.
+ */
+final class AppWarmup {
+  private static final String DEBUG_TAG = "pomowarmup";
+
+  /**
+   * Everything that was loaded.
+   */
+  static final class Loaded {
+    final SoundPool      player;
+    final int            tickSoundId;
+    final int            alarmSoundId;
+    final ProjectCatalog projects;
+    final StateWriter    writer;
+
+    private Loaded(SoundPool player, int tickSoundId, int alarmSoundId, ProjectCatalog projects,
+                   StateWriter writer) {
+      this.player = player;
+      this.tickSoundId = tickSoundId;
+      this.alarmSoundId = alarmSoundId;
+      this.projects = projects;
+      this.writer = writer;
+    }
+  }
+
+  private static AppWarmup mInstance = null;
+
+  private final FutureTask<Loaded> mTask;
+  // Guarded by itself, null once the task is done
+  private       List<Runnable>     mCallbacks = new ArrayList<Runnable>();
+
+  /**
+   * Starts the warmup, or gets the one already started by this process.
+   *
+   * @param context     Context used to load, its application context is kept.
+   * @param preferences Preferences with the saved state.
+   * @param api         Session to load.
+   * @return The warmup of this process.
+   */
+  static synchronized AppWarmup start(Context context, SharedPreferences preferences, PomodoroApi api) {
+    if (mInstance == null) {
+      mInstance = new AppWarmup(context.getApplicationContext(), preferences, api);
+    }
+    return mInstance;
+  }
+
+  private AppWarmup(final Context context, final SharedPreferences preferences, final PomodoroApi api) {
+    mTask = new FutureTask<Loaded>(new Callable<Loaded>() {
+      @Override
+      public Loaded call() {
+        long startTime = System.nanoTime();
+        api.load(context, preferences);
+        // Only after loading, saving before would overwrite the state
+        StateWriter writer = new StateWriter(api, context, preferences, StateWriter.DEFAULT_INTERVAL_MILLIS,
+                                             StateWriter.DEFAULT_BATCH_SIZE);
+        api.getEventBus().register(writer);
+        openJournal(context, api, writer);
+        // Only once the writer, journal and aggregator are registered, so they see the transitions it catches up on
+        api.restoreSession();
+        CountdownRenderer.prepareTexts();
+
+        // We need 2 channels, 1 for the tick the other for the end alarm
+        SoundPool player = new SoundPool(2, AudioManager.STREAM_MUSIC, 0);
+        int tickSoundId = player.load(context, R.raw.tick_sound, 1);
+        int alarmSoundId = player.load(context, R.raw.alarm_sound, 1);
+
+        Loaded loaded = new Loaded(player, tickSoundId, alarmSoundId, api.getProjectCatalog(), writer);
+        Log.d(DEBUG_TAG, "Warmup took " + ((System.nanoTime() - startTime) * 1e-6) + "ms");
+        return loaded;
+      }
+    }) {
+      @Override
+      protected void done() {
+        runCallbacks();
+      }
+    };
+
+    Thread thread = new Thread(mTask, "pomodoro-warmup");
+    thread.start();
+  }
+
+  /**
+   * Opens the journal and rebuilds the metrics from it, both keep up with the events of the session from then on.
+   * <p/>
+   * The metrics are restored from the last checkpoint and only the events journaled after it are replayed, then the
+   * checkpoint is saved again, and after every commit of the writer, so the next start replays only what happened
+   * since the last save. Nothing is journaled nor aggregated if the journal can't be opened.
+   */
+  private static void openJournal(Context context, PomodoroApi api, StateWriter writer) {
+    StatsAggregator aggregator = new StatsAggregator(TimeZone.getDefault());
+    File checkpoint = new File(context.getFilesDir(), "aggregates.bin");
+    try {
+      EventJournal journal = new EventJournal(new File(context.getFilesDir(), "journal"));
+      EventJournal.Reader reader;
+      try {
+        reader = journal.replay(aggregator.load(checkpoint));
+      }
+      catch (IOException e) {
+        Log.w(DEBUG_TAG, "Failed to restore the metrics checkpoint, replaying the whole journal: " + e.toString());
+        aggregator = new StatsAggregator(TimeZone.getDefault());
+        reader = journal.replay();
+      }
+      aggregator.replay(reader);
+      try {
+        aggregator.checkpoint(checkpoint);
+      }
+      catch (IOException e) {
+        Log.e(DEBUG_TAG, "Failed to save the metrics checkpoint: " + e.toString());
+      }
+      // The aggregator gets the events from the journal listener, with the offsets its checkpoints need
+      api.getEventBus().register(new JournalListener(journal, aggregator));
+      writer.setAggregator(aggregator, checkpoint);
+    }
+    catch (IOException e) {
+      Log.e(DEBUG_TAG, "Failed to open the event journal: " + e.toString());
+    }
+  }
+
+  /**
+   * @return Future that is done once everything was loaded.
+   */
+  Future<Loaded> getReady() {
+    return mTask;
+  }
+
+  /**
+   * Runs the callback once everything was loaded, right away if it already was.
+   *
+   * @param callback Callback to run.
+   * @param executor Executor where to run the callback.
+   */
+  void whenReady(final Runnable callback, final Executor executor) {
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        executor.execute(callback);
+      }
+    };
+    synchronized (this) {
+      if (mCallbacks != null) {
+        mCallbacks.add(task);
+        return;
+      }
+    }
+    task.run();
+  }
+
+  /**
+   * Gets what was loaded, waiting for it if it isn't ready yet.
+   *
+   * @return What was loaded.
+   * @throws RuntimeException if loading failed, as it would have if it was loaded in the UI thread.
+   */
+  Loaded getLoaded() {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return mTask.get();
+        }
+        catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    catch (ExecutionException e) {
+      throw new RuntimeException("Failed to load the app state", e.getCause());
+    }
+    finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void runCallbacks() {
+    List<Runnable> callbacks;
+    synchronized (this) {
+      callbacks = mCallbacks;
+      mCallbacks = null;
+    }
+    for (Runnable callback : callbacks) {
+      callback.run();
+    }
+  }
+}
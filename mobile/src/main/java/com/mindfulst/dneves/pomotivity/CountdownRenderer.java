@@ -0,0 +1,98 @@
+package com.mindfulst.dneves.pomotivity;
+
+import android.view.Choreographer;
+import android.widget.TextView;
+
+import com.mindfulst.dneves.pomotivity.api.PomodoroApi;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shows the time left of the current phase as "mm:ss".
+ * <p/>
+ * The texts are built once for every second a phase can have, so showing a time is only a table lookup. Building them
+ * takes a while, so it's done by prepareTexts() off the UI thread, times shown before that are formatted. Times can
+ * be shown from any thread, the view is only updated on the next frame and only with the last time shown before it,
+ * so a burst of ticks (e.g. after the app was in the background) costs a single setText().
+ */
+final class CountdownRenderer implements Choreographer.FrameCallback {
+  private static final int NO_TIME = -1;
+
+  private static final int MAX_SECONDS = Math.max(PomodoroApi.POMODORO_DURATION,
+                                                 Math.max(PomodoroApi.SHORT_BREAK_DURATION,
+                                                          PomodoroApi.LONG_BREAK_DURATION));
+
+  // null until prepareTexts() is done
+  private static volatile String[] mTimeTexts = null;
+
+  private final TextView      mView;
+  private final Choreographer mChoreographer;
+  private final AtomicInteger mPendingTime = new AtomicInteger(NO_TIME);
+
+  // Only touched by the UI thread
+  private int mShownTime = NO_TIME;
+
+  /**
+   * Constructor, must be called from the UI thread.
+   *
+   * @param view View where to show the time.
+   */
+  CountdownRenderer(TextView view) {
+    mView = view;
+    mChoreographer = Choreographer.getInstance();
+  }
+
+  /**
+   * Shows the time on the next frame, can be called from any thread.
+   *
+   * @param seconds Time to show.
+   */
+  void show(int seconds) {
+    if (mPendingTime.getAndSet(seconds) == NO_TIME) {
+      mChoreographer.postFrameCallback(this);
+    }
+  }
+
+  @Override
+  public void doFrame(long frameTimeNanos) {
+    int seconds = mPendingTime.getAndSet(NO_TIME);
+    if (seconds == NO_TIME || seconds == mShownTime) {
+      return;
+    }
+    mShownTime = seconds;
+    mView.setText(getText(seconds));
+  }
+
+  /**
+   * Gets the "mm:ss" text of a time.
+   *
+   * @param seconds Time to format.
+   * @return The text, the same instance for the same time within the duration of a phase once they're prepared.
+   */
+  static String getText(int seconds) {
+    String[] texts = mTimeTexts;
+    if (texts != null && seconds >= 0 && seconds < texts.length) {
+      return texts[seconds];
+    }
+    return formatTime(seconds);
+  }
+
+  /**
+   * Builds the texts of all the times, call it from a background thread before showing them.
+   * Does nothing if they're already built.
+   */
+  static void prepareTexts() {
+    if (mTimeTexts != null) {
+      return;
+    }
+    String[] texts = new String[MAX_SECONDS + 1];
+    for (int i = 0; i < texts.length; ++i) {
+      texts[i] = formatTime(i).intern();
+    }
+    mTimeTexts = texts;
+  }
+
+  private static String formatTime(int seconds) {
+    return String.format("%02d:%02d", seconds / 60, seconds % 60);
+  }
+}
@@ -4,7 +4,6 @@ import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.content.SharedPreferences;
 import android.media.AudioManager;
 import android.media.SoundPool;
 import android.os.Bundle;
@@ -23,15 +22,14 @@ import android.widget.Toast;
 import android.widget.ToggleButton;
 import android.widget.ViewSwitcher;
 
+import com.mindfulst.dneves.pomotivity.api.ExecutorScheduler;
 import com.mindfulst.dneves.pomotivity.api.PomodoroApi;
+import com.mindfulst.dneves.pomotivity.api.PomodoroEngine;
+import com.mindfulst.dneves.pomotivity.api.PomodoroEventBus;
+import com.mindfulst.dneves.pomotivity.api.ProjectCatalog;
+import com.mindfulst.dneves.pomotivity.api.StateWriter;
 
-import org.joda.time.Period;
-import org.joda.time.format.PeriodFormatter;
-import org.joda.time.format.PeriodFormatterBuilder;
-
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.Executor;
 
 
 /**
@@ -40,42 +38,49 @@ import java.util.Set;
 public class MainActivity extends Activity {
   private static final String DEBUG_TAG = "pomoui";
 
-  /**
-   * A simple Singleton wrapper around the Api.
-   */
-  static class PomodoroApiWrapper extends PomodoroApi {
-    private static PomodoroApi mInstance = null;
+  // The app only runs the local user's session, on a scheduler with a single thread (same as a PomodoroApi on its
+  // own) because a timing wheel would wake up every tick
+  private static final PomodoroEngine ENGINE           = new PomodoroEngine(1, new ExecutorScheduler());
+  private static final String         LOCAL_SESSION_ID = "local";
 
-    public static PomodoroApi getOrCreate() {
-      if (mInstance == null) {
-        mInstance = new PomodoroApi();
-      }
-      return mInstance;
-    }
+  private static PomodoroApi getApi() {
+    return ENGINE.getOrCreate(LOCAL_SESSION_ID);
   }
 
   private ViewSwitcher mSwitcher = null;
 
-  private Set<String>          mProjectSet       = null;
+  private ProjectCatalog       mProjectCatalog   = null;
   private ArrayAdapter<String> mProjectAdapter   = null;
   private AlertDialog          mAddProjectDialog = null;
 
+  private AppWarmup   mWarmup      = null;
+  private StateWriter mWriter      = null;
+  private boolean     mIsDestroyed = false;
+
   private SoundPool mPlayer = null;
 
   private static int mTickSoundId  = 0;
   private static int mTickStreamId = 0;
   private static int mAlarmSoundId = 0;
 
-  private PeriodFormatter mFormatter = null;
+  private CountdownRenderer mCountdownRenderer = null;
+
+  private PomodoroApi.TickSubscription mTickSubscription = null;
+
+  private PomodoroEventBus.Registration mListenerRegistration = null;
+
+  private final Executor mUiExecutor = new Executor() {
+    @Override
+    public void execute(Runnable task) {
+      runOnUiThread(task);
+    }
+  };
 
   private void setProjectTo(String projectName) {
-    // (-1 because last one is + Project)
-    for (int i = 0; i < mProjectAdapter.getCount() - 1; ++i) {
-      String item = mProjectAdapter.getItem(i);
-      if (item.equalsIgnoreCase(projectName)) {
-        ((Spinner) findViewById(R.id.current_project)).setSelection(i);
-        break;
-      }
+    // The adapter has the projects in the same order as the catalog
+    int position = mProjectCatalog.indexOf(projectName);
+    if (position >= 0) {
+      ((Spinner) findViewById(R.id.current_project)).setSelection(position);
     }
   }
 
@@ -97,22 +102,19 @@ public class MainActivity extends Activity {
             String message = String.format(getResources().getString(R.string.project_reserved_warning), newProjectName);
             Toast.makeText(getApplicationContext(), message, Toast.LENGTH_SHORT).show();
           }
-          else if (mProjectSet.contains(newProjectName.toLowerCase())) {
-            // Somewhere in the list already, find it and select
+          else if (mProjectCatalog.contains(newProjectName)) {
+            // Somewhere in the list already, select it
             setProjectTo(newProjectName);
           }
           else {
-            // New project, add it
-            mProjectSet.add(newProjectName.toLowerCase());
-            mProjectAdapter.insert(newProjectName, 0);
+            // New project, add it where it goes in the sorted list
+            mProjectCatalog = mProjectCatalog.with(newProjectName);
+            mProjectAdapter.insert(newProjectName, mProjectCatalog.indexOf(newProjectName));
             mProjectAdapter.notifyDataSetChanged();
-            Spinner projectChooser = (Spinner) findViewById(R.id.current_project);
-            if (projectChooser.getSelectedItemPosition() != 0) {
-              projectChooser.setSelection(0);
-            }
-            else {
-              PomodoroApiWrapper.getOrCreate().setCurrentProject(newProjectName);
-            }
+            // The positions after it moved, so don't rely on the selection changing
+            getApi().setCurrentProject(newProjectName);
+            mWriter.requestSave();
+            setProjectTo(newProjectName);
           }
         }
       }
@@ -132,16 +134,44 @@ public class MainActivity extends Activity {
 
     mSwitcher = (ViewSwitcher) findViewById(R.id.view_switcher);
 
-    final PomodoroApi api = PomodoroApiWrapper.getOrCreate();
-    SharedPreferences preferences = getPreferences(Context.MODE_PRIVATE);
-    api.load(this, preferences);
+    findViewById(R.id.start_button).setOnClickListener(mStartButtonListener);
+    findViewById(R.id.stop_button).setOnClickListener(mStopButtonListener);
+    findViewById(R.id.pause_button).setOnClickListener(mPauseButtonListener);
+    findViewById(R.id.resume_button).setOnClickListener(mResumeButtonListener);
+
+    // Show the layout right away and bind the rest once it's loaded
+    setControlsEnabled(false);
+    mWarmup = AppWarmup.start(this, getPreferences(Context.MODE_PRIVATE), getApi());
+    // The layout shows the duration of a pomodoro until there's a time to show, the texts are built by the warmup
+    mCountdownRenderer = new CountdownRenderer((TextView) findViewById(R.id.current_time));
+    mWarmup.whenReady(new Runnable() {
+      @Override
+      public void run() {
+        if (!mIsDestroyed) {
+          bind(mWarmup.getLoaded());
+        }
+      }
+    }, mUiExecutor);
+  }
 
-    // We need 2 channels, 1 for the tick the other for the end alarm
-    if (mPlayer == null) {
-      mPlayer = new SoundPool(2, AudioManager.STREAM_MUSIC, 0);
-      mTickSoundId = mPlayer.load(this, R.raw.tick_sound, 1);
-      mAlarmSoundId = mPlayer.load(this, R.raw.alarm_sound, 1);
-    }
+  private void setControlsEnabled(boolean isEnabled) {
+    findViewById(R.id.start_button).setEnabled(isEnabled);
+    findViewById(R.id.stop_button).setEnabled(isEnabled);
+    findViewById(R.id.pause_button).setEnabled(isEnabled);
+    findViewById(R.id.resume_button).setEnabled(isEnabled);
+    findViewById(R.id.auto_start_toggle).setEnabled(isEnabled);
+    findViewById(R.id.current_project).setEnabled(isEnabled);
+  }
+
+  /**
+   * Binds the UI to the loaded state, on the UI thread.
+   */
+  private void bind(AppWarmup.Loaded loaded) {
+    final PomodoroApi api = getApi();
+    mPlayer = loaded.player;
+    mWriter = loaded.writer;
+    mTickSoundId = loaded.tickSoundId;
+    mAlarmSoundId = loaded.alarmSoundId;
 
     mProjectAdapter = new ArrayAdapter<String>(this, android.R.layout.simple_spinner_item) {
 
@@ -161,17 +191,12 @@ public class MainActivity extends Activity {
       }
 
     };
-    Collection<String> allProjects = api.getAllProjects();
-    mProjectSet = new HashSet<String>(allProjects.size());
-    for (String proj : allProjects) {
-      mProjectSet.add(proj.toLowerCase());
-    }
+    mProjectCatalog = loaded.projects;
     mProjectAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-    mProjectAdapter.addAll(allProjects);
+    mProjectAdapter.addAll(mProjectCatalog.getNames());
     // Always keep both of this last ;)
     mProjectAdapter.add(getResources().getString(R.string.project_add));
     mProjectAdapter.add(getResources().getString(R.string.project_hint));
-    mAddProjectDialog = createProjectDialog();
 
     Spinner projectChooser = (Spinner) findViewById(R.id.current_project);
     projectChooser.setAdapter(mProjectAdapter);
@@ -189,6 +214,10 @@ public class MainActivity extends Activity {
         if (position == parent.getCount() - 1) {
           // + Project
           Log.d(DEBUG_TAG, "Adding project");
+          // Only created the first time it's needed
+          if (mAddProjectDialog == null) {
+            mAddProjectDialog = createProjectDialog();
+          }
           mAddProjectDialog.getWindow().setSoftInputMode(WindowManager.LayoutParams.SOFT_INPUT_STATE_VISIBLE);
           parent.setSelection(lastSelection);
           mAddProjectDialog.show();
@@ -198,7 +227,8 @@ public class MainActivity extends Activity {
           if (position != parent.getCount()) {
             // User Project
             String projectName = ((TextView) view).getText().toString();
-            PomodoroApiWrapper.getOrCreate().setCurrentProject(projectName);
+            getApi().setCurrentProject(projectName);
+            mWriter.requestSave();
             Log.d(DEBUG_TAG, String.format("Setting to current project to %s", projectName));
           }
         }
@@ -209,133 +239,108 @@ public class MainActivity extends Activity {
       }
     });
 
-    findViewById(R.id.start_button).setOnClickListener(mStartButtonListener);
-    findViewById(R.id.stop_button).setOnClickListener(mStopButtonListener);
-    findViewById(R.id.pause_button).setOnClickListener(mPauseButtonListener);
-    findViewById(R.id.resume_button).setOnClickListener(mResumeButtonListener);
-
     ToggleButton autoStartToggle = (ToggleButton) findViewById(R.id.auto_start_toggle);
     autoStartToggle.setChecked(api.getAutoStart());
     autoStartToggle.setOnCheckedChangeListener(mAutoStartToggleListener);
 
-    mFormatter =
-        new PeriodFormatterBuilder().printZeroAlways().minimumPrintedDigits(2).appendMinutes().appendSeparator(":")
-                                    .printZeroAlways().minimumPrintedDigits(2).appendSeconds().toFormatter();
-    Period period = new Period(PomodoroApi.POMODORO_DURATION * 1000);
-    ((TextView) findViewById(R.id.current_time)).setText(mFormatter.print(period));
-
-    api.setPomodoroListener(new PomodoroApi.PomodoroEventListener() {
+    // Every event, ticks included, is queued in the mailbox of the executor and runs later on the UI thread, in
+    // order. Ticks that the UI thread can't keep up with are coalesced, only the latest one is delivered, and one
+    // still pending when a transition comes is dropped. Nothing here runs synchronously with the timer.
+    mListenerRegistration = api.getEventBus().register(new PomodoroApi.PomodoroEventListener() {
       @Override
       public void pomodoroStarted(final PomodoroApi.PomodoroEvent event) {
-        runOnUiThread(new Runnable() {
-          @Override
-          public void run() {
-            mTickStreamId = mPlayer.play(mTickSoundId, 1.0f, 1.0f, 1, -1, 1.0f);
-            if (mTickStreamId == 0) {
-              Log.e(DEBUG_TAG, "Oops, failed to play the tick sound");
-            }
-
-            AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-            audioManager.setStreamMute(AudioManager.STREAM_NOTIFICATION, true);
-            audioManager.setStreamMute(AudioManager.STREAM_RING, true);
-
-            resetButtonsVisibility(false, event.autoStart);
-          }
-        });
+        mTickStreamId = mPlayer.play(mTickSoundId, 1.0f, 1.0f, 1, -1, 1.0f);
+        if (mTickStreamId == 0) {
+          Log.e(DEBUG_TAG, "Oops, failed to play the tick sound");
+        }
+
+        AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+        audioManager.setStreamMute(AudioManager.STREAM_NOTIFICATION, true);
+        audioManager.setStreamMute(AudioManager.STREAM_RING, true);
+
+        resetButtonsVisibility(false, event.autoStart);
       }
 
       @Override
       public void pomodoroTicked(final PomodoroApi.PomodoroEvent event) {
-        runOnUiThread(new Runnable() {
-          @Override
-          public void run() {
-            Period period = new Period(event.currentTime * 1000);
-            ((TextView) findViewById(R.id.current_time)).setText(mFormatter.print(period));
-          }
-        });
+        mCountdownRenderer.show(event.currentTime);
       }
 
       @Override
       public void pomodoroEnded(final PomodoroApi.PomodoroEvent event) {
-        runOnUiThread(new Runnable() {
-          @Override
-          public void run() {
-            mPlayer.play(mAlarmSoundId, 1.0f, 1.0f, 2, 0, 1.0f);
-            AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-            audioManager.setStreamMute(AudioManager.STREAM_NOTIFICATION, false);
-            audioManager.setStreamMute(AudioManager.STREAM_RING, false);
-          }
-        });
+        mPlayer.play(mAlarmSoundId, 1.0f, 1.0f, 2, 0, 1.0f);
+        AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+        audioManager.setStreamMute(AudioManager.STREAM_NOTIFICATION, false);
+        audioManager.setStreamMute(AudioManager.STREAM_RING, false);
       }
 
       @Override
       public void breakStarted(final PomodoroApi.PomodoroEvent event) {
-        runOnUiThread(new Runnable() {
-          @Override
-          public void run() {
-            mSwitcher.showNext();
-            Period period = new Period(event.currentTime * 1000);
-            ((TextView) findViewById(R.id.current_time)).setText(mFormatter.print(period));
-          }
-        });
+        mSwitcher.showNext();
+        mCountdownRenderer.show(event.currentTime);
       }
 
       @Override
       public void pomodoroFinished(final PomodoroApi.PomodoroEvent event) {
-        runOnUiThread(new Runnable() {
-          @Override
-          public void run() {
-            resetButtonsVisibility(true, event.autoStart);
-
-            if (event.currentTime > 0) {
-              AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-              audioManager.setStreamMute(AudioManager.STREAM_NOTIFICATION, false);
-              audioManager.setStreamMute(AudioManager.STREAM_RING, false);
-            }
-            else {
-              mPlayer.play(mAlarmSoundId, 1.0f, 1.0f, 2, 0, 1.0f);
-            }
-            if (mTickStreamId != 0) {
-              mPlayer.stop(mTickStreamId);
-            }
-
-            if (event.currentState != PomodoroApi.PomodoroState.POMODORO) {
-              mSwitcher.showPrevious();
-            }
-            Period period = new Period(PomodoroApi.POMODORO_DURATION * 1000);
-            ((TextView) findViewById(R.id.current_time)).setText(mFormatter.print(period));
-          }
-        });
+        resetButtonsVisibility(true, event.autoStart);
+
+        if (event.currentTime > 0) {
+          AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+          audioManager.setStreamMute(AudioManager.STREAM_NOTIFICATION, false);
+          audioManager.setStreamMute(AudioManager.STREAM_RING, false);
+        }
+        else {
+          mPlayer.play(mAlarmSoundId, 1.0f, 1.0f, 2, 0, 1.0f);
+        }
+        if (mTickStreamId != 0) {
+          mPlayer.stop(mTickStreamId);
+        }
+
+        if (event.currentState != PomodoroApi.PomodoroState.POMODORO) {
+          mSwitcher.showPrevious();
+        }
+        mCountdownRenderer.show(PomodoroApi.POMODORO_DURATION);
       }
 
       @Override
       public void paused(PomodoroApi.PomodoroEvent event) {
-        runOnUiThread(new Runnable() {
-          @Override
-          public void run() {
-            if (mTickStreamId != 0) {
-              mPlayer.pause(mTickStreamId);
-            }
-
-            setButtonsVisibility(true);
-          }
-        });
+        if (mTickStreamId != 0) {
+          mPlayer.pause(mTickStreamId);
+        }
+
+        setButtonsVisibility(true);
       }
 
       @Override
       public void resumed(PomodoroApi.PomodoroEvent event) {
-        runOnUiThread(new Runnable() {
-          @Override
-          public void run() {
-            if (mTickStreamId != 0) {
-              mPlayer.resume(mTickStreamId);
-            }
-
-            setButtonsVisibility(false);
-          }
-        });
+        if (mTickStreamId != 0) {
+          mPlayer.resume(mTickStreamId);
+        }
+
+        setButtonsVisibility(false);
       }
-    });
+    }, mUiExecutor);
+
+    // The session can be running already, e.g. restored from its checkpoint when it was loaded
+    PomodoroApi.PomodoroState state = api.getCurrentState();
+    if (state != PomodoroApi.PomodoroState.NONE) {
+      setButtonsVisibility(api.isPaused());
+      // Not showNext(), the restored break could have been notified already
+      mSwitcher.setDisplayedChild(state == PomodoroApi.PomodoroState.POMODORO ? 0 : 1);
+      mCountdownRenderer.show(api.getCurrentTime());
+    }
+    setControlsEnabled(true);
+  }
+
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    mIsDestroyed = true;
+    // The session outlives the activity, don't keep delivering to this one
+    if (mListenerRegistration != null) {
+      mListenerRegistration.unregister();
+      mListenerRegistration = null;
+    }
   }
 
   private void resetButtonsVisibility(boolean isFinishing, boolean isAutoStart) {
@@ -366,13 +371,26 @@ public class MainActivity extends Activity {
     }
   }
 
+  @Override
+  protected void onResume() {
+    super.onResume();
+    // Only tick while the time is visible, the timer runs tickless otherwise
+    mTickSubscription = getApi().subscribeTicks(PomodoroApi.TickGranularity.SECOND);
+  }
+
   @Override
   protected void onPause() {
     super.onPause();
-    SharedPreferences preferences = getPreferences(Context.MODE_PRIVATE);
-    SharedPreferences.Editor editor = preferences.edit();
-    PomodoroApiWrapper.getOrCreate().save(this, editor);
-    editor.apply();
+    if (mTickSubscription != null) {
+      mTickSubscription.cancel();
+      mTickSubscription = null;
+    }
+    // The writer only exists once the state was loaded, saving before would overwrite it
+    if (mWriter != null) {
+      // The process can be killed any time after this, start saving (and checkpointing the metrics) right away but
+      // never wait for the disk here
+      mWriter.flush();
+    }
   }
 
   View.OnClickListener mStartButtonListener = new View.OnClickListener() {
@@ -380,7 +398,7 @@ public class MainActivity extends Activity {
     @Override
     public void onClick(View view) {
       try {
-        PomodoroApiWrapper.getOrCreate().start();
+        getApi().start();
       }
       catch (PomodoroApi.AlreadyRunningException e) {
         e.printStackTrace();
@@ -392,7 +410,7 @@ public class MainActivity extends Activity {
 
     @Override
     public void onClick(View view) {
-      PomodoroApiWrapper.getOrCreate().stop();
+      getApi().stop();
     }
   };
 
@@ -400,7 +418,7 @@ public class MainActivity extends Activity {
 
     @Override
     public void onClick(View view) {
-      PomodoroApiWrapper.getOrCreate().pause();
+      getApi().pause();
     }
   };
 
@@ -408,14 +426,15 @@ public class MainActivity extends Activity {
 
     @Override
     public void onClick(View view) {
-      PomodoroApiWrapper.getOrCreate().resume();
+      getApi().resume();
     }
   };
 
   CompoundButton.OnCheckedChangeListener mAutoStartToggleListener = new CompoundButton.OnCheckedChangeListener() {
     @Override
     public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-      PomodoroApiWrapper.getOrCreate().setAutoStart(isChecked);
+      getApi().setAutoStart(isChecked);
+      mWriter.requestSave();
     }
   };
 }
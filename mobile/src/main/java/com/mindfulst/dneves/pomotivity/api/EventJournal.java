@@ -0,0 +1,346 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import com.mindfulst.dneves.pomotivity.api.PomodoroApi.ListenerAction;
+import com.mindfulst.dneves.pomotivity.api.PomodoroApi.PomodoroState;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Append only journal of pomodoro events, so the whole history can be replayed (e.g. to recompute the stats).
+ * <p/>
+ * Records are written to memory mapped segment files of a fixed size, a new segment is started when a record doesn't
+ * fit the current one. Appending only copies the values into the mapped memory, so it's about as fast as writing to
+ * an array and doesn't allocate anything (except when rolling to a new segment).
+ * <p/>
+ * Record layout:
+ * length (int) - of the whole record, written last so a record is only visible once complete, 0 marks the end
+ * action (byte) - ListenerAction ordinal
+ * phase (byte) - PomodoroState ordinal
+ * flags (byte) - FLAG_AUTO_START
+ * unused (byte)
+ * currentTime (int) - same as the event
+ * time (long) - wall clock time of the event, in milliseconds since the epoch
+ * project length (short) - in chars
+ * project (chars)
+ * <p/>
+ * A position in the journal is an offset: the index of the segment in the high 32 bits and the position in it in the
+ * low ones. A reader can start at the offset where an earlier one stopped, e.g. to only replay what was appended
+ * after a checkpoint of the events replayed before.
+ */
+public class EventJournal {
+  public static final int  DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+  // Offset of the first record
+  public static final long START_OFFSET         = 0;
+
+  private static final String SEGMENT_PREFIX = "journal-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+
+  private static final int HEADER_SIZE     = 22;
+  private static final int FLAG_AUTO_START = 1;
+  // Longest project name that is stored, longer names are cut
+  private static final int MAX_PROJECT     = Short.MAX_VALUE;
+
+  private static final ListenerAction[] ACTIONS = ListenerAction.values();
+  private static final PomodoroState[]  PHASES  = PomodoroState.values();
+
+  private static final FilenameFilter SEGMENT_FILTER = new FilenameFilter() {
+    @Override
+    public boolean accept(File directory, String name) {
+      return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+    }
+  };
+
+  /**
+   * Sequential reader of the journal, from the first record to the last one written when it reaches it.
+   * <p/>
+   * It's a flyweight: next() moves it to the next record and the getters read the values of the current one, so
+   * replaying doesn't allocate per record.
+   */
+  public static final class Reader {
+    private final File[]           mSegments;
+    private final long             mStartOffset;
+    // Where to start in the first segment
+    private       int              mFirstPosition;
+    private       int              mSegment  = -1;
+    private       MappedByteBuffer mBuffer   = null;
+    private       int              mPosition = 0;
+    private       int              mLength   = 0;
+
+    private Reader(File[] segments, long startOffset) {
+      mSegments = segments;
+      mStartOffset = startOffset;
+      mFirstPosition = getPosition(startOffset);
+    }
+
+    /**
+     * Moves to the next record.
+     *
+     * @return false if there are no more records.
+     * @throws IOException if a segment can't be read.
+     */
+    public boolean next() throws IOException {
+      mPosition += mLength;
+      mLength = 0;
+      while (true) {
+        if (mBuffer != null && mPosition + HEADER_SIZE <= mBuffer.capacity()) {
+          int length = mBuffer.getInt(mPosition);
+          if (length > 0) {
+            mLength = length;
+            return true;
+          }
+        }
+        if (mSegment + 1 >= mSegments.length) {
+          return false;
+        }
+        mBuffer = map(mSegments[++mSegment], FileChannel.MapMode.READ_ONLY, 0);
+        mPosition = mFirstPosition;
+        mFirstPosition = 0;
+      }
+    }
+
+    /**
+     * Gets the offset right after the current record, once next() returns false it's the end of the journal.
+     *
+     * @return Offset where a reader created with replay(long) carries on from this one.
+     */
+    public long getOffset() {
+      if (mSegment < 0) {
+        return mStartOffset;
+      }
+      return toOffset(parseIndex(mSegments[mSegment]), mPosition + mLength);
+    }
+
+    public ListenerAction getAction() {
+      return ACTIONS[mBuffer.get(mPosition + 4)];
+    }
+
+    public PomodoroState getPhase() {
+      return PHASES[mBuffer.get(mPosition + 5)];
+    }
+
+    public boolean getAutoStart() {
+      return (mBuffer.get(mPosition + 6) & FLAG_AUTO_START) != 0;
+    }
+
+    public int getCurrentTime() {
+      return mBuffer.getInt(mPosition + 8);
+    }
+
+    /**
+     * @return Wall clock time of the event, in milliseconds since the epoch.
+     */
+    public long getTime() {
+      return mBuffer.getLong(mPosition + 12);
+    }
+
+    /**
+     * Appends the project of the current record, doesn't allocate if the builder has enough room.
+     *
+     * @param builder Where to append the project name.
+     */
+    public void appendProject(StringBuilder builder) {
+      int length = mBuffer.getShort(mPosition + 20);
+      for (int i = 0; i < length; ++i) {
+        builder.append(mBuffer.getChar(mPosition + HEADER_SIZE + i * 2));
+      }
+    }
+
+    /**
+     * @return The project of the current record, empty if there wasn't one.
+     */
+    public String getProject() {
+      StringBuilder builder = new StringBuilder(mBuffer.getShort(mPosition + 20));
+      appendProject(builder);
+      return builder.toString();
+    }
+  }
+
+  private final File mDirectory;
+  private final int  mSegmentSize;
+
+  // All guarded by this
+  private int              mSegmentIndex;
+  private MappedByteBuffer mBuffer;
+  private int              mPosition;
+
+  /**
+   * Constructor with the default segment size.
+   *
+   * @param directory Directory of the segment files, created if it doesn't exist.
+   * @throws IOException if the journal can't be opened.
+   */
+  public EventJournal(File directory) throws IOException {
+    this(directory, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Constructor, appends after the last record of an existing journal.
+   *
+   * @param directory   Directory of the segment files, created if it doesn't exist.
+   * @param segmentSize Size of each segment file in bytes.
+   * @throws IOException if the journal can't be opened.
+   */
+  public EventJournal(File directory, int segmentSize) throws IOException {
+    if (segmentSize < HEADER_SIZE + 4) {
+      throw new IllegalArgumentException("Segments are too small for a single record");
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Can't create the journal directory " + directory);
+    }
+    mDirectory = directory;
+
+    File[] segments = listSegments(directory);
+    if (segments.length == 0) {
+      mSegmentSize = segmentSize;
+      openSegment(0);
+      return;
+    }
+
+    // Keep going in the last segment, with the size it was created with
+    File last = segments[segments.length - 1];
+    mSegmentSize = (int) last.length();
+    mSegmentIndex = parseIndex(last);
+    mBuffer = map(last, FileChannel.MapMode.READ_WRITE, mSegmentSize);
+    mPosition = 0;
+    int length;
+    while (mPosition + HEADER_SIZE <= mSegmentSize && (length = mBuffer.getInt(mPosition)) > 0) {
+      mPosition += length;
+    }
+  }
+
+  /**
+   * Appends an event.
+   *
+   * @param action      Action of the event.
+   * @param phase       Phase of the event.
+   * @param autoStart   Auto start flag of the event.
+   * @param currentTime Time of the event (seconds left or to go, see PomodoroEvent).
+   * @param time        Wall clock time of the event, in milliseconds since the epoch.
+   * @param project     Current project, null or empty if none.
+   * @return Offset right after the event, where a reader created with replay(long) carries on after it.
+   * @throws IOException if it had to start a new segment and couldn't.
+   */
+  public synchronized long append(ListenerAction action, PomodoroState phase, boolean autoStart, int currentTime,
+                                  long time, CharSequence project) throws IOException {
+    int projectLength = project == null ? 0 : Math.min(project.length(), MAX_PROJECT);
+    int length = HEADER_SIZE + projectLength * 2;
+    // Always leave room for the end marker
+    if (mPosition + length + 4 > mSegmentSize) {
+      if (length + 4 > mSegmentSize) {
+        throw new IllegalArgumentException("Record doesn't fit a segment, project name too long");
+      }
+      mBuffer.force();
+      openSegment(mSegmentIndex + 1);
+    }
+
+    MappedByteBuffer buffer = mBuffer;
+    int position = mPosition;
+    buffer.put(position + 4, (byte) action.ordinal());
+    buffer.put(position + 5, (byte) phase.ordinal());
+    buffer.put(position + 6, (byte) (autoStart ? FLAG_AUTO_START : 0));
+    buffer.putInt(position + 8, currentTime);
+    buffer.putLong(position + 12, time);
+    buffer.putShort(position + 20, (short) projectLength);
+    for (int i = 0; i < projectLength; ++i) {
+      buffer.putChar(position + HEADER_SIZE + i * 2, project.charAt(i));
+    }
+    // Last, so readers only see complete records
+    buffer.putInt(position, length);
+    mPosition = position + length;
+    return toOffset(mSegmentIndex, mPosition);
+  }
+
+  /**
+   * Writes the appended records to the storage.
+   * They're written eventually anyway, even if the app is killed, this is only needed to survive a power loss.
+   */
+  public synchronized void flush() {
+    mBuffer.force();
+  }
+
+  /**
+   * @return Number of segment files.
+   */
+  public synchronized int getSegmentCount() {
+    return listSegments(mDirectory).length;
+  }
+
+  /**
+   * Creates a reader of all the records, starting at the first one.
+   *
+   * @return New reader.
+   */
+  public Reader replay() {
+    return new Reader(listSegments(mDirectory), START_OFFSET);
+  }
+
+  /**
+   * Creates a reader of the records from an offset on.
+   *
+   * @param offset Offset where to start, from Reader.getOffset().
+   * @return New reader.
+   * @throws IOException if the offset isn't in this journal (e.g. it was deleted since).
+   */
+  public Reader replay(long offset) throws IOException {
+    if (offset == START_OFFSET) {
+      return replay();
+    }
+    File[] segments = listSegments(mDirectory);
+    int index = (int) (offset >>> 32);
+    for (int i = 0; i < segments.length; ++i) {
+      if (parseIndex(segments[i]) == index && getPosition(offset) <= segments[i].length()) {
+        return new Reader(Arrays.copyOfRange(segments, i, segments.length), offset);
+      }
+    }
+    throw new IOException("Offset " + Long.toHexString(offset) + " isn't in the journal " + mDirectory);
+  }
+
+  private void openSegment(int index) throws IOException {
+    File file = new File(mDirectory, String.format("%s%08d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    mBuffer = map(file, FileChannel.MapMode.READ_WRITE, mSegmentSize);
+    mSegmentIndex = index;
+    mPosition = 0;
+  }
+
+  private static long toOffset(int segmentIndex, int position) {
+    return ((long) segmentIndex << 32) | position;
+  }
+
+  private static int getPosition(long offset) {
+    return (int) offset;
+  }
+
+  private static File[] listSegments(File directory) {
+    File[] segments = directory.listFiles(SEGMENT_FILTER);
+    if (segments == null) {
+      return new File[0];
+    }
+    // The index is zero padded, so sorting by name sorts by index
+    Arrays.sort(segments);
+    return segments;
+  }
+
+  private static int parseIndex(File segment) {
+    String name = segment.getName();
+    return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  private static MappedByteBuffer map(File file, FileChannel.MapMode mode, int size) throws IOException {
+    RandomAccessFile randomAccessFile =
+        new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+    try {
+      // The mapping stays valid after closing the file
+      long length = mode == FileChannel.MapMode.READ_ONLY ? randomAccessFile.length() : size;
+      return randomAccessFile.getChannel().map(mode, 0, length);
+    }
+    finally {
+      randomAccessFile.close();
+    }
+  }
+}
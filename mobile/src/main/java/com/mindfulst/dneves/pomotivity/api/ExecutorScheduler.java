@@ -0,0 +1,73 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PomodoroScheduler backed by a ScheduledExecutorService.
+ * <p/>
+ * This is the default used by a PomodoroApi on its own (one thread per instance), which is fine for a single session
+ * on a device. Use TimingWheelScheduler when running lots of sessions in the same process.
+ */
+public class ExecutorScheduler implements PomodoroScheduler {
+  /**
+   * Wraps the future returned by the executor.
+   */
+  private static final class FutureTask implements ScheduledTask {
+    private final ScheduledFuture<?> mFuture;
+
+    private FutureTask(ScheduledFuture<?> future) {
+      mFuture = future;
+    }
+
+    @Override
+    public boolean cancel() {
+      return mFuture.cancel(false);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return mFuture.isCancelled();
+    }
+  }
+
+  private final ScheduledExecutorService mExecutionService;
+
+  /**
+   * Default constructor, creates its own single thread executor.
+   */
+  public ExecutorScheduler() {
+    this(Executors.newSingleThreadScheduledExecutor());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param executionService Executor where all the tasks will run.
+   */
+  public ExecutorScheduler(ScheduledExecutorService executionService) {
+    mExecutionService = executionService;
+  }
+
+  @Override
+  public ScheduledTask schedule(Runnable task, long delay, TimeUnit unit) {
+    return new FutureTask(mExecutionService.schedule(task, delay, unit));
+  }
+
+  @Override
+  public ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+    return new FutureTask(mExecutionService.scheduleAtFixedRate(task, initialDelay, period, unit));
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    mExecutionService.execute(task);
+  }
+
+  @Override
+  public void shutdown() {
+    mExecutionService.shutdownNow();
+  }
+}
@@ -0,0 +1,96 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import android.util.Log;
+
+import com.mindfulst.dneves.pomotivity.api.PomodoroApi.ListenerAction;
+import com.mindfulst.dneves.pomotivity.api.PomodoroApi.PomodoroEvent;
+
+import java.io.IOException;
+
+/**
+ * Listener that appends every lifecycle event of a session to an EventJournal, ticks aren't journaled.
+ * <p/>
+ * Register it in the event bus of the session, appending is quick enough to be called directly. Events are journaled
+ * with the time they happened, not the time they're delivered.
+ * <p/>
+ * It can also feed the events to a StatsAggregator right after journaling them, with the offset of the journal they
+ * end at, so the checkpoints of the aggregator never include an event twice or miss one. Don't register the
+ * aggregator in the event bus then.
+ */
+public class JournalListener implements PomodoroApi.PomodoroEventListener {
+  private static final String DEBUG_TAG = "pomojournal";
+
+  private final EventJournal    mJournal;
+  private final StatsAggregator mAggregator;
+
+  /**
+   * Constructor.
+   *
+   * @param journal Journal where to append the events.
+   */
+  public JournalListener(EventJournal journal) {
+    this(journal, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param journal    Journal where to append the events.
+   * @param aggregator Aggregator to add the events to once they're journaled, null if none.
+   */
+  public JournalListener(EventJournal journal, StatsAggregator aggregator) {
+    mJournal = journal;
+    mAggregator = aggregator;
+  }
+
+  private void append(ListenerAction action, PomodoroEvent event) {
+    try {
+      long offset = mJournal.append(action, event.currentState, event.autoStart, event.currentTime, event.time,
+                                    event.project);
+      if (mAggregator != null) {
+        mAggregator.add(action, event.currentState, event.currentTime, event.time, event.project, offset);
+      }
+    }
+    catch (IOException e) {
+      Log.e(DEBUG_TAG, "Failed to journal an event: " + e.toString());
+      // Still in the metrics, a replay can't add it twice since it isn't in the journal
+      if (mAggregator != null) {
+        mAggregator.add(action, event.currentState, event.currentTime, event.time, event.project);
+      }
+    }
+  }
+
+  @Override
+  public void pomodoroStarted(PomodoroEvent event) {
+    append(ListenerAction.START, event);
+  }
+
+  @Override
+  public void pomodoroTicked(PomodoroEvent event) {
+  }
+
+  @Override
+  public void pomodoroEnded(PomodoroEvent event) {
+    append(ListenerAction.END_POMODORO, event);
+  }
+
+  @Override
+  public void breakStarted(PomodoroEvent event) {
+    append(ListenerAction.START_BREAK, event);
+  }
+
+  @Override
+  public void pomodoroFinished(PomodoroEvent event) {
+    append(ListenerAction.FINISH, event);
+  }
+
+  @Override
+  public void paused(PomodoroEvent event) {
+    append(ListenerAction.PAUSED, event);
+  }
+
+  @Override
+  public void resumed(PomodoroEvent event) {
+    append(ListenerAction.RESUMED, event);
+  }
+}
@@ -0,0 +1,121 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Tells which logical day an instant belongs to, as a number of days since 1970-01-01.
+ * <p/>
+ * A logical day starts at a given hour of the local time instead of midnight, so late night pomodoros still count
+ * for the day before. The bounds of the current day are kept, so most calls only compare the instant against them
+ * and the calendar is only used when the day changes (or the clock goes back).
+ * <p/>
+ * Rollovers happen at the local hour of the time zone given, taking DST into account, so a logical day can be 23 or
+ * 25 hours long.
+ */
+final class LogicalDayClock {
+  /**
+   * Day that no instant belongs to, e.g. for a day that was never set.
+   */
+  static final int NO_DAY = Integer.MIN_VALUE;
+
+  private static final long MILLIS_PER_HOUR = 60 * 60 * 1000L;
+  private static final long MILLIS_PER_DAY  = 24 * MILLIS_PER_HOUR;
+
+  /**
+   * Bounds of a single day, immutable so it can be swapped in one go.
+   */
+  private static final class Day {
+    private final int  mDay;
+    // Inclusive
+    private final long mStartMillis;
+    // Exclusive, the next rollover
+    private final long mEndMillis;
+
+    private Day(int day, long startMillis, long endMillis) {
+      mDay = day;
+      mStartMillis = startMillis;
+      mEndMillis = endMillis;
+    }
+  }
+
+  private final TimeZone mTimeZone;
+  private final int      mStartHour;
+
+  private volatile Day mCurrent = new Day(NO_DAY, 0, 0);
+
+  /**
+   * Constructor.
+   *
+   * @param timeZone  Time zone of the local time.
+   * @param startHour Hour of the local time at which a day starts (0 to 23).
+   */
+  LogicalDayClock(TimeZone timeZone, int startHour) {
+    if (startHour < 0 || startHour > 23) {
+      throw new IllegalArgumentException("Invalid start hour: " + startHour);
+    }
+    mTimeZone = (TimeZone) timeZone.clone();
+    mStartHour = startHour;
+  }
+
+  /**
+   * Gets the logical day of an instant.
+   * Thread safe, and doesn't allocate unless the instant is in a different day than the last call.
+   *
+   * @param millis Milliseconds since the epoch.
+   * @return Days since 1970-01-01 (of the local time) of the day the instant belongs to.
+   */
+  int getDay(long millis) {
+    Day current = mCurrent;
+    if (millis >= current.mStartMillis && millis < current.mEndMillis) {
+      return current.mDay;
+    }
+    current = computeDay(millis);
+    mCurrent = current;
+    return current.mDay;
+  }
+
+  /**
+   * Gets the instant the next logical day starts at.
+   *
+   * @param millis Milliseconds since the epoch.
+   * @return Milliseconds since the epoch of the first rollover after the given instant.
+   */
+  long getNextRollover(long millis) {
+    Day current = mCurrent;
+    if (millis < current.mStartMillis || millis >= current.mEndMillis) {
+      current = computeDay(millis);
+      mCurrent = current;
+    }
+    return current.mEndMillis;
+  }
+
+  private Day computeDay(long millis) {
+    Calendar calendar = Calendar.getInstance(mTimeZone);
+    calendar.setTimeInMillis(millis);
+    if (calendar.get(Calendar.HOUR_OF_DAY) < mStartHour) {
+      calendar.add(Calendar.DAY_OF_MONTH, -1);
+    }
+    calendar.set(Calendar.HOUR_OF_DAY, mStartHour);
+    calendar.set(Calendar.MINUTE, 0);
+    calendar.set(Calendar.SECOND, 0);
+    calendar.set(Calendar.MILLISECOND, 0);
+    long startMillis = calendar.getTimeInMillis();
+    // Calendar keeps the wall time when adding days, so this is right across DST changes
+    calendar.add(Calendar.DAY_OF_MONTH, 1);
+    long endMillis = calendar.getTimeInMillis();
+
+    // The local date of the start is the date of the day
+    long localStartMillis = startMillis + mTimeZone.getOffset(startMillis);
+    int day = (int) floorDiv(localStartMillis - mStartHour * MILLIS_PER_HOUR, MILLIS_PER_DAY);
+    return new Day(day, startMillis, endMillis);
+  }
+
+  private static long floorDiv(long x, long y) {
+    long result = x / y;
+    if ((x % y != 0) && ((x ^ y) < 0)) {
+      --result;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,136 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+/**
+ * Immutable array of ints that can be changed in O(log32 n) by creating a new one.
+ * <p/>
+ * It's a trie where every node has 32 children and the leaves are int[32], so setting a value only copies the path
+ * to its leaf (2 small arrays for up to 1024 values) and shares everything else with the previous vector.
+ */
+final class PersistentIntVector {
+  private static final int BITS  = 5;
+  private static final int WIDTH = 1 << BITS;
+  private static final int MASK  = WIDTH - 1;
+
+  static final PersistentIntVector EMPTY = new PersistentIntVector(0, 0, null);
+
+  private final int    mSize;
+  // Bits below the index of the root, 0 if the root is a leaf
+  private final int    mShift;
+  // int[] at the leaves and Object[] above them, null before the first value
+  private final Object mRoot;
+
+  private PersistentIntVector(int size, int shift, Object root) {
+    mSize = size;
+    mShift = shift;
+    mRoot = root;
+  }
+
+  /**
+   * Creates a vector with the given values, building the trie from the leaves up in one go.
+   *
+   * @param values Values, only the first size are used.
+   * @param size   Number of values.
+   * @return The vector.
+   */
+  static PersistentIntVector of(int[] values, int size) {
+    if (size == 0) {
+      return EMPTY;
+    }
+    Object[] level = new Object[(size + MASK) >>> BITS];
+    for (int i = 0; i < level.length; ++i) {
+      int[] leaf = new int[WIDTH];
+      int start = i << BITS;
+      System.arraycopy(values, start, leaf, 0, Math.min(WIDTH, size - start));
+      level[i] = leaf;
+    }
+    int shift = 0;
+    while (level.length > 1) {
+      Object[] parents = new Object[(level.length + MASK) >>> BITS];
+      for (int i = 0; i < parents.length; ++i) {
+        Object[] node = new Object[WIDTH];
+        int start = i << BITS;
+        System.arraycopy(level, start, node, 0, Math.min(WIDTH, level.length - start));
+        parents[i] = node;
+      }
+      level = parents;
+      shift += BITS;
+    }
+    return new PersistentIntVector(size, shift, level[0]);
+  }
+
+  /**
+   * @return Number of values.
+   */
+  int size() {
+    return mSize;
+  }
+
+  /**
+   * Gets a value.
+   *
+   * @param index Index of the value, from 0 to size() - 1.
+   * @return The value.
+   */
+  int get(int index) {
+    if (index < 0 || index >= mSize) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", size: " + mSize);
+    }
+    Object node = mRoot;
+    for (int shift = mShift; shift > 0; shift -= BITS) {
+      node = ((Object[]) node)[(index >>> shift) & MASK];
+    }
+    return ((int[]) node)[index & MASK];
+  }
+
+  /**
+   * Sets a value, growing the vector if needed.
+   *
+   * @param index        Index of the value.
+   * @param value        Value to set.
+   * @param defaultValue Value of the indexes added before this one if the vector has to grow.
+   * @return A new vector with the value set, or this one if it already had it.
+   */
+  PersistentIntVector set(int index, int value, int defaultValue) {
+    if (index < 0) {
+      throw new IndexOutOfBoundsException("Index: " + index);
+    }
+    if (index < mSize && get(index) == value) {
+      return this;
+    }
+
+    PersistentIntVector vector = this;
+    // Fill the gap one leaf at a time, it's only ever a few values
+    while (vector.mSize < index) {
+      vector = vector.assoc(vector.mSize, defaultValue);
+    }
+    return vector.assoc(index, value);
+  }
+
+  private PersistentIntVector assoc(int index, int value) {
+    Object root = mRoot;
+    int shift = mShift;
+    if (root == null) {
+      root = new int[WIDTH];
+    }
+    // Add a level on top until the index fits
+    while ((index >>> shift) >= WIDTH) {
+      Object[] newRoot = new Object[WIDTH];
+      newRoot[0] = root;
+      root = newRoot;
+      shift += BITS;
+    }
+    return new PersistentIntVector(Math.max(mSize, index + 1), shift, assoc(root, shift, index, value));
+  }
+
+  private static Object assoc(Object node, int shift, int index, int value) {
+    if (shift == 0) {
+      int[] leaf = node == null ? new int[WIDTH] : ((int[]) node).clone();
+      leaf[index & MASK] = value;
+      return leaf;
+    }
+    Object[] children = node == null ? new Object[WIDTH] : ((Object[]) node).clone();
+    int child = (index >>> shift) & MASK;
+    children[child] = assoc(children[child], shift - BITS, index, value);
+    return children;
+  }
+}
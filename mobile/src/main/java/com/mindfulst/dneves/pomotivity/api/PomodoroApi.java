@@ -6,20 +6,18 @@ import android.util.Log;
 
 import com.mindfulst.dneves.pomotivity.R;
 
-import org.joda.time.DateTime;
-import org.joda.time.Days;
-import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.EventListener;
 import java.util.EventObject;
-import java.util.HashSet;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -35,32 +33,47 @@ public class PomodoroApi {
   public class AlreadyRunningException extends Exception {}
 
   public final class PomodoroEvent extends EventObject {
-    public final int           currentTime;
-    public final boolean       autoStart;
-    public final PomodoroState currentState;
+    public final ListenerAction action;
+    public final int            currentTime;
+    public final boolean        autoStart;
+    public final PomodoroState  currentState;
+    public final String         project;
+    public final long           time;
 
     /**
      * Constructor.
      *
      * @param source       PomodoroApi that triggered the event.
+     * @param action       Action that triggered the event, the listener method it's given to.
      * @param currentTime  Milliseconds since the current state started (break or pomodoro).
      * @param currentState Current state of execution.
+     * @param project      Current project when the transition happened, empty if none.
+     * @param time         Wall clock time of the transition, in milliseconds since the epoch. Transitions caught up
+     *                     by restoreSession() have the time they really happened. 0 for ticks, which are reused.
      */
-    protected PomodoroEvent(Object source, int currentTime, boolean autoStart, PomodoroState currentState) {
+    protected PomodoroEvent(Object source, ListenerAction action, int currentTime, boolean autoStart,
+                            PomodoroState currentState, String project, long time) {
       super(source);
+      this.action = action;
       this.currentTime = currentTime;
       this.autoStart = autoStart;
       this.currentState = currentState;
+      this.project = project;
+      this.time = time;
     }
   }
 
   /**
    * Interface to be implemented by all listeners of pomodoro actions.
-   * WARNING: Not guaranteed to be called from the UI thread!
+   * WARNING: Not guaranteed to be called from the UI thread! Unless it was registered in the event bus with an
+   * executor that runs there, see PomodoroEventBus.
+   * Calls are made one at a time and in the order the transitions happened, but after the method that caused them
+   * (e.g. start()) returned.
    * <p/>
    * On a typical pomodoro the order of the events are:
    * pomodoroStarted - start() was called (could be user or auto-start)
-   * pomodoroTicked - this is called every second, including breaks, so the app can update the UI
+   * pomodoroTicked - this is called every second (or minute), including breaks, so the app can update the UI
+   * it is only called while there are tick subscriptions, see subscribeTicks()
    * pomodoroEnded - this is called when the pomodoro part (before break) ends
    * breakStarted - this is called immediately after the break part starts
    * pomodoroFinished - this is called when both the pomodoro and break end or the stop() was called
@@ -79,7 +92,7 @@ public class PomodoroApi {
     public void pomodoroStarted(final PomodoroEvent event);
 
     /**
-     * Action triggered every time the clock ticks.
+     * Action triggered every time the clock ticks, at the granularity subscribed with subscribeTicks().
      *
      * @param event Information about the Pomodoro Event.
      */
@@ -123,10 +136,53 @@ public class PomodoroApi {
   }
 
   /**
-   * Enum with actions that can be notified to listeners.
+   * Enum with actions that can be notified to listeners, each one knows which listener method to call.
    */
-  private enum ListenerAction {
-    START, TICK, END_POMODORO, START_BREAK, FINISH, PAUSED, RESUMED
+  public enum ListenerAction {
+    START {
+      @Override
+      void call(PomodoroEventListener listener, PomodoroEvent event) {
+        listener.pomodoroStarted(event);
+      }
+    },
+    TICK {
+      @Override
+      void call(PomodoroEventListener listener, PomodoroEvent event) {
+        listener.pomodoroTicked(event);
+      }
+    },
+    END_POMODORO {
+      @Override
+      void call(PomodoroEventListener listener, PomodoroEvent event) {
+        listener.pomodoroEnded(event);
+      }
+    },
+    START_BREAK {
+      @Override
+      void call(PomodoroEventListener listener, PomodoroEvent event) {
+        listener.breakStarted(event);
+      }
+    },
+    FINISH {
+      @Override
+      void call(PomodoroEventListener listener, PomodoroEvent event) {
+        listener.pomodoroFinished(event);
+      }
+    },
+    PAUSED {
+      @Override
+      void call(PomodoroEventListener listener, PomodoroEvent event) {
+        listener.paused(event);
+      }
+    },
+    RESUMED {
+      @Override
+      void call(PomodoroEventListener listener, PomodoroEvent event) {
+        listener.resumed(event);
+      }
+    };
+
+    abstract void call(PomodoroEventListener listener, PomodoroEvent event);
   }
 
   /**
@@ -136,7 +192,93 @@ public class PomodoroApi {
     NONE, POMODORO, SHORT_BREAK, LONG_BREAK
   }
 
+  /**
+   * Enum with how often pomodoroTicked can be called.
+   */
+  public enum TickGranularity {
+    NONE(0), SECOND(1), MINUTE(60);
+
+    public final int seconds;
+
+    private TickGranularity(int seconds) {
+      this.seconds = seconds;
+    }
+  }
+
+  /**
+   * Handle returned by subscribeTicks(), ticks are only sent while there are subscriptions.
+   */
+  public final class TickSubscription {
+    private final TickGranularity mGranularity;
+    private final AtomicBoolean   mIsCancelled = new AtomicBoolean(false);
+
+    private TickSubscription(TickGranularity granularity) {
+      mGranularity = granularity;
+    }
+
+    public TickGranularity getGranularity() {
+      return mGranularity;
+    }
+
+    /**
+     * Stops this subscription. Does nothing if it was already cancelled.
+     */
+    public void cancel() {
+      if (mIsCancelled.compareAndSet(false, true)) {
+        unsubscribeTicks(mGranularity);
+      }
+    }
+  }
+
+  /**
+   * Phase end or ticks scheduled for a specific state.
+   * If the state changes before it runs, it doesn't do anything.
+   */
+  private final class StateTask implements Runnable {
+    private final long            mState;
+    // null for the phase end
+    private final TickGranularity mGranularity;
+
+    private PomodoroScheduler.ScheduledTask mTask = null;
+
+    private StateTask(long state, TickGranularity granularity) {
+      mState = state;
+      mGranularity = granularity;
+    }
+
+    @Override
+    public void run() {
+      if (mGranularity == null) {
+        endPhase(mState);
+      }
+      else {
+        tick(mState);
+      }
+    }
+
+    private void cancel() {
+      if (mTask != null) {
+        mTask.cancel();
+      }
+    }
+  }
+
+  // We consider the start of the day at 4am as this should be the least convenient time to use pomodoros
+  // see https://www.ted.com/talks/rives_on_4_a_m
+  static final int DAY_START_HOUR = 4;
+
   private static final String DEBUG_TAG            = "pomoapi";
+  private static final String STATS_FILE           = "stats.bin";
+  private static final long   ONE_SECOND_NANOS     = TimeUnit.SECONDS.toNanos(1);
+
+  // Ticks are sent to the dispatcher as the phase ordinal above the seconds left
+  private static final int TICK_PHASE_SHIFT  = 24;
+  private static final int TICK_SECONDS_MASK = (1 << TICK_PHASE_SHIFT) - 1;
+
+  private static final PomodoroState[] PHASES = PomodoroState.values();
+
+  private static final TickGranularity[] TICK_GRANULARITIES_BY_PERIOD =
+      new TickGranularity[]{TickGranularity.SECOND, TickGranularity.MINUTE};
   /**/
   public static final  int    POMODORO_DURATION    = 25 * 60;
   public static final  int    SHORT_BREAK_DURATION = 5 * 60;
@@ -148,58 +290,283 @@ public class PomodoroApi {
   public static final  int    LONG_BREAK_DURATION  = 4;
   /**/
 
-  private PomodoroEventListener mListener = null;
+  private final PomodoroScheduler mScheduler;
+  private final TimeSource        mTimeSource;
+  // Logical days start at DAY_START_HOUR
+  private final LogicalDayClock   mDayClock;
+  // Listener notifications and anything that must happen after them run here, in transition order
+  private final SessionDispatcher mDispatcher;
+  private final PomodoroEventBus  mEventBus;
+
+  // Listener set with setPomodoroListener()
+  private final AtomicReference<PomodoroEventBus.Registration> mListenerRegistration =
+      new AtomicReference<PomodoroEventBus.Registration>();
+
+  // The whole session state in a single word (see SessionState), every transition is a CAS on it so there are no
+  // locks and readers never see a mix of two states
+  private final AtomicLong mState = new AtomicLong(SessionState.NONE);
+  // Base of the session clock, deadlines in the state are milliseconds since this
+  private final long       mEpoch;
+  // Wall clock time at the base of the session clock, to save deadlines that outlive the process
+  private final long       mEpochMillis;
 
-  private final ScheduledExecutorService mExecutionService = Executors.newSingleThreadScheduledExecutor();
+  // Only the phase ends are always scheduled, ticks are only scheduled while someone subscribed to them
+  private final AtomicReference<StateTask> mPhaseEnd = new AtomicReference<StateTask>();
+  private final AtomicReference<StateTask> mTicks    = new AtomicReference<StateTask>();
 
-  private AtomicReference<ScheduledFuture> mCurrentPomodoro = new AtomicReference<ScheduledFuture>();
+  // Number of subscriptions for each granularity (indexed by ordinal)
+  private final AtomicIntegerArray mTickSubscriptions = new AtomicIntegerArray(TickGranularity.values().length);
 
-  private boolean mIsPaused  = false;
-  private boolean mAutoStart = false;
+  // Tick events are immutable, so they're created once per phase and second left (and again when the project changes)
+  // and then reused. Indexed by phase ordinal and seconds, only touched by the thread draining the dispatcher and
+  // dropped when nobody wants ticks.
+  private volatile PomodoroEvent[][] mTickEvents = null;
 
-  private       Stats                          mStats            = new Stats();
-  private       DateTime                       mLastPomodoroDate = new DateTime(0).withTime(4, 0, 0, 0);
-  private final AtomicReference<PomodoroState> mCurrentState     =
-      new AtomicReference<PomodoroState>(PomodoroState.NONE);
-  private final AtomicInteger                  mCurrentTime      = new AtomicInteger(POMODORO_DURATION);
-  private final AtomicReference<String>        mCurrentProject   = new AtomicReference<String>("");
+  private volatile boolean mAutoStart = false;
+  // Only used for logging
+  private volatile long    mStartTime = 0;
 
-  public PomodoroApi() {}
+  private final    AtomicReference<Stats>          mStats           = new AtomicReference<Stats>(new Stats());
+  // Logical day of the last pomodoro finished
+  private volatile int                             mLastPomodoroDay = LogicalDayClock.NO_DAY;
+  private final    AtomicReference<String>         mCurrentProject  = new AtomicReference<String>("");
+  // Every project in the stats plus the current one
+  private final    AtomicReference<ProjectCatalog> mProjects        =
+      new AtomicReference<ProjectCatalog>(ProjectCatalog.EMPTY);
+  private final    StatsHistory                    mHistory         = new StatsHistory();
+  // Knows what changed since the last save
+  private final    StatePersister                  mPersister       = new StatePersister();
+  // Checkpoint loaded and not restored yet, see restoreSession()
+  private final    AtomicLong                      mLoadedSession   = new AtomicLong(SessionState.NO_CHECKPOINT);
+
+  /**
+   * Default constructor, the timer runs on its own thread.
+   */
+  public PomodoroApi() {
+    this(new ExecutorScheduler());
+  }
 
-  public void save(Context context, SharedPreferences.Editor prefEditor) {
-    DateTimeFormatter formatter = ISODateTimeFormat.dateTime();
-    prefEditor.putBoolean(context.getString(R.string.auto_start_key), mAutoStart);
-    prefEditor.putString(context.getString(R.string.last_pomodoro_key), formatter.print(mLastPomodoroDate));
-    prefEditor.putString(context.getString(R.string.current_project), mCurrentProject.get());
-    mStats.save(context, prefEditor);
+  /**
+   * Constructor.
+   * Use it to share the same scheduler (e.g. a TimingWheelScheduler) between lots of instances.
+   *
+   * @param scheduler Scheduler where the timer will run.
+   */
+  public PomodoroApi(PomodoroScheduler scheduler) {
+    this(scheduler, TimeSource.SYSTEM);
   }
 
   /**
-   * Loads the state from the given preferences.
+   * Constructor.
+   * Use it to run on a different clock, e.g. a VirtualTimeScheduler (as both arguments) to simulate without waiting.
    *
-   * @param context     Context where to get the attribute keys from.
+   * @param scheduler  Scheduler where the timer will run.
+   * @param timeSource Clock used for the deadlines and to know when a day ends, must match the scheduler's.
+   */
+  public PomodoroApi(PomodoroScheduler scheduler, TimeSource timeSource) {
+    mScheduler = scheduler;
+    mTimeSource = timeSource;
+    mDayClock = new LogicalDayClock(TimeZone.getDefault(), DAY_START_HOUR);
+    mEpoch = timeSource.nanoTime();
+    mEpochMillis = timeSource.currentTimeMillis();
+    mEventBus = new PomodoroEventBus(timeSource);
+    mDispatcher = new SessionDispatcher(scheduler, SessionState.getGeneration(SessionState.NONE),
+                                        new SessionDispatcher.TickHandler() {
+                                          @Override
+                                          public void onTick(int tick) {
+                                            notifyTick(tick);
+                                          }
+                                        });
+  }
+
+  /**
+   * Saves what changed since the state was last saved or loaded, but doesn't call apply() or commit().
+   * The first save of a state that wasn't loaded (or was in an older format) writes everything.
+   *
+   * @param context    Context where to get the attribute keys from.
+   * @param prefEditor Editor used to save the state.
+   * @return true if anything was written, there's no need to apply the editor otherwise.
+   * @throws IOException if the stats couldn't be written, the rest is in the editor and should still be committed.
+   */
+  public boolean save(Context context, SharedPreferences.Editor prefEditor) throws IOException {
+    return mPersister.save(context, prefEditor, this);
+  }
+
+  /**
+   * Tells that the editor given to the last save() couldn't be committed, so the next save writes all the state to
+   * the preferences again.
+   */
+  public void commitFailed() {
+    mPersister.commitFailed();
+  }
+
+  /**
+   * Loads the state from the given preferences, and the stats and their history from their snapshot in the files
+   * directory.
+   * A session that was running when the state was saved only carries on with restoreSession().
+   *
+   * @param context     Context where to get the attribute keys and the files directory from.
    * @param preferences Preferences to load the state from.
    */
   public void load(Context context, SharedPreferences preferences) {
-    mStats = new Stats(context, preferences);
+    StatsSnapshot snapshot = createSnapshot(context);
+    Stats stats = null;
+    try {
+      stats = snapshot.load(mHistory);
+    }
+    catch (IOException e) {
+      Log.e(DEBUG_TAG, "Failed to load the stats, starting over: " + e.getMessage());
+    }
+    // Older versions saved them in the preferences
+    boolean isLegacy = false;
+    if (stats == null) {
+      isLegacy = Stats.hasSaved(context, preferences);
+      stats = new Stats(context, preferences);
+    }
     mAutoStart = preferences.getBoolean(context.getString(R.string.auto_start_key), false);
     mCurrentProject.set(preferences.getString(context.getString(R.string.current_project), ""));
+    // The stats may have been lost (or moved aside) while the current project was saved
+    stats = stats.addProject(mCurrentProject.get());
+    mProjects.set(ProjectCatalog.of(stats.getProjects().keySet()).with(mCurrentProject.get()));
 
-    DateTimeFormatter formatter = ISODateTimeFormat.dateTime();
-    final String defaultDate = formatter.print(new DateTime(0).withTime(4, 0, 0, 0));
-    String lastPomodoroStr = preferences.getString(context.getString(R.string.last_pomodoro_key), defaultDate);
-    try {
-      mLastPomodoroDate = formatter.parseDateTime(lastPomodoroStr);
-    }
-    catch (Exception e) {
-      e.printStackTrace();
+    mLastPomodoroDay = preferences.getInt(context.getString(R.string.last_pomodoro_day_key), LogicalDayClock.NO_DAY);
+    if (mLastPomodoroDay == LogicalDayClock.NO_DAY) {
+      mLastPomodoroDay = loadLegacyLastPomodoroDay(context, preferences);
+      isLegacy |= mLastPomodoroDay != LogicalDayClock.NO_DAY;
     }
+    long checkpoint = preferences.getLong(context.getString(R.string.session_checkpoint_key),
+                                          SessionState.NO_CHECKPOINT);
+    mPersister.loaded(snapshot, stats, mAutoStart, mLastPomodoroDay, mCurrentProject.get(), checkpoint, isLegacy);
 
     // We don't change the date because we only only to count another day when a pomodoro finishes
     // This is just to avoid displaying today's pomodoros if a few days have passed since last running the app
-    DateTime now = DateTime.now().withTime(4, 0, 0, 0);
-    if (Days.daysBetween(now, mLastPomodoroDate).getDays() != 0) {
-      mStats = mStats.resetToday();
+    if (isNewDay(mTimeSource.currentTimeMillis())) {
+      stats = stats.resetToday();
+    }
+    mStats.set(stats);
+    mLoadedSession.set(checkpoint);
+  }
+
+  /**
+   * Carries on with the session that was running when the loaded state was saved, if this one isn't running.
+   * Call it after load(), once the listeners that must see the session events are registered (e.g. the ones saving
+   * them). Does nothing the second time.
+   * <p/>
+   * Phases that ended while the process was gone are caught up: a pomodoro that ended is counted (on the day it
+   * ended) and its break continues from the pomodoro deadline, a break that ended finishes the session. A pomodoro
+   * isn't auto started after a break that ended, nobody was there to see it start.
+   * <p/>
+   * Listeners get every transition that was caught up, in order, and then the start of the phase it's in (and the
+   * pause if it's paused) with the time left, as a single transition.
+   */
+  public void restoreSession() {
+    long checkpoint = mLoadedSession.getAndSet(SessionState.NO_CHECKPOINT);
+    if (checkpoint == SessionState.NO_CHECKPOINT) {
+      return;
+    }
+    PomodoroState phase = SessionState.getCheckpointPhase(checkpoint);
+    boolean paused = SessionState.isCheckpointPaused(checkpoint);
+    long time = SessionState.getCheckpointTime(checkpoint);
+    boolean pomodoroEnded = false;
+    boolean ended = false;
+    // Worked out without side effects, the pomodoro is only counted once the restore can't fail
+    long pomodoroEndMillis = 0;
+    long nowMillis = mTimeSource.currentTimeMillis();
+    // When the phase it ended in ended, if it did
+    long endMillis = nowMillis;
+    if (!paused) {
+      if (phase == PomodoroState.POMODORO && time <= nowMillis) {
+        PomodoroState breakState = getNextBreak(time);
+        pomodoroEndMillis = time;
+        pomodoroEnded = true;
+        phase = breakState;
+        time += getDuration(breakState) * 1000L;
+      }
+      if (time <= nowMillis) {
+        Log.i(DEBUG_TAG, "Restored session ended while the process was gone");
+        ended = true;
+        endMillis = time;
+      }
+      // Back to the session clock
+      time -= mEpochMillis;
+    }
+
+    long state = mState.get();
+    if (SessionState.isRunning(state)) {
+      return;
+    }
+    final long next;
+    try {
+      next = ended ? SessionState.next(state, PomodoroState.NONE, false, 0) :
+             SessionState.next(state, phase, paused, time);
+    }
+    catch (IllegalArgumentException e) {
+      // The wall clock moved a lot while the process was gone
+      Log.w(DEBUG_TAG, "Failed to restore the session: " + e.getMessage());
+      return;
+    }
+    if (!mState.compareAndSet(state, next)) {
+      return;
+    }
+    Log.i(DEBUG_TAG, "Restored session: " + SessionState.toString(next));
+    mStartTime = mTimeSource.nanoTime();
+    updateScheduledWork();
+    final PomodoroState restoredPhase = phase;
+    final boolean isPomodoroCaughtUp = pomodoroEnded;
+    final boolean isFinished = ended;
+    final int remaining = ended ? 0 : toSeconds(SessionState.getRemainingNanos(next, now()));
+    final String project = mCurrentProject.get();
+    final String endedProject = pomodoroEnded ? countEndedPomodoro(pomodoroEndMillis) : null;
+    final long caughtUpMillis = pomodoroEndMillis;
+    final long restoredMillis = nowMillis;
+    final long finishMillis = endMillis;
+    // A single task, the whole restore is one transition
+    mDispatcher.submit(SessionState.getGeneration(next), new Runnable() {
+      @Override
+      public void run() {
+        if (isPomodoroCaughtUp) {
+          notifyListener(ListenerAction.END_POMODORO, 0, PomodoroState.POMODORO, endedProject, caughtUpMillis);
+        }
+        // A break that ended on its own was already started
+        if (isPomodoroCaughtUp || !isFinished) {
+          int startTime = isFinished ? getDuration(restoredPhase) : remaining;
+          notifyListener(restoredPhase == PomodoroState.POMODORO ? ListenerAction.START : ListenerAction.START_BREAK,
+                         startTime, restoredPhase, project, isPomodoroCaughtUp ? caughtUpMillis : restoredMillis);
+        }
+        if (isFinished) {
+          // Without auto start, nothing starts after it
+          notifyListener(ListenerAction.FINISH, new PomodoroEvent(PomodoroApi.this, ListenerAction.FINISH, 0, false,
+                                                                  restoredPhase, project, finishMillis));
+        }
+        else if (SessionState.isPaused(next)) {
+          notifyListener(ListenerAction.PAUSED, remaining, restoredPhase, project, restoredMillis);
+        }
+      }
+    });
+  }
+
+  /**
+   * @param context Context where to get the files directory from.
+   * @return The snapshot where the stats are saved.
+   */
+  static StatsSnapshot createSnapshot(Context context) {
+    return new StatsSnapshot(new File(context.getFilesDir(), STATS_FILE));
+  }
+
+  /**
+   * Reads the day of the last pomodoro saved by older versions, as an ISO date time.
+   */
+  private int loadLegacyLastPomodoroDay(Context context, SharedPreferences preferences) {
+    String lastPomodoroStr = preferences.getString(context.getString(R.string.last_pomodoro_key), null);
+    if (lastPomodoroStr == null) {
+      return LogicalDayClock.NO_DAY;
+    }
+    try {
+      return mDayClock.getDay(ISODateTimeFormat.dateTime().parseDateTime(lastPomodoroStr).getMillis());
+    }
+    catch (Exception e) {
+      Log.e(DEBUG_TAG, "Failed to parse the last pomodoro: " + e.getMessage());
+      return LogicalDayClock.NO_DAY;
     }
   }
 
@@ -211,189 +578,485 @@ public class PomodoroApi {
    *                                             pomodoro is
    *                                             running.
    */
-  public synchronized void start() throws AlreadyRunningException {
-    // We don't care if it stops after this point, only that you called it while it was logically
-    // running. Also, it is synchronized so, if it is null, there's no way it'll get another value
-    // after this point ;)
-    if (mCurrentPomodoro.get() != null) {
-      throw new AlreadyRunningException();
+  public void start() throws AlreadyRunningException {
+    long next;
+    while (true) {
+      long state = mState.get();
+      // We don't care if it stops after this point, only that you called it while it was logically running
+      if (SessionState.isRunning(state)) {
+        throw new AlreadyRunningException();
+      }
+      next = SessionState.next(state, PomodoroState.POMODORO, false,
+                               SessionState.toDeadline(now() + TimeUnit.SECONDS.toNanos(POMODORO_DURATION)));
+      if (mState.compareAndSet(state, next)) {
+        break;
+      }
     }
 
-    final Runnable pomodoroTick = new Runnable() {
-      private final long mStartTime = System.nanoTime();
+    Log.i(DEBUG_TAG, "Pomodoro started");
+    mStartTime = mTimeSource.nanoTime();
+    updateScheduledWork();
+    dispatch(next, ListenerAction.START, POMODORO_DURATION);
+  }
 
-      private void endPomodoro() {
-        incrementStats();
-        notifyListener(ListenerAction.END_POMODORO, 0, mCurrentState.get());
+  /**
+   * Gets the current phase.
+   *
+   * @return The current state, PomodoroState.NONE if not running.
+   */
+  public PomodoroState getCurrentState() {
+    return SessionState.getPhase(mState.get());
+  }
 
-        // Force other threads to update
-        try {
-          Thread.sleep(1);
-        }
-        catch (InterruptedException e) {
-          Log.d(DEBUG_TAG, "Ooops, thread was interruped");
-        }
+  /**
+   * Gets the time left in the current phase (pomodoro or break).
+   *
+   * @return Seconds left, rounded up, 0 if not running.
+   */
+  public int getCurrentTime() {
+    return toSeconds(SessionState.getRemainingNanos(mState.get(), now()));
+  }
+
+  /**
+   * @return true if running and paused.
+   */
+  public boolean isPaused() {
+    long state = mState.get();
+    return SessionState.isRunning(state) && SessionState.isPaused(state);
+  }
 
-        // Start the break
-        if (mStats.finishedToday % 4 == 0) {
-          mCurrentState.set(PomodoroState.LONG_BREAK);
-          mCurrentTime.set(LONG_BREAK_DURATION);
+  /**
+   * Gets the current time of the session clock, the one used by the deadlines in the state.
+   *
+   * @return Nanoseconds since this instance was created.
+   */
+  private long now() {
+    return mTimeSource.nanoTime() - mEpoch;
+  }
+
+  private static int toSeconds(long nanos) {
+    return (int) ((nanos + ONE_SECOND_NANOS - 1) / ONE_SECOND_NANOS);
+  }
+
+  /**
+   * Makes sure the phase end and ticks scheduled match the current state.
+   * Call after every transition.
+   */
+  private void updateScheduledWork() {
+    updateScheduledWork(mPhaseEnd, false);
+    updateScheduledWork(mTicks, true);
+  }
+
+  /**
+   * Makes sure the work scheduled in the holder matches the current state, replacing or cancelling it if it doesn't.
+   * <p/>
+   * This doesn't lock, it keeps checking until what is scheduled matches the current state, so concurrent transitions
+   * always end up with the work of the last one scheduled.
+   *
+   * @param holder Holder of the work.
+   * @param ticks  true for ticks, false for the phase end.
+   */
+  private void updateScheduledWork(AtomicReference<StateTask> holder, boolean ticks) {
+    while (true) {
+      long state = mState.get();
+      TickGranularity granularity = ticks ? getTickGranularity() : null;
+      StateTask current = holder.get();
+
+      boolean isNeeded = SessionState.isRunning(state) && !SessionState.isPaused(state) &&
+                         granularity != TickGranularity.NONE;
+      if (!isNeeded) {
+        if (current == null) {
+          return;
         }
-        else {
-          mCurrentState.set(PomodoroState.SHORT_BREAK);
-          mCurrentTime.set(SHORT_BREAK_DURATION);
+        if (holder.compareAndSet(current, null)) {
+          current.cancel();
         }
-        notifyListener(ListenerAction.START_BREAK, mCurrentTime.get(), mCurrentState.get());
+        continue;
       }
 
-      private void endBreak() {
-        stop();
-        if (mAutoStart) {
-          try {
-            // Force the UI to catch up and and give time to breath. We only need to do it here because of the
-            // autostart, which will trigger another notification update immediately.
-            Thread.sleep(50);
-            start();
-          }
-          catch (AlreadyRunningException e) {
-            Log.w(DEBUG_TAG, "It failed to auto-start because it was already running, but I just stopped...");
-          }
-          catch (InterruptedException e) {
-            Log.w(DEBUG_TAG, "Ooops, thread was interruped");
-          }
+      if (current != null && current.mState == state && current.mGranularity == granularity) {
+        return;
+      }
+      StateTask next = ticks ? scheduleTicks(state, granularity) : schedulePhaseEnd(state);
+      if (holder.compareAndSet(current, next)) {
+        if (current != null) {
+          current.cancel();
         }
       }
+      else {
+        next.cancel();
+      }
+    }
+  }
 
-      @Override
-      public void run() {
-        if (mIsPaused) {
-          return;
-        }
+  /**
+   * Schedules the end of the phase at its deadline.
+   *
+   * @param state Running state.
+   * @return The scheduled phase end.
+   */
+  private StateTask schedulePhaseEnd(long state) {
+    StateTask phaseEnd = new StateTask(state, null);
+    long delay = Math.max(SessionState.getDeadlineNanos(state) - now(), 0);
+    phaseEnd.mTask = mScheduler.schedule(phaseEnd, delay, TimeUnit.NANOSECONDS);
+    return phaseEnd;
+  }
 
-        if (mCurrentTime.decrementAndGet() <= 0) {
-          if (mCurrentState.get() == PomodoroState.POMODORO) {
-            Log.d(DEBUG_TAG, "Pomodoro ended after " + ((System.nanoTime() - mStartTime) * 1e-9));
-            endPomodoro();
-          }
-          else { // LONG or SHORT break
-            Log.d(DEBUG_TAG, "Pomodoro and break ended after " + ((System.nanoTime() - mStartTime) * 1e-9));
-            endBreak();
-          }
-        }
-        else {
-          Log.d(DEBUG_TAG, "Timer: " + mCurrentTime.get());
-          notifyListener(ListenerAction.TICK, mCurrentTime.get(), mCurrentState.get());
-        }
+  /**
+   * Schedules the ticks of the phase.
+   * Ticks are aligned with the deadline, so with minute ticks they are sent when there are N full minutes left.
+   *
+   * @param state       Running state.
+   * @param granularity How often to tick.
+   * @return The scheduled ticks.
+   */
+  private StateTask scheduleTicks(long state, TickGranularity granularity) {
+    StateTask ticks = new StateTask(state, granularity);
+    long period = TimeUnit.SECONDS.toNanos(granularity.seconds);
+    long delay = (SessionState.getDeadlineNanos(state) - now()) % period;
+    if (delay <= 0) {
+      delay += period;
+    }
+    ticks.mTask = mScheduler.scheduleAtFixedRate(ticks, delay, period, TimeUnit.NANOSECONDS);
+    return ticks;
+  }
+
+  /**
+   * Sends a tick for the given state, if it's still the current one.
+   * This runs every second for every session subscribed to ticks, so it must not allocate anything.
+   *
+   * @param state State the tick was scheduled for.
+   */
+  private void tick(long state) {
+    if (mState.get() != state) {
+      return;
+    }
+
+    // The phase end is scheduled separately, at the exact deadline, ticks only report the time left
+    int remaining = toSeconds(SessionState.getRemainingNanos(state, now()));
+    if (remaining > 0) {
+      if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
+        Log.d(DEBUG_TAG, "Timer: " + remaining);
       }
-    };
+      int tick = (SessionState.getPhase(state).ordinal() << TICK_PHASE_SHIFT) | (remaining & TICK_SECONDS_MASK);
+      mDispatcher.submitTick(SessionState.getGeneration(state), tick);
+    }
+  }
 
-    Log.i(DEBUG_TAG, "Pomodoro started");
-    mIsPaused = false;
-    mCurrentState.set(PomodoroState.POMODORO);
-    mCurrentTime.set(POMODORO_DURATION);
-    mCurrentPomodoro.set(mExecutionService.scheduleAtFixedRate(pomodoroTick, 1, 1, TimeUnit.SECONDS));
-    notifyListener(ListenerAction.START, POMODORO_DURATION, mCurrentState.get());
+  /**
+   * Notifies a tick sent by tick(), runs on the thread draining the dispatcher.
+   */
+  private void notifyTick(int tick) {
+    PomodoroState phase = PHASES[tick >>> TICK_PHASE_SHIFT];
+    int remaining = tick & TICK_SECONDS_MASK;
+
+    PomodoroEvent[][] tickEvents = mTickEvents;
+    if (tickEvents == null) {
+      tickEvents = new PomodoroEvent[PHASES.length][];
+      mTickEvents = tickEvents;
+    }
+    PomodoroEvent[] phaseEvents = tickEvents[phase.ordinal()];
+    if (phaseEvents == null) {
+      phaseEvents = new PomodoroEvent[getDuration(phase) + 1];
+      tickEvents[phase.ordinal()] = phaseEvents;
+    }
+
+    String project = mCurrentProject.get();
+    PomodoroEvent event;
+    if (remaining < phaseEvents.length) {
+      event = phaseEvents[remaining];
+      // The same string while the project doesn't change, so comparing the references is enough
+      if (event == null || event.project != project) {
+        event = new PomodoroEvent(this, ListenerAction.TICK, remaining, false, phase, project, 0);
+        phaseEvents[remaining] = event;
+      }
+    }
+    else {
+      // Can't happen, but better than an exception
+      event = new PomodoroEvent(this, ListenerAction.TICK, remaining, false, phase, project, 0);
+    }
+    notifyListener(ListenerAction.TICK, event);
   }
 
-  private void notifyListener(ListenerAction action, int currentTime, PomodoroState state) {
-    PomodoroEventListener listener = mListener;
-    if (listener == null) {
+  /**
+   * @return Duration of the phase in seconds.
+   */
+  private static int getDuration(PomodoroState phase) {
+    switch (phase) {
+      case POMODORO:
+        return POMODORO_DURATION;
+      case SHORT_BREAK:
+        return SHORT_BREAK_DURATION;
+      case LONG_BREAK:
+        return LONG_BREAK_DURATION;
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * Ends the phase of the given state, if it's still the current one.
+   * <p/>
+   * This runs on the scheduler, possibly shared with lots of other sessions, so it never waits. The notifications and
+   * the auto start are handed to the dispatcher, which runs them in order after anything the listener is still
+   * handling.
+   *
+   * @param state State whose deadline was reached.
+   */
+  private void endPhase(long state) {
+    PomodoroState phase = SessionState.getPhase(state);
+    if (phase == PomodoroState.POMODORO) {
+      // Start the break, counting from the pomodoro deadline so any delay running this doesn't shorten it
+      final PomodoroState breakState = getNextBreak(mTimeSource.currentTimeMillis());
+      final int breakDuration = getDuration(breakState);
+      long next = SessionState.next(state, breakState, false, SessionState.getTime(state) + breakDuration * 1000L);
+      // Lost the race against stop() or pause(), they already took care of it
+      if (!mState.compareAndSet(state, next)) {
+        return;
+      }
+
+      Log.d(DEBUG_TAG, "Pomodoro ended after " + ((mTimeSource.nanoTime() - mStartTime) * 1e-9));
+      final long millis = mTimeSource.currentTimeMillis();
+      final String project = countEndedPomodoro(millis);
+      updateScheduledWork();
+      mDispatcher.submit(SessionState.getGeneration(next), new Runnable() {
+        @Override
+        public void run() {
+          notifyListener(ListenerAction.END_POMODORO, 0, PomodoroState.POMODORO, project, millis);
+          notifyListener(ListenerAction.START_BREAK, breakDuration, breakState, project, millis);
+        }
+      });
+    }
+    else { // LONG or SHORT break
+      if (finish(state, true)) {
+        Log.d(DEBUG_TAG, "Pomodoro and break ended after " + ((mTimeSource.nanoTime() - mStartTime) * 1e-9));
+      }
+    }
+  }
+
+  /**
+   * Starts the next pomodoro after the previous one finished, if auto start is on.
+   */
+  private void autoStart() {
+    if (!mAutoStart) {
       return;
     }
 
     try {
-      // If we forced stop, we must override the value of the auto start, otherwise the client may think it is
-      // going to start again
-      boolean autoStart = currentTime == 0 && this.mAutoStart;
-      PomodoroEvent event = new PomodoroEvent(this, currentTime, autoStart, state);
-      // I used actions because creating and passing callables for something so static isn't convenient ;)
-      switch (action) {
-        case START:
-          mListener.pomodoroStarted(event);
-          break;
-        case TICK:
-          mListener.pomodoroTicked(event);
-          break;
-        case END_POMODORO:
-          mListener.pomodoroEnded(event);
-          break;
-        case START_BREAK:
-          mListener.breakStarted(event);
-          break;
-        case FINISH:
-          mListener.pomodoroFinished(event);
-          break;
-        case PAUSED:
-          mListener.paused(event);
-          break;
-        case RESUMED:
-          mListener.resumed(event);
-          break;
+      start();
+    }
+    catch (AlreadyRunningException e) {
+      Log.w(DEBUG_TAG, "It failed to auto-start because it was already running, but I just stopped...");
+    }
+  }
+
+  /**
+   * Gets the break that follows the current pomodoro, taking into account the pomodoro about to be counted.
+   *
+   * @param millis Wall clock time when the pomodoro ended.
+   */
+  private PomodoroState getNextBreak(long millis) {
+    int finishedToday = isNewDay(millis) ? 1 : mStats.get().finishedToday + 1;
+    return finishedToday % 4 == 0 ? PomodoroState.LONG_BREAK : PomodoroState.SHORT_BREAK;
+  }
+
+  /**
+   * Gets the finest granularity anyone subscribed to.
+   *
+   * @return The granularity or TickGranularity.NONE if there are no subscriptions.
+   */
+  private TickGranularity getTickGranularity() {
+    for (TickGranularity granularity : TICK_GRANULARITIES_BY_PERIOD) {
+      if (mTickSubscriptions.get(granularity.ordinal()) > 0) {
+        return granularity;
       }
     }
-    catch (Exception e) {
-      Log.e(DEBUG_TAG, "Exception thrown while calling the listener: " + e.toString());
+    return TickGranularity.NONE;
+  }
+
+  /**
+   * Hands a single notification of a transition to the dispatcher.
+   *
+   * @param state       State set by the transition.
+   * @param action      Action to notify.
+   * @param currentTime Time to notify.
+   */
+  private void dispatch(long state, final ListenerAction action, final int currentTime) {
+    final PomodoroState phase = SessionState.getPhase(state);
+    final String project = mCurrentProject.get();
+    final long millis = mTimeSource.currentTimeMillis();
+    mDispatcher.submit(SessionState.getGeneration(state), new Runnable() {
+      @Override
+      public void run() {
+        notifyListener(action, currentTime, phase, project, millis);
+      }
+    });
+  }
+
+  private void notifyListener(ListenerAction action, int currentTime, PomodoroState state, String project,
+                              long millis) {
+    // If we forced stop, we must override the value of the auto start, otherwise the client may think it is
+    // going to start again
+    boolean autoStart = currentTime == 0 && this.mAutoStart;
+    notifyListener(action, new PomodoroEvent(this, action, currentTime, autoStart, state, project, millis));
+  }
+
+  private void notifyListener(ListenerAction action, PomodoroEvent event) {
+    mEventBus.publish(action, event);
+  }
+
+  /**
+   * Checks if a pomodoro finishing at the given time would be the first of a new day.
+   *
+   * @param millis Wall clock time, in milliseconds since 1970-01-01.
+   */
+  private boolean isNewDay(long millis) {
+    return mDayClock.getDay(millis) != mLastPomodoroDay;
+  }
+
+  /**
+   * Counts a pomodoro that ended in a transition that was already made, without ever throwing: the generation of the
+   * transition still needs its submit, the dispatcher holds back everything after it until it gets it.
+   *
+   * @param millis Wall clock time when the pomodoro ended.
+   * @return The project it was counted for.
+   */
+  private String countEndedPomodoro(long millis) {
+    try {
+      return incrementStats(millis);
+    }
+    catch (RuntimeException e) {
+      Log.e(DEBUG_TAG, "Failed to count the pomodoro: " + e.toString());
+      return mCurrentProject.get();
     }
   }
 
-  private void incrementStats() {
-    // We consider the start of the day at 4am as this should be the least convenient time to use pomodoros
-    // see https://www.ted.com/talks/rives_on_4_a_m
-    DateTime now = DateTime.now().withTime(4, 0, 0, 0);
-    if (Days.daysBetween(now, mLastPomodoroDate).getDays() != 0) {
-      mStats = mStats.nextDay();
-      mLastPomodoroDate = now;
+  /**
+   * Counts a finished pomodoro.
+   * Only the thread that ended the pomodoro calls this, but the current project can change at the same time.
+   *
+   * @param millis Wall clock time when the pomodoro ended.
+   * @return The project it was counted for.
+   */
+  private String incrementStats(long millis) {
+    int today = mDayClock.getDay(millis);
+    boolean isNewDay = today != mLastPomodoroDay;
+    if (isNewDay) {
+      mLastPomodoroDay = today;
     }
-    // Do this after the next day because it will reset the today counter
-    mStats = mStats.incrementCounter(mCurrentProject.get());
-    Log.d(DEBUG_TAG, "Current stats: " + mStats);
+
+    String project = mCurrentProject.get();
+    Stats stats;
+    Stats next;
+    do {
+      stats = mStats.get();
+      // Do this after the next day because it will reset the today counter
+      next = (isNewDay ? stats.nextDay() : stats).incrementCounter(project);
+    }
+    while (!mStats.compareAndSet(stats, next));
+    mPersister.projectChanged(project);
+    try {
+      mHistory.record(today, project);
+      mPersister.dayChanged(today);
+    }
+    catch (IllegalArgumentException e) {
+      // The clock went back a lot, the counters above are still right
+      Log.w(DEBUG_TAG, "Failed to record the pomodoro in the history: " + e.getMessage());
+    }
+    Log.d(DEBUG_TAG, "Current stats: " + next);
+    return project;
+  }
+
+  /**
+   * Moves the given state to NONE.
+   *
+   * @param state          State expected to be current.
+   * @param allowAutoStart true if another pomodoro can start automatically after this one.
+   * @return true if it finished, false if the state was no longer the current one.
+   */
+  private boolean finish(long state, final boolean allowAutoStart) {
+    long next = SessionState.next(state, PomodoroState.NONE, false, 0);
+    if (!mState.compareAndSet(state, next)) {
+      return false;
+    }
+
+    updateScheduledWork();
+    Log.i(DEBUG_TAG, "Timer stopped");
+    final int remaining = toSeconds(SessionState.getRemainingNanos(state, now()));
+    final PomodoroState phase = SessionState.getPhase(state);
+    final String project = mCurrentProject.get();
+    final long millis = mTimeSource.currentTimeMillis();
+    mDispatcher.submit(SessionState.getGeneration(next), new Runnable() {
+      @Override
+      public void run() {
+        notifyListener(ListenerAction.FINISH, remaining, phase, project, millis);
+        // Only after the listener handled the finish, so the start always comes after it
+        if (allowAutoStart) {
+          autoStart();
+        }
+      }
+    });
+    return true;
   }
 
   /**
    * Stops the current timer or does nothing if no timer is running.
    */
   public void stop() {
-    ScheduledFuture pomodoro = mCurrentPomodoro.getAndSet(null);
-    if (pomodoro != null) {
-      pomodoro.cancel(false);
-      Log.i(DEBUG_TAG, "Timer stopped");
-      notifyListener(ListenerAction.FINISH, mCurrentTime.get(), mCurrentState.get());
-      mCurrentState.set(PomodoroState.NONE);
+    long state;
+    do {
+      state = mState.get();
+      if (!SessionState.isRunning(state)) {
+        return;
+      }
     }
+    while (!finish(state, false));
   }
 
   /**
    * Pauses the current timer or does nothing if no timer is running.
+   * The exact remaining time is kept and nothing stays scheduled while paused.
    */
   public void pause() {
-    if (mIsPaused) {
-      return;
+    long state;
+    long next;
+    do {
+      state = mState.get();
+      if (!SessionState.isRunning(state) || SessionState.isPaused(state)) {
+        return;
+      }
+      next = SessionState.next(state, SessionState.getPhase(state), true,
+                               SessionState.getRemainingNanos(state, now()));
     }
+    while (!mState.compareAndSet(state, next));
 
-    mIsPaused = true;
     Log.i(DEBUG_TAG, "Timer paused");
-    ScheduledFuture pomodoro = mCurrentPomodoro.get();
-    if (pomodoro != null) {
-      notifyListener(ListenerAction.PAUSED, mCurrentTime.get(), mCurrentState.get());
-    }
+    updateScheduledWork();
+    dispatch(next, ListenerAction.PAUSED, toSeconds(SessionState.getTime(next)));
   }
 
   /**
    * Resumes the current timer or does nothing if no timer is running.
+   * The phase continues from the time left when it was paused, to the millisecond.
    */
   public void resume() {
-    if (!mIsPaused) {
-      return;
+    long state;
+    long next;
+    do {
+      state = mState.get();
+      if (!SessionState.isRunning(state) || !SessionState.isPaused(state)) {
+        return;
+      }
+      next = SessionState.next(state, SessionState.getPhase(state), false,
+                               SessionState.toDeadline(now() + SessionState.getTime(state)));
     }
+    while (!mState.compareAndSet(state, next));
 
     Log.i(DEBUG_TAG, "Timer resumed");
-    // This means that we may have to wait almost a second before the next run, but it's a simple
-    // mechanism ;)
-    mIsPaused = false;
-    ScheduledFuture pomodoro = mCurrentPomodoro.get();
-    if (pomodoro != null) {
-      notifyListener(ListenerAction.RESUMED, mCurrentTime.get(), mCurrentState.get());
-    }
+    // Both the phase end and the ticks are rescheduled from the new deadline, so it still ends on time and ticks stay
+    // aligned with the remaining seconds
+    updateScheduledWork();
+    dispatch(next, ListenerAction.RESUMED, toSeconds(SessionState.getTime(state)));
   }
 
   /**
@@ -417,28 +1080,137 @@ public class PomodoroApi {
 
   /**
    * Sets the current project and adds it to the list of known projects if it doesn't exist yet.
+   * Project names are case insensitive, if it already exists it keeps the name it was added with.
    *
    * @param currentProject Name of the current project to set.
    */
-  public void setCurrentProject(final String currentProject) {
+  public void setCurrentProject(String currentProject) {
+    ProjectCatalog projects;
+    ProjectCatalog nextProjects;
+    do {
+      projects = mProjects.get();
+      nextProjects = projects.with(currentProject);
+    }
+    while (!mProjects.compareAndSet(projects, nextProjects));
+    String canonicalName = nextProjects.getName(currentProject);
+    if (canonicalName != null) {
+      currentProject = canonicalName;
+    }
+
+    // In the stats before it's current, a pomodoro ending in between must find it there
+    Stats stats;
+    Stats next;
+    do {
+      stats = mStats.get();
+      next = stats.addProject(currentProject);
+    }
+    while (!mStats.compareAndSet(stats, next));
+    if (next != stats) {
+      mPersister.projectChanged(currentProject);
+    }
     mCurrentProject.set(currentProject);
-    mStats = mStats.addProject(currentProject);
+  }
+
+  /**
+   * @return The stats as of the last pomodoro that finished.
+   */
+  public Stats getStats() {
+    return mStats.get();
+  }
+
+  /**
+   * @return The pomodoros finished on every day, in total and per project.
+   */
+  public StatsHistory getHistory() {
+    return mHistory;
+  }
+
+  /**
+   * @return The current logical day (days since 1970-01-01, starting at 4am), as used by the history.
+   */
+  public int getToday() {
+    return mDayClock.getDay(mTimeSource.currentTimeMillis());
+  }
+
+  /**
+   * @return The session as it must be saved to carry on after the process is gone, see SessionState.
+   */
+  long getSessionCheckpoint() {
+    return SessionState.toCheckpoint(mState.get(), mEpochMillis);
+  }
+
+  /**
+   * @return The logical day of the last pomodoro finished, LogicalDayClock.NO_DAY if none.
+   */
+  int getLastPomodoroDay() {
+    return mLastPomodoroDay;
   }
 
   public String getCurrentProject() {
     return mCurrentProject.get();
   }
 
+  /**
+   * @return The names of all the projects sorted, can't be changed.
+   */
   public Collection<String> getAllProjects() {
-    HashSet<String> projectNames = new HashSet<String>(mStats.getProjects().keySet());
-    String currentProject = mCurrentProject.get();
-    if (currentProject != null && !currentProject.isEmpty()) {
-      projectNames.add(mCurrentProject.get());
-    }
-    return projectNames;
+    return mProjects.get().getNames();
   }
 
+  /**
+   * @return All the known projects, including the current one.
+   */
+  public ProjectCatalog getProjectCatalog() {
+    return mProjects.get();
+  }
+
+  /**
+   * Sets the single listener called directly by the thread dispatching the events, replacing the previous one.
+   * To have more listeners or call them on their own executor, register them with the event bus instead.
+   *
+   * @param listener Listener to set, null to remove it.
+   */
   public void setPomodoroListener(PomodoroEventListener listener) {
-    mListener = listener;
+    PomodoroEventBus.Registration registration = listener == null ? null : mEventBus.register(listener);
+    PomodoroEventBus.Registration previous = mListenerRegistration.getAndSet(registration);
+    if (previous != null) {
+      previous.unregister();
+    }
+  }
+
+  /**
+   * @return The bus delivering the events of this session to its listeners.
+   */
+  public PomodoroEventBus getEventBus() {
+    return mEventBus;
+  }
+
+  /**
+   * Subscribes to pomodoroTicked calls.
+   * Without subscriptions the timer runs tickless, only waking up at the end of each phase. Subscribe while the time
+   * is being displayed and cancel the subscription when it isn't.
+   * <p/>
+   * With subscriptions of different granularities, ticks are sent at the finest one.
+   *
+   * @param granularity How often to tick, NONE doesn't tick at all.
+   * @return Subscription that must be cancelled when ticks are no longer needed.
+   */
+  public TickSubscription subscribeTicks(TickGranularity granularity) {
+    TickSubscription subscription = new TickSubscription(granularity);
+    if (granularity != TickGranularity.NONE && mTickSubscriptions.getAndIncrement(granularity.ordinal()) == 0) {
+      updateScheduledWork(mTicks, true);
+      // Let the new subscriber know the time now instead of waiting for the first tick
+      mScheduler.schedule(new StateTask(mState.get(), granularity), 0, TimeUnit.NANOSECONDS);
+    }
+    return subscription;
+  }
+
+  private void unsubscribeTicks(TickGranularity granularity) {
+    if (granularity != TickGranularity.NONE && mTickSubscriptions.decrementAndGet(granularity.ordinal()) == 0) {
+      updateScheduledWork(mTicks, true);
+      if (getTickGranularity() == TickGranularity.NONE) {
+        mTickEvents = null;
+      }
+    }
   }
 }
@@ -0,0 +1,196 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Hosts many independent pomodoro sessions (one PomodoroApi each), keyed by a user or session id.
+ * <p/>
+ * Sessions are split between shards, each with its own lock, so operations on sessions in different shards never
+ * contend. All sessions share the same scheduler, so the number of threads doesn't grow with the number of sessions.
+ */
+public class PomodoroEngine {
+  public class SessionExistsException extends Exception {}
+
+  public static final int DEFAULT_SHARD_COUNT = 16;
+
+  /**
+   * Part of the session table, all access must be synchronized on the shard.
+   */
+  private static final class Shard {
+    private final Map<String, PomodoroApi> mSessions = new HashMap<String, PomodoroApi>();
+  }
+
+  private final PomodoroScheduler mScheduler;
+  private final TimeSource        mTimeSource;
+  private final Shard[]           mShards;
+  private final int               mShardMask;
+
+  /**
+   * Constructor with the default number of shards.
+   *
+   * @param scheduler Scheduler shared by all sessions.
+   */
+  public PomodoroEngine(PomodoroScheduler scheduler) {
+    this(DEFAULT_SHARD_COUNT, scheduler);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param shardCount Number of shards, rounded up to a power of 2. More shards means less contention.
+   * @param scheduler  Scheduler shared by all sessions.
+   */
+  public PomodoroEngine(int shardCount, PomodoroScheduler scheduler) {
+    this(shardCount, scheduler, TimeSource.SYSTEM);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param shardCount Number of shards, rounded up to a power of 2. More shards means less contention.
+   * @param scheduler  Scheduler shared by all sessions.
+   * @param timeSource Clock shared by all sessions, must match the scheduler's.
+   */
+  public PomodoroEngine(int shardCount, PomodoroScheduler scheduler, TimeSource timeSource) {
+    if (shardCount <= 0) {
+      throw new IllegalArgumentException("There must be at least one shard");
+    }
+    int size = Integer.highestOneBit(shardCount);
+    if (size < shardCount) {
+      size <<= 1;
+    }
+
+    mScheduler = scheduler;
+    mTimeSource = timeSource;
+    mShards = new Shard[size];
+    mShardMask = size - 1;
+    for (int i = 0; i < size; ++i) {
+      mShards[i] = new Shard();
+    }
+  }
+
+  /**
+   * Creates a new session.
+   *
+   * @param sessionId Id of the session.
+   * @return The new session.
+   * @throws PomodoroEngine.SessionExistsException if there's already a session with this id.
+   */
+  public PomodoroApi create(String sessionId) throws SessionExistsException {
+    Shard shard = getShard(sessionId);
+    synchronized (shard) {
+      if (shard.mSessions.containsKey(sessionId)) {
+        throw new SessionExistsException();
+      }
+      PomodoroApi session = new PomodoroApi(mScheduler, mTimeSource);
+      shard.mSessions.put(sessionId, session);
+      return session;
+    }
+  }
+
+  /**
+   * Gets a session, creating it if it doesn't exist yet.
+   *
+   * @param sessionId Id of the session.
+   * @return The session with the given id.
+   */
+  public PomodoroApi getOrCreate(String sessionId) {
+    Shard shard = getShard(sessionId);
+    synchronized (shard) {
+      PomodoroApi session = shard.mSessions.get(sessionId);
+      if (session == null) {
+        session = new PomodoroApi(mScheduler, mTimeSource);
+        shard.mSessions.put(sessionId, session);
+      }
+      return session;
+    }
+  }
+
+  /**
+   * Gets an existing session.
+   *
+   * @param sessionId Id of the session.
+   * @return The session or null if there's no session with this id.
+   */
+  public PomodoroApi get(String sessionId) {
+    Shard shard = getShard(sessionId);
+    synchronized (shard) {
+      return shard.mSessions.get(sessionId);
+    }
+  }
+
+  /**
+   * Removes a session from the engine, stopping it if it's running.
+   * Save it before evicting if you need to keep its state.
+   *
+   * @param sessionId Id of the session.
+   * @return The evicted session or null if there's no session with this id.
+   */
+  public PomodoroApi evict(String sessionId) {
+    Shard shard = getShard(sessionId);
+    PomodoroApi session;
+    synchronized (shard) {
+      session = shard.mSessions.remove(sessionId);
+    }
+    // Stop outside of the lock, it notifies the listener
+    if (session != null) {
+      session.stop();
+    }
+    return session;
+  }
+
+  /**
+   * @return Number of sessions in the engine.
+   */
+  public int getSessionCount() {
+    int count = 0;
+    for (int occupancy : getShardOccupancy()) {
+      count += occupancy;
+    }
+    return count;
+  }
+
+  /**
+   * Gets how many sessions each shard has, useful to check the sessions are evenly spread.
+   * Shards are read one at a time, so this isn't an atomic snapshot of the whole engine.
+   *
+   * @return Number of sessions per shard.
+   */
+  public int[] getShardOccupancy() {
+    int[] occupancy = new int[mShards.length];
+    for (int i = 0; i < mShards.length; ++i) {
+      synchronized (mShards[i]) {
+        occupancy[i] = mShards[i].mSessions.size();
+      }
+    }
+    return occupancy;
+  }
+
+  public PomodoroScheduler getScheduler() {
+    return mScheduler;
+  }
+
+  /**
+   * Gets a Reactive Streams publisher of the events of a session, creating the session if it doesn't exist yet.
+   *
+   * @param sessionId Id of the session.
+   * @param executor  Executor where the subscribers are signalled.
+   * @return New publisher of all the events of the session, see PomodoroPublisher for other views.
+   */
+  public PomodoroPublisher getPublisher(String sessionId, Executor executor) {
+    return new PomodoroPublisher(getOrCreate(sessionId), executor);
+  }
+
+  private Shard getShard(String sessionId) {
+    if (sessionId == null) {
+      throw new NullPointerException("Session id can't be null");
+    }
+    // Spread the hash (same as HashMap) so ids with similar hashes don't all end up in the same shard
+    int hash = sessionId.hashCode();
+    hash ^= (hash >>> 20) ^ (hash >>> 12);
+    hash ^= (hash >>> 7) ^ (hash >>> 4);
+    return mShards[hash & mShardMask];
+  }
+}
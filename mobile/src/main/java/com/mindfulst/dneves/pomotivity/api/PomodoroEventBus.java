@@ -0,0 +1,380 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import android.util.Log;
+
+import com.mindfulst.dneves.pomotivity.api.PomodoroApi.ListenerAction;
+import com.mindfulst.dneves.pomotivity.api.PomodoroApi.PomodoroEvent;
+import com.mindfulst.dneves.pomotivity.api.PomodoroApi.PomodoroEventListener;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Delivers the events of a PomodoroApi to any number of listeners.
+ * <p/>
+ * Listeners registered without an executor are called directly, one after the other, by the thread dispatching the
+ * session events, so they must be quick. Listeners that can be slow (sound, sync, persistence...) should be
+ * registered with their own executor: they get a mailbox and receive their events in order on that executor, without
+ * holding up the timer or anyone else.
+ * <p/>
+ * Lifecycle events (everything but ticks) are never dropped nor reordered. Ticks only matter until the next one, so a
+ * mailbox holds at most one: a newer tick replaces it (coalesced) and a lifecycle event drops it, as it's about a
+ * state that is gone. A listener that can't keep up gets the latest time instead of a backlog of old ones.
+ * <p/>
+ * A mailbox holds at most capacity lifecycle events, a listener that falls further behind (e.g. its executor is
+ * stuck) is unregistered with an error instead of holding on to every event of the session, see getOverflowCount().
+ * <p/>
+ * Publishing doesn't lock, the listeners are kept in an array that is copied whenever someone registers or
+ * unregisters, which is a lot less often than events are published.
+ */
+public final class PomodoroEventBus {
+  public static final int DEFAULT_MAILBOX_CAPACITY = 256;
+
+  private static final String DEBUG_TAG = "pomobus";
+
+  private static final Registration[] NO_REGISTRATIONS = new Registration[0];
+
+  /**
+   * An event waiting in the mailbox of a listener.
+   */
+  private static final class Delivery {
+    private final ListenerAction mAction;
+    private final PomodoroEvent  mEvent;
+    private final long           mPublishTime;
+    // Number of lifecycle events posted before this one, so a tick isn't delivered before the ones it comes after
+    private final long           mSequence;
+
+    private Delivery(ListenerAction action, PomodoroEvent event, long publishTime, long sequence) {
+      mAction = action;
+      mEvent = event;
+      mPublishTime = publishTime;
+      mSequence = sequence;
+    }
+  }
+
+  /**
+   * Handle returned when registering a listener, also keeps its delivery counters.
+   * <p/>
+   * Latency is measured from the time the event was published until the listener returned, so it includes the time
+   * waiting in the mailbox.
+   */
+  public final class Registration {
+    private final PomodoroEventListener mListener;
+    // null to call the listener directly
+    private final Executor              mExecutor;
+    private final int                   mCapacity;
+    // Lifecycle events, never dropped
+    private final Queue<Delivery>           mMailbox;
+    // Latest tick not delivered yet
+    private final AtomicReference<Delivery> mPendingTick    = new AtomicReference<Delivery>();
+    private final AtomicBoolean             mIsDraining     = new AtomicBoolean(false);
+    private volatile boolean                mIsRegistered   = true;
+    private final AtomicLong                mDeliveredCount = new AtomicLong(0);
+    private final AtomicLong                mExceptionCount = new AtomicLong(0);
+    private final AtomicLong                mTotalLatency   = new AtomicLong(0);
+    private final AtomicLong                mMaxLatency     = new AtomicLong(0);
+    private final AtomicLong                mCoalescedTicks = new AtomicLong(0);
+    private final AtomicLong                mDroppedTicks   = new AtomicLong(0);
+    private final AtomicLong                mOverflowCount  = new AtomicLong(0);
+
+    // Lifecycle events posted, events are published one at a time (see SessionDispatcher) so it's never contended
+    private volatile long mPostedLifecycle    = 0;
+    // Lifecycle events taken from the mailbox, only written by the thread draining it
+    private volatile long mDeliveredLifecycle = 0;
+
+    private final Runnable mDrainTask = new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    };
+
+    private Registration(PomodoroEventListener listener, Executor executor, int capacity) {
+      mListener = listener;
+      mExecutor = executor;
+      mCapacity = capacity;
+      mMailbox = executor == null ? null : new ConcurrentLinkedQueue<Delivery>();
+    }
+
+    /**
+     * Stops delivering events to the listener, including the ones still in its mailbox.
+     * Does nothing if it was already unregistered.
+     */
+    public void unregister() {
+      PomodoroEventBus.this.unregister(this);
+    }
+
+    public boolean isRegistered() {
+      return mIsRegistered;
+    }
+
+    /**
+     * @return Number of events delivered, including the ones where the listener threw.
+     */
+    public long getDeliveredCount() {
+      return mDeliveredCount.get();
+    }
+
+    /**
+     * @return Number of events where the listener threw an exception.
+     */
+    public long getExceptionCount() {
+      return mExceptionCount.get();
+    }
+
+    /**
+     * @return Average latency of the deliveries in nanoseconds, 0 if nothing was delivered.
+     */
+    public long getAverageLatencyNanos() {
+      long delivered = mDeliveredCount.get();
+      return delivered == 0 ? 0 : mTotalLatency.get() / delivered;
+    }
+
+    /**
+     * @return Highest latency of a delivery in nanoseconds.
+     */
+    public long getMaxLatencyNanos() {
+      return mMaxLatency.get();
+    }
+
+    /**
+     * @return Number of events waiting in the mailbox, always 0 for listeners called directly.
+     */
+    public int getPendingCount() {
+      if (mMailbox == null) {
+        return 0;
+      }
+      return mMailbox.size() + (mPendingTick.get() == null ? 0 : 1);
+    }
+
+    /**
+     * @return Number of ticks that were replaced by a newer tick before being delivered.
+     */
+    public long getCoalescedTickCount() {
+      return mCoalescedTicks.get();
+    }
+
+    /**
+     * @return Number of ticks that were dropped because a lifecycle event came before they were delivered.
+     */
+    public long getDroppedTickCount() {
+      return mDroppedTicks.get();
+    }
+
+    /**
+     * @return Number of times the mailbox was full, the listener is unregistered the first time.
+     */
+    public long getOverflowCount() {
+      return mOverflowCount.get();
+    }
+
+    private void post(ListenerAction action, PomodoroEvent event, long publishTime) {
+      if (mMailbox == null) {
+        deliver(action, event, publishTime);
+        return;
+      }
+      if (!mIsRegistered) {
+        return;
+      }
+
+      long sequence = mPostedLifecycle;
+      if (action != ListenerAction.TICK && sequence - mDeliveredLifecycle >= mCapacity) {
+        overflow();
+        return;
+      }
+      if (action == ListenerAction.TICK) {
+        if (mPendingTick.getAndSet(new Delivery(action, event, publishTime, sequence)) != null) {
+          mCoalescedTicks.incrementAndGet();
+        }
+      }
+      else {
+        // Add first, a tick posted after this one must find it in the mailbox
+        mMailbox.add(new Delivery(action, event, publishTime, sequence + 1));
+        mPostedLifecycle = sequence + 1;
+        if (mPendingTick.getAndSet(null) != null) {
+          mDroppedTicks.incrementAndGet();
+        }
+      }
+      if (mIsDraining.compareAndSet(false, true)) {
+        mExecutor.execute(mDrainTask);
+      }
+    }
+
+    /**
+     * The listener fell too far behind, drops it and its mailbox rather than keep piling events up for it.
+     */
+    private void overflow() {
+      mOverflowCount.incrementAndGet();
+      Log.e(DEBUG_TAG, "Listener fell behind by more than " + mCapacity + " events, unregistering it: " + mListener);
+      unregister();
+      mMailbox.clear();
+      mPendingTick.set(null);
+    }
+
+    /**
+     * Runs on the executor of the listener.
+     */
+    private void drain() {
+      do {
+        Delivery delivery;
+        while ((delivery = mMailbox.poll()) != null) {
+          deliverLifecycle(delivery);
+        }
+
+        Delivery tick = mPendingTick.getAndSet(null);
+        if (tick != null) {
+          // The tick may have been posted after we stopped polling, after lifecycle events that must go first
+          while (mDeliveredLifecycle < tick.mSequence && (delivery = mMailbox.poll()) != null) {
+            deliverLifecycle(delivery);
+          }
+          if (mDeliveredLifecycle == tick.mSequence) {
+            deliver(tick.mAction, tick.mEvent, tick.mPublishTime);
+          }
+          else {
+            mDroppedTicks.incrementAndGet();
+          }
+        }
+        mIsDraining.set(false);
+        // Someone may have posted after we stopped polling but before we cleared the flag
+      }
+      while ((!mMailbox.isEmpty() || mPendingTick.get() != null) && mIsDraining.compareAndSet(false, true));
+    }
+
+    private void deliverLifecycle(Delivery delivery) {
+      mDeliveredLifecycle = delivery.mSequence;
+      deliver(delivery.mAction, delivery.mEvent, delivery.mPublishTime);
+    }
+
+    private void deliver(ListenerAction action, PomodoroEvent event, long publishTime) {
+      if (!mIsRegistered) {
+        return;
+      }
+
+      try {
+        action.call(mListener, event);
+      }
+      catch (Exception e) {
+        mExceptionCount.incrementAndGet();
+        Log.e(DEBUG_TAG, "Exception thrown while calling the listener: " + e.toString());
+      }
+
+      long latency = mTimeSource.nanoTime() - publishTime;
+      mDeliveredCount.incrementAndGet();
+      mTotalLatency.addAndGet(latency);
+      long max;
+      do {
+        max = mMaxLatency.get();
+      }
+      while (latency > max && !mMaxLatency.compareAndSet(max, latency));
+    }
+  }
+
+  private final TimeSource mTimeSource;
+  // Copied on every change, publishing only reads it
+  private volatile Registration[] mRegistrations = NO_REGISTRATIONS;
+
+  /**
+   * Constructor.
+   *
+   * @param timeSource Clock used to measure the delivery latency.
+   */
+  PomodoroEventBus(TimeSource timeSource) {
+    mTimeSource = timeSource;
+  }
+
+  /**
+   * Registers a listener called directly by the thread dispatching the events.
+   * Keep it quick, it holds up the other listeners and the following events.
+   *
+   * @param listener Listener to register.
+   * @return Registration used to unregister the listener.
+   */
+  public Registration register(PomodoroEventListener listener) {
+    return register(listener, null);
+  }
+
+  /**
+   * Registers a listener called on the given executor, e.g. the UI thread.
+   * It receives its events one at a time and in order, no matter how many threads the executor has.
+   *
+   * @param listener Listener to register.
+   * @param executor Executor where the listener is called, null to call it directly.
+   * @return Registration used to unregister the listener.
+   */
+  public Registration register(PomodoroEventListener listener, Executor executor) {
+    return register(listener, executor, DEFAULT_MAILBOX_CAPACITY);
+  }
+
+  /**
+   * Registers a listener called on the given executor, with a mailbox of the given capacity.
+   *
+   * @param listener Listener to register.
+   * @param executor Executor where the listener is called, null to call it directly.
+   * @param capacity Number of lifecycle events the listener can fall behind before it's unregistered.
+   * @return Registration used to unregister the listener.
+   */
+  public Registration register(PomodoroEventListener listener, Executor executor, int capacity) {
+    if (listener == null) {
+      throw new NullPointerException("Listener can't be null");
+    }
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Mailbox capacity must be positive");
+    }
+
+    Registration registration = new Registration(listener, executor, capacity);
+    synchronized (this) {
+      Registration[] registrations = mRegistrations;
+      Registration[] next = new Registration[registrations.length + 1];
+      System.arraycopy(registrations, 0, next, 0, registrations.length);
+      next[registrations.length] = registration;
+      mRegistrations = next;
+    }
+    return registration;
+  }
+
+  /**
+   * @return Number of registered listeners.
+   */
+  public int getListenerCount() {
+    return mRegistrations.length;
+  }
+
+  private synchronized void unregister(Registration registration) {
+    if (!registration.mIsRegistered) {
+      return;
+    }
+    registration.mIsRegistered = false;
+
+    Registration[] registrations = mRegistrations;
+    Registration[] next = new Registration[registrations.length - 1];
+    int j = 0;
+    for (Registration current : registrations) {
+      if (current != registration) {
+        next[j++] = current;
+      }
+    }
+    mRegistrations = next;
+  }
+
+  /**
+   * Sends an event to all the listeners registered at this point.
+   *
+   * @param action Which listener method to call.
+   * @param event  Event to send.
+   */
+  void publish(ListenerAction action, PomodoroEvent event) {
+    Registration[] registrations = mRegistrations;
+    if (registrations.length == 0) {
+      return;
+    }
+
+    long publishTime = mTimeSource.nanoTime();
+    for (Registration registration : registrations) {
+      registration.post(action, event, publishTime);
+    }
+  }
+}
@@ -0,0 +1,311 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import com.mindfulst.dneves.pomotivity.api.PomodoroApi.ListenerAction;
+import com.mindfulst.dneves.pomotivity.api.PomodoroApi.PomodoroEvent;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reactive Streams publisher of the events of a session, for consumers that want to control how fast they get them.
+ * <p/>
+ * Subscribers only get as many events as they requested. Until then, events wait in a buffer of the subscription:
+ * lifecycle events are never dropped, but there can be at most bufferSize of them, the subscription fails if a
+ * subscriber falls further behind. Only the latest tick is kept, older ones are replaced (and dropped if a lifecycle
+ * event comes after them, as they're about a state that is gone).
+ * <p/>
+ * Subscribers are signalled on the executor of the publisher, never on the thread dispatching the session events or
+ * the one calling request(). Subscriptions that get ticks keep the session ticking (see PomodoroApi.subscribeTicks())
+ * until they're cancelled or fail.
+ * <p/>
+ * Use phasesOnly() and throttleTicks() to get publishers with less events. The streams never complete, cancel the
+ * subscription when done.
+ */
+public class PomodoroPublisher implements Publisher<PomodoroEvent> {
+  public static final int DEFAULT_BUFFER_SIZE = 64;
+
+  /**
+   * Subscription of a single subscriber, also the listener registered in the event bus of the session.
+   */
+  private final class EventSubscription implements Subscription, PomodoroApi.PomodoroEventListener {
+    private final    Subscriber<? super PomodoroEvent> mSubscriber;
+    // Events from the bus, moved to the outbox by the thread draining
+    private final    Queue<PomodoroEvent>              mInbox        = new ConcurrentLinkedQueue<PomodoroEvent>();
+    private final    AtomicLong                        mRequested    = new AtomicLong(0);
+    // Number of drain requests, only the thread that takes it from 0 drains
+    private final    AtomicInteger                     mWip          = new AtomicInteger(0);
+    private volatile boolean                           mIsCancelled  = false;
+    private volatile Throwable                         mError        = null;
+    private volatile PomodoroEventBus.Registration     mRegistration = null;
+    private volatile PomodoroApi.TickSubscription      mTicks        = null;
+
+    private final Runnable mDrainTask = new Runnable() {
+      @Override
+      public void run() {
+        drainLoop();
+      }
+    };
+
+    // Only touched by the bus, one event at a time
+    private int mLastTickTime = -1;
+
+    // Only touched by the thread draining
+    private final ArrayDeque<PomodoroEvent> mOutbox         = new ArrayDeque<PomodoroEvent>();
+    private       int                       mLifecycleCount = 0;
+
+    private EventSubscription(Subscriber<? super PomodoroEvent> subscriber) {
+      mSubscriber = subscriber;
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        mError = new IllegalArgumentException("Requested " + n + " events, must be positive");
+        drain();
+        return;
+      }
+
+      long requested;
+      long next;
+      do {
+        requested = mRequested.get();
+        next = requested + n;
+        // Overflowed, so it's unbounded
+        if (next < 0) {
+          next = Long.MAX_VALUE;
+        }
+      }
+      while (!mRequested.compareAndSet(requested, next));
+      drain();
+    }
+
+    @Override
+    public void cancel() {
+      mIsCancelled = true;
+      unregister();
+      drain();
+    }
+
+    private void unregister() {
+      PomodoroEventBus.Registration registration = mRegistration;
+      if (registration != null) {
+        registration.unregister();
+      }
+      PomodoroApi.TickSubscription ticks = mTicks;
+      if (ticks != null) {
+        ticks.cancel();
+      }
+    }
+
+    private void offer(PomodoroEvent event) {
+      if (event.action == ListenerAction.TICK) {
+        if (mPhasesOnly) {
+          return;
+        }
+        if (mTickSeconds > 0 && mLastTickTime >= 0 && mLastTickTime - event.currentTime < mTickSeconds) {
+          return;
+        }
+        mLastTickTime = event.currentTime;
+      }
+      else {
+        mLastTickTime = -1;
+      }
+      mInbox.add(event);
+      drain();
+    }
+
+    /**
+     * Drains on the executor, unless it's already draining (or about to), then it's left for that drain.
+     */
+    private void drain() {
+      if (mWip.getAndIncrement() == 0) {
+        mExecutor.execute(mDrainTask);
+      }
+    }
+
+    /**
+     * Moves the events from the inbox to the outbox and delivers as many as were requested.
+     * Runs on the executor, one drain at a time.
+     */
+    private void drainLoop() {
+      int missed = 1;
+      do {
+        PomodoroEvent event;
+        while ((event = mInbox.poll()) != null) {
+          stash(event);
+        }
+
+        if (mIsCancelled) {
+          mOutbox.clear();
+        }
+        else if (mError != null) {
+          mIsCancelled = true;
+          mOutbox.clear();
+          unregister();
+          mSubscriber.onError(mError);
+        }
+        else {
+          long requested = mRequested.get();
+          long emitted = 0;
+          while (emitted < requested && !mIsCancelled && (event = mOutbox.poll()) != null) {
+            if (event.action != ListenerAction.TICK) {
+              --mLifecycleCount;
+            }
+            mSubscriber.onNext(event);
+            ++emitted;
+          }
+          if (emitted > 0 && requested != Long.MAX_VALUE) {
+            mRequested.addAndGet(-emitted);
+          }
+        }
+        missed = mWip.addAndGet(-missed);
+      }
+      while (missed != 0);
+    }
+
+    /**
+     * Adds the event to the outbox, where a tick can only be the last event.
+     */
+    private void stash(PomodoroEvent event) {
+      PomodoroEvent last = mOutbox.peekLast();
+      if (last != null && last.action == ListenerAction.TICK) {
+        // Replaced by a newer tick, or dropped because the state it was about is gone
+        mOutbox.pollLast();
+      }
+      mOutbox.add(event);
+
+      if (event.action != ListenerAction.TICK && ++mLifecycleCount > mBufferSize && mError == null) {
+        mError = new IllegalStateException("Subscriber fell behind by more than " + mBufferSize + " events");
+      }
+    }
+
+    @Override
+    public void pomodoroStarted(PomodoroEvent event) {
+      offer(event);
+    }
+
+    @Override
+    public void pomodoroTicked(PomodoroEvent event) {
+      offer(event);
+    }
+
+    @Override
+    public void pomodoroEnded(PomodoroEvent event) {
+      offer(event);
+    }
+
+    @Override
+    public void breakStarted(PomodoroEvent event) {
+      offer(event);
+    }
+
+    @Override
+    public void pomodoroFinished(PomodoroEvent event) {
+      offer(event);
+    }
+
+    @Override
+    public void paused(PomodoroEvent event) {
+      offer(event);
+    }
+
+    @Override
+    public void resumed(PomodoroEvent event) {
+      offer(event);
+    }
+  }
+
+  private final PomodoroApi mApi;
+  private final Executor    mExecutor;
+  private final int         mBufferSize;
+  private final boolean     mPhasesOnly;
+  // Minimum seconds between ticks, 0 for all of them
+  private final int         mTickSeconds;
+
+  /**
+   * Constructor, publishes all the events of the session.
+   *
+   * @param api      Session whose events are published.
+   * @param executor Executor where the subscribers are signalled, e.g. the UI thread.
+   */
+  public PomodoroPublisher(PomodoroApi api, Executor executor) {
+    this(api, executor, DEFAULT_BUFFER_SIZE, false, 0);
+  }
+
+  private PomodoroPublisher(PomodoroApi api, Executor executor, int bufferSize, boolean phasesOnly,
+                            int tickSeconds) {
+    if (executor == null) {
+      throw new NullPointerException("Executor can't be null");
+    }
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("Buffer size must be positive");
+    }
+    mApi = api;
+    mExecutor = executor;
+    mBufferSize = bufferSize;
+    mPhasesOnly = phasesOnly;
+    mTickSeconds = tickSeconds;
+  }
+
+  /**
+   * @return Publisher of the same session without the ticks.
+   */
+  public PomodoroPublisher phasesOnly() {
+    return new PomodoroPublisher(mApi, mExecutor, mBufferSize, true, mTickSeconds);
+  }
+
+  /**
+   * Gets a publisher of the same session that skips ticks less than the given seconds apart.
+   * The first tick after a lifecycle event is always published.
+   *
+   * @param seconds Minimum time between ticks.
+   * @return Publisher with less ticks.
+   */
+  public PomodoroPublisher throttleTicks(int seconds) {
+    if (seconds <= 0) {
+      throw new IllegalArgumentException("Ticks must be at least a second apart");
+    }
+    return new PomodoroPublisher(mApi, mExecutor, mBufferSize, mPhasesOnly, seconds);
+  }
+
+  /**
+   * Gets a publisher of the same session with a different buffer size.
+   *
+   * @param bufferSize Number of lifecycle events a subscriber can fall behind before its subscription fails.
+   * @return Publisher with the given buffer size.
+   */
+  public PomodoroPublisher withBufferSize(int bufferSize) {
+    return new PomodoroPublisher(mApi, mExecutor, bufferSize, mPhasesOnly, mTickSeconds);
+  }
+
+  @Override
+  public void subscribe(Subscriber<? super PomodoroEvent> subscriber) {
+    if (subscriber == null) {
+      throw new NullPointerException("Subscriber can't be null");
+    }
+
+    EventSubscription subscription = new EventSubscription(subscriber);
+    subscriber.onSubscribe(subscription);
+    if (!subscription.mIsCancelled) {
+      subscription.mRegistration = mApi.getEventBus().register(subscription, mExecutor);
+      if (!mPhasesOnly) {
+        // Throttled to whole minutes, the session doesn't need to wake up every second
+        boolean minutes = mTickSeconds > 0 && mTickSeconds % 60 == 0;
+        subscription.mTicks = mApi.subscribeTicks(
+            minutes ? PomodoroApi.TickGranularity.MINUTE : PomodoroApi.TickGranularity.SECOND);
+      }
+      // Cancelled (or failed) while registering
+      if (subscription.mIsCancelled) {
+        subscription.unregister();
+      }
+    }
+  }
+}
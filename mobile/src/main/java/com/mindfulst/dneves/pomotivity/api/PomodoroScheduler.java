@@ -0,0 +1,60 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timer abstraction used by the PomodoroApi to schedule its ticks and phase boundaries.
+ * <p/>
+ * A single scheduler can (and should) be shared by many PomodoroApi instances, so implementations must be thread
+ * safe and tasks given to them should never block.
+ * <p/>
+ * As an Executor it runs tasks as soon as possible, on the same threads as the scheduled tasks.
+ */
+public interface PomodoroScheduler extends Executor {
+  /**
+   * Handle to a task that was given to the scheduler.
+   */
+  public interface ScheduledTask {
+    /**
+     * Cancels the task.
+     * A running task is allowed to finish, but it won't run again.
+     *
+     * @return true if this call cancelled the task, false if it had already finished or was already cancelled.
+     */
+    public boolean cancel();
+
+    /**
+     * @return true if the task was cancelled before finishing.
+     */
+    public boolean isCancelled();
+  }
+
+  /**
+   * Runs the task once after the given delay.
+   *
+   * @param task  Task to run.
+   * @param delay Time to wait before running the task.
+   * @param unit  Unit of the delay.
+   * @return Handle that can be used to cancel the task.
+   */
+  public ScheduledTask schedule(Runnable task, long delay, TimeUnit unit);
+
+  /**
+   * Runs the task periodically, first after the initial delay and then every period.
+   * Like ScheduledExecutorService, runs are relative to the initial schedule and not to the end of the last run.
+   *
+   * @param task         Task to run.
+   * @param initialDelay Time to wait before the first run.
+   * @param period       Time between runs.
+   * @param unit         Unit of the initial delay and period.
+   * @return Handle that can be used to cancel the task.
+   */
+  public ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit);
+
+  /**
+   * Stops accepting new tasks and releases the threads used by this scheduler.
+   * Tasks that didn't run yet are discarded.
+   */
+  public void shutdown();
+}
@@ -0,0 +1,228 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable set of project names, where names are case insensitive.
+ * <p/>
+ * Every project is kept under a canonical key (its lowercase name) with the name it was first added with. Lookups
+ * are O(1), names are kept sorted by key so a prefix is a range found with a binary search, and the lists returned
+ * are views of this catalog (no copies), which is fine because it never changes.
+ * <p/>
+ * Adding a project creates a new catalog, which is O(n), but that only happens when the user creates one.
+ */
+public final class ProjectCatalog {
+  /**
+   * Catalog without projects.
+   */
+  public static final ProjectCatalog EMPTY = new ProjectCatalog(new String[0], new String[0]);
+
+  /**
+   * Sorted view of a range of the catalog.
+   */
+  private final class NameList extends AbstractList<String> {
+    private final int mFrom;
+    private final int mTo;
+
+    private NameList(int from, int to) {
+      mFrom = from;
+      mTo = to;
+    }
+
+    @Override
+    public String get(int index) {
+      if (index < 0 || index >= size()) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size());
+      }
+      return mNames[mFrom + index];
+    }
+
+    @Override
+    public int size() {
+      return mTo - mFrom;
+    }
+  }
+
+  // Both sorted by key
+  private final String[]             mKeys;
+  private final String[]             mNames;
+  // Position of every key
+  private final Map<String, Integer> mIndex;
+  private final List<String>         mNameList;
+
+  private ProjectCatalog(String[] keys, String[] names) {
+    mKeys = keys;
+    mNames = names;
+    mIndex = new HashMap<String, Integer>(keys.length * 2);
+    for (int i = 0; i < keys.length; ++i) {
+      mIndex.put(keys[i], i);
+    }
+    mNameList = new NameList(0, keys.length);
+  }
+
+  /**
+   * Creates a catalog with the given projects.
+   * When more than one name has the same key, the first one is kept.
+   *
+   * @param names Names of the projects, empty and null names are ignored.
+   * @return The catalog.
+   */
+  public static ProjectCatalog of(Collection<String> names) {
+    Map<String, String> namesByKey = new HashMap<String, String>(names.size() * 2);
+    for (String name : names) {
+      if (name != null && !name.isEmpty()) {
+        String key = toKey(name);
+        if (!namesByKey.containsKey(key)) {
+          namesByKey.put(key, name);
+        }
+      }
+    }
+    String[] keys = namesByKey.keySet().toArray(new String[namesByKey.size()]);
+    Arrays.sort(keys);
+    String[] sortedNames = new String[keys.length];
+    for (int i = 0; i < keys.length; ++i) {
+      sortedNames[i] = namesByKey.get(keys[i]);
+    }
+    return new ProjectCatalog(keys, sortedNames);
+  }
+
+  /**
+   * Gets the canonical key of a project name.
+   *
+   * @param name Name of the project.
+   * @return The key, the same for all the names that only differ in case.
+   */
+  public static String toKey(String name) {
+    return name.toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Adds a project.
+   *
+   * @param name Name of the project.
+   * @return A new catalog with the project or this one if it already had it (or the name is empty).
+   */
+  public ProjectCatalog with(String name) {
+    if (name == null || name.isEmpty()) {
+      return this;
+    }
+    String key = toKey(name);
+    if (mIndex.containsKey(key)) {
+      return this;
+    }
+    // Not found, so this is where it goes
+    int position = -Arrays.binarySearch(mKeys, key) - 1;
+    String[] keys = new String[mKeys.length + 1];
+    String[] names = new String[mNames.length + 1];
+    System.arraycopy(mKeys, 0, keys, 0, position);
+    System.arraycopy(mNames, 0, names, 0, position);
+    keys[position] = key;
+    names[position] = name;
+    System.arraycopy(mKeys, position, keys, position + 1, mKeys.length - position);
+    System.arraycopy(mNames, position, names, position + 1, mNames.length - position);
+    return new ProjectCatalog(keys, names);
+  }
+
+  /**
+   * @return Number of projects.
+   */
+  public int size() {
+    return mKeys.length;
+  }
+
+  /**
+   * @param name Name of a project, in any case.
+   * @return true if the catalog has the project.
+   */
+  public boolean contains(String name) {
+    return name != null && mIndex.containsKey(toKey(name));
+  }
+
+  /**
+   * Gets the position of a project in the sorted names.
+   *
+   * @param name Name of a project, in any case.
+   * @return The position or -1 if the catalog doesn't have it.
+   */
+  public int indexOf(String name) {
+    if (name == null) {
+      return -1;
+    }
+    Integer position = mIndex.get(toKey(name));
+    return position != null ? position : -1;
+  }
+
+  /**
+   * Gets the name a project was added with.
+   *
+   * @param name Name of a project, in any case.
+   * @return The name in the catalog or null if the catalog doesn't have it.
+   */
+  public String getName(String name) {
+    int position = indexOf(name);
+    return position >= 0 ? mNames[position] : null;
+  }
+
+  /**
+   * @return The names of all the projects sorted by key, can't be changed.
+   */
+  public List<String> getNames() {
+    return mNameList;
+  }
+
+  /**
+   * Gets the projects starting with the given prefix, e.g. to complete what the user is typing.
+   *
+   * @param prefix Prefix of the names, in any case.
+   * @return The names sorted by key, can't be changed.
+   */
+  public List<String> getNamesWithPrefix(String prefix) {
+    if (prefix.isEmpty()) {
+      return mNameList;
+    }
+    String key = toKey(prefix);
+    int from = lowerBound(key);
+    int to = from;
+    // All the keys with the prefix are together, find the end of the range
+    int high = mKeys.length;
+    while (to < high) {
+      int middle = (to + high) >>> 1;
+      if (mKeys[middle].startsWith(key)) {
+        to = middle + 1;
+      }
+      else {
+        high = middle;
+      }
+    }
+    return new NameList(from, to);
+  }
+
+  /**
+   * Finds the first key that isn't smaller than the given one.
+   */
+  private int lowerBound(String key) {
+    int low = 0;
+    int high = mKeys.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (mKeys[middle].compareTo(key) < 0) {
+        low = middle + 1;
+      }
+      else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("ProjectCatalog(size:%d)", mKeys.length);
+  }
+}
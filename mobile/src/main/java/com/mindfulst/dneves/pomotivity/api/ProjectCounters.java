@@ -0,0 +1,224 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable pomodoro counters of the projects, without boxing.
+ * <p/>
+ * Project names are interned to ids by a ProjectIndex shared by every ProjectCounters that came from the same one,
+ * and the counters are a PersistentIntVector indexed by id. Changing a counter only copies the path to it in the
+ * vector, the index and the rest of the vector are shared.
+ * <p/>
+ * Ids can be interned without their project being added (e.g. by an update that lost a race), those have ABSENT as
+ * their counter.
+ */
+final class ProjectCounters {
+  private static final int ABSENT = -1;
+
+  /**
+   * Creates counters with lots of projects at once, without the copies of put().
+   */
+  static final class Builder {
+    private final ProjectIndex mIndex  = new ProjectIndex();
+    private       int[]        mCounts = new int[16];
+    private       int          mSize   = 0;
+
+    /**
+     * Adds a project, replacing its counter if it was already added.
+     *
+     * @param project Name of the project.
+     * @param count   Counter of the project, can't be negative.
+     * @return This builder.
+     */
+    Builder add(String project, int count) {
+      if (count < 0) {
+        throw new IllegalArgumentException("Invalid counter: " + count);
+      }
+      int id = mIndex.intern(project);
+      if (id == mSize) {
+        if (mSize == mCounts.length) {
+          mCounts = Arrays.copyOf(mCounts, mSize * 2);
+        }
+        ++mSize;
+      }
+      mCounts[id] = count;
+      return this;
+    }
+
+    /**
+     * @return The counters, the builder must not be used after this.
+     */
+    ProjectCounters build() {
+      return new ProjectCounters(mIndex, PersistentIntVector.of(mCounts, mSize), mSize);
+    }
+  }
+
+  private final ProjectIndex        mIndex;
+  private final PersistentIntVector mCounts;
+  private final int                 mSize;
+
+  // Created when first needed, it's fine if more than one thread creates it
+  private Map<String, Integer> mMapView = null;
+
+  private ProjectCounters(ProjectIndex index, PersistentIntVector counts, int size) {
+    mIndex = index;
+    mCounts = counts;
+    mSize = size;
+  }
+
+  /**
+   * @return New counters without projects, with their own index.
+   */
+  static ProjectCounters create() {
+    return new ProjectCounters(new ProjectIndex(), PersistentIntVector.EMPTY, 0);
+  }
+
+  /**
+   * @return Number of projects.
+   */
+  int size() {
+    return mSize;
+  }
+
+  /**
+   * @param project Name of the project.
+   * @return true if the project was added.
+   */
+  boolean contains(String project) {
+    return getCount(mIndex.idOf(project)) != ABSENT;
+  }
+
+  /**
+   * Gets the counter of a project.
+   *
+   * @param project      Name of the project.
+   * @param defaultValue Value to return if the project wasn't added.
+   * @return The counter or the default value.
+   */
+  int get(String project, int defaultValue) {
+    int count = getCount(mIndex.idOf(project));
+    return count != ABSENT ? count : defaultValue;
+  }
+
+  /**
+   * Sets the counter of a project, adding it if needed.
+   *
+   * @param project Name of the project.
+   * @param count   Counter of the project, can't be negative.
+   * @return New counters with the project set, or these if it already had the same counter.
+   */
+  ProjectCounters put(String project, int count) {
+    if (count < 0) {
+      throw new IllegalArgumentException("Invalid counter: " + count);
+    }
+    int id = mIndex.intern(project);
+    int previous = getCount(id);
+    if (previous == count) {
+      return this;
+    }
+    return new ProjectCounters(mIndex, mCounts.set(id, count, ABSENT), previous == ABSENT ? mSize + 1 : mSize);
+  }
+
+  /**
+   * Calls the visitor for every project, in the order they were first added.
+   *
+   * @param visitor Visitor to call.
+   */
+  void forEach(Stats.ProjectVisitor visitor) {
+    for (int id = 0; id < mCounts.size(); ++id) {
+      int count = mCounts.get(id);
+      if (count != ABSENT) {
+        visitor.visit(mIndex.getName(id), count);
+      }
+    }
+  }
+
+  /**
+   * @return A Map that reads these counters, it can't be changed.
+   */
+  Map<String, Integer> asMap() {
+    Map<String, Integer> view = mMapView;
+    if (view == null) {
+      view = new MapView();
+      mMapView = view;
+    }
+    return view;
+  }
+
+  private int getCount(int id) {
+    return id >= 0 && id < mCounts.size() ? mCounts.get(id) : ABSENT;
+  }
+
+  private final class MapView extends AbstractMap<String, Integer> {
+    private final Set<Map.Entry<String, Integer>> mEntries = new AbstractSet<Map.Entry<String, Integer>>() {
+      @Override
+      public Iterator<Map.Entry<String, Integer>> iterator() {
+        return new Iterator<Map.Entry<String, Integer>>() {
+          private int mNextId = findNext(0);
+
+          private int findNext(int id) {
+            while (id < mCounts.size() && mCounts.get(id) == ABSENT) {
+              ++id;
+            }
+            return id;
+          }
+
+          @Override
+          public boolean hasNext() {
+            return mNextId < mCounts.size();
+          }
+
+          @Override
+          public Map.Entry<String, Integer> next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            int id = mNextId;
+            mNextId = findNext(id + 1);
+            return new AbstractMap.SimpleImmutableEntry<String, Integer>(mIndex.getName(id), mCounts.get(id));
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException("The counters can't be changed");
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return mSize;
+      }
+    };
+
+    @Override
+    public Set<Map.Entry<String, Integer>> entrySet() {
+      return mEntries;
+    }
+
+    @Override
+    public int size() {
+      return mSize;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return key instanceof String && contains((String) key);
+    }
+
+    @Override
+    public Integer get(Object key) {
+      if (!(key instanceof String)) {
+        return null;
+      }
+      int count = getCount(mIndex.idOf((String) key));
+      return count != ABSENT ? count : null;
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+/**
+ * Gives every project name a dense int id, starting at 0, so counters can be kept in plain int arrays.
+ * <p/>
+ * Names are only ever added, never removed, so an id is valid forever and the index can be shared by every Stats
+ * that came from the same one. The names are kept in an open addressing hash table (linear probing) of ids, so there
+ * are no entry objects or boxed ints.
+ * <p/>
+ * Lookups don't lock: they read the table without synchronisation and only lock to check again if they don't find
+ * the name, which only happens for new names. This is safe because a name is written before the slot pointing to
+ * it, and a slot whose name isn't visible yet is treated as a miss.
+ */
+final class ProjectIndex {
+  private static final int INITIAL_CAPACITY = 16;
+
+  /**
+   * Hash table and names, replaced as a whole when growing.
+   */
+  private static final class Table {
+    // id + 1 of the name in each slot, 0 if empty
+    private final int[]    mSlots;
+    // Indexed by id
+    private final String[] mNames;
+
+    private Table(int capacity) {
+      mSlots = new int[capacity * 2];
+      mNames = new String[capacity];
+    }
+  }
+
+  private volatile Table mTable = new Table(INITIAL_CAPACITY);
+  // Guarded by this
+  private          int   mSize  = 0;
+
+  /**
+   * Gets the id of a name, without adding it.
+   *
+   * @param name Name of the project.
+   * @return The id or -1 if the name wasn't added.
+   */
+  int idOf(String name) {
+    int id = find(mTable, name);
+    if (id >= 0) {
+      return id;
+    }
+    synchronized (this) {
+      return find(mTable, name);
+    }
+  }
+
+  /**
+   * Gets the id of a name, adding it if needed.
+   *
+   * @param name Name of the project.
+   * @return The id.
+   */
+  int intern(String name) {
+    int id = find(mTable, name);
+    if (id >= 0) {
+      return id;
+    }
+    synchronized (this) {
+      Table table = mTable;
+      id = find(table, name);
+      if (id >= 0) {
+        return id;
+      }
+
+      if (mSize == table.mNames.length) {
+        table = grow(table);
+      }
+      id = mSize++;
+      table.mNames[id] = name;
+      // Written after the name, see the class comment
+      table.mSlots[findFreeSlot(table.mSlots, name.hashCode())] = id + 1;
+      // Publishes the new table (if it grew)
+      mTable = table;
+      return id;
+    }
+  }
+
+  /**
+   * Gets the name of an id.
+   *
+   * @param id Id given by intern().
+   * @return The name.
+   */
+  String getName(int id) {
+    String name = mTable.mNames[id];
+    if (name != null) {
+      return name;
+    }
+    synchronized (this) {
+      return mTable.mNames[id];
+    }
+  }
+
+  /**
+   * @return Number of names, all ids are smaller than this.
+   */
+  synchronized int size() {
+    return mSize;
+  }
+
+  private static int find(Table table, String name) {
+    int[] slots = table.mSlots;
+    int mask = slots.length - 1;
+    for (int slot = mix(name.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+      int id = slots[slot] - 1;
+      if (id < 0) {
+        return -1;
+      }
+      String slotName = table.mNames[id];
+      if (slotName == null) {
+        // Added by another thread and not visible yet
+        return -1;
+      }
+      if (slotName.equals(name)) {
+        return id;
+      }
+    }
+  }
+
+  private static int findFreeSlot(int[] slots, int hash) {
+    int mask = slots.length - 1;
+    int slot = mix(hash) & mask;
+    while (slots[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private Table grow(Table table) {
+    Table grown = new Table(table.mNames.length * 2);
+    System.arraycopy(table.mNames, 0, grown.mNames, 0, mSize);
+    for (int id = 0; id < mSize; ++id) {
+      grown.mSlots[findFreeSlot(grown.mSlots, grown.mNames[id].hashCode())] = id + 1;
+    }
+    return grown;
+  }
+
+  /**
+   * Spreads the bits of a hash, String hashes of similar names only differ in the low bits.
+   */
+  private static int mix(int hash) {
+    hash *= 0x9e3779b9;
+    return hash ^ (hash >>> 16);
+  }
+}
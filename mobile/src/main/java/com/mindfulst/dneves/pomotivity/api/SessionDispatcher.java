@@ -0,0 +1,149 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the notifications (and follow up work) of a session one at a time, in the order of the transitions that
+ * caused them.
+ * <p/>
+ * Transitions are CAS operations on the session state, so two threads can win consecutive transitions and submit
+ * their work in the opposite order. Every transition increments the state generation by one and submits exactly
+ * one task tagged with it, so the dispatcher holds back tasks until the ones of the previous generations ran.
+ * <p/>
+ * Nothing here blocks: submitting only adds to a lock-free queue and the tasks run on the given executor, with at
+ * most one thread draining the queue at a time.
+ * <p/>
+ * Ticks don't go through the queue, they're sent every second for as long as the session runs, so they have a slot of
+ * their own that doesn't allocate anything. A tick that isn't delivered before the next one is replaced by it.
+ */
+final class SessionDispatcher implements Runnable {
+  private static final String DEBUG_TAG = "pomodispatch";
+
+  private static final long NO_TICK = -1;
+
+  /**
+   * Receives the ticks submitted with submitTick(), on the thread draining the dispatcher.
+   */
+  interface TickHandler {
+    void onTick(int tick);
+  }
+
+  private static final class Delivery {
+    private final int      mGeneration;
+    private final Runnable mTask;
+
+    private Delivery(int generation, Runnable task) {
+      mGeneration = generation;
+      mTask = task;
+    }
+  }
+
+  private final Executor        mExecutor;
+  private final Queue<Delivery> mQueue      = new ConcurrentLinkedQueue<Delivery>();
+  private final AtomicBoolean   mIsDraining = new AtomicBoolean(false);
+  private final TickHandler     mTickHandler;
+  // Generation in the high half and the tick in the low half, NO_TICK if there's none
+  private final AtomicLong      mPendingTick = new AtomicLong(NO_TICK);
+
+  // Only touched by the thread draining the queue
+  private final Map<Integer, Delivery> mOutOfOrder = new HashMap<Integer, Delivery>();
+  private       int                    mGeneration;
+
+  /**
+   * Constructor.
+   *
+   * @param executor   Executor where the tasks will run.
+   * @param generation  Generation of the current state, the next task submitted must be for the one after.
+   * @param tickHandler Handler of the ticks.
+   */
+  SessionDispatcher(Executor executor, int generation, TickHandler tickHandler) {
+    mExecutor = executor;
+    mGeneration = generation;
+    mTickHandler = tickHandler;
+  }
+
+  /**
+   * Submits the work of a transition.
+   * Must be called exactly once for each generation, otherwise all the following work is held back.
+   *
+   * @param generation Generation of the state the transition set.
+   * @param task       Work to run once the work of all previous transitions ran.
+   */
+  void submit(int generation, Runnable task) {
+    add(new Delivery(generation, task));
+  }
+
+  /**
+   * Submits a tick, it's dropped if by the time it would be handled another transition already happened.
+   * <p/>
+   * Must be called from a thread of the executor: if nobody is draining, it drains right away instead of handing
+   * itself to the executor, which would allocate.
+   *
+   * @param generation Generation of the state the tick was created for.
+   * @param tick       Value given to the tick handler.
+   */
+  void submitTick(int generation, int tick) {
+    mPendingTick.set(((long) generation << 32) | (tick & 0xffffffffL));
+    if (mIsDraining.compareAndSet(false, true)) {
+      run();
+    }
+  }
+
+  private void add(Delivery delivery) {
+    mQueue.add(delivery);
+    if (mIsDraining.compareAndSet(false, true)) {
+      mExecutor.execute(this);
+    }
+  }
+
+  @Override
+  public void run() {
+    do {
+      Delivery delivery;
+      while ((delivery = mQueue.poll()) != null) {
+        mOutOfOrder.put(delivery.mGeneration, delivery);
+        int nextGeneration = (mGeneration + 1) & SessionState.GENERATION_MASK;
+        while ((delivery = mOutOfOrder.remove(nextGeneration)) != null) {
+          mGeneration = nextGeneration;
+          runTask(delivery.mTask);
+          nextGeneration = (mGeneration + 1) & SessionState.GENERATION_MASK;
+        }
+      }
+
+      // After the transitions, so a tick for a state that was already left is dropped
+      long tick = mPendingTick.getAndSet(NO_TICK);
+      if (tick != NO_TICK && (int) (tick >>> 32) == mGeneration) {
+        runTick((int) tick);
+      }
+      mIsDraining.set(false);
+      // Someone may have added after we stopped polling but before we cleared the flag
+    }
+    while ((!mQueue.isEmpty() || mPendingTick.get() != NO_TICK) && mIsDraining.compareAndSet(false, true));
+  }
+
+  private void runTick(int tick) {
+    try {
+      mTickHandler.onTick(tick);
+    }
+    catch (Exception e) {
+      Log.e(DEBUG_TAG, "Exception thrown while dispatching a tick: " + e.toString());
+    }
+  }
+
+  private static void runTask(Runnable task) {
+    try {
+      task.run();
+    }
+    catch (Exception e) {
+      Log.e(DEBUG_TAG, "Exception thrown while dispatching: " + e.toString());
+    }
+  }
+}
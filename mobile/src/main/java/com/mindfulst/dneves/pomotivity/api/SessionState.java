@@ -0,0 +1,163 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import com.mindfulst.dneves.pomotivity.api.PomodoroApi.PomodoroState;
+
+/**
+ * Packs the whole state of a session into a single long, so it can be read and updated with a single CAS.
+ * <p/>
+ * Layout (most significant bits first):
+ * phase (2 bits) - PomodoroState ordinal
+ * paused (1 bit)
+ * generation (20 bits) - incremented on every transition, so scheduled work can tell if it's stale
+ * time (41 bits) - while running, the phase deadline in milliseconds of the session clock (about 69 years)
+ * while paused, the exact remaining time in nanoseconds (about 36 minutes, longer than any phase)
+ * 0 when not running
+ * <p/>
+ * Checkpoints are the states saved so a session survives the process, which the session clock doesn't, so their
+ * deadlines are on the wall clock instead. They're packed the same way without the generation:
+ * phase (2 bits) - PomodoroState ordinal
+ * paused (1 bit)
+ * time (61 bits) - while running, the phase deadline in milliseconds since 1970-01-01
+ * while paused, the exact remaining time in nanoseconds
+ */
+final class SessionState {
+  static final int  TIME_BITS       = 41;
+  static final int  GENERATION_BITS = 20;
+  static final long TIME_MASK       = (1L << TIME_BITS) - 1;
+  static final int  GENERATION_MASK = (1 << GENERATION_BITS) - 1;
+
+  private static final long NANOS_PER_MILLI = 1000000L;
+
+  private static final int  GENERATION_SHIFT = TIME_BITS;
+  private static final int  PAUSED_SHIFT     = GENERATION_SHIFT + GENERATION_BITS;
+  private static final int  PHASE_SHIFT      = PAUSED_SHIFT + 1;
+  private static final long PAUSED_BIT       = 1L << PAUSED_SHIFT;
+
+  private static final PomodoroState[] PHASES = PomodoroState.values();
+
+  static final long NONE = pack(PomodoroState.NONE, false, 0, 0);
+
+  private static final int  CHECKPOINT_TIME_BITS   = 61;
+  private static final long CHECKPOINT_TIME_MASK   = (1L << CHECKPOINT_TIME_BITS) - 1;
+  private static final int  CHECKPOINT_PHASE_SHIFT = CHECKPOINT_TIME_BITS + 1;
+  private static final long CHECKPOINT_PAUSED_BIT  = 1L << CHECKPOINT_TIME_BITS;
+
+  // Checkpoint of a session that isn't running
+  static final long NO_CHECKPOINT = 0;
+
+  private SessionState() {}
+
+  /**
+   * Builds a state word.
+   *
+   * @param phase      Current phase.
+   * @param paused     Whether the phase is paused.
+   * @param generation Generation counter, only the lowest GENERATION_BITS are kept.
+   * @param time       Deadline in milliseconds (running) or remaining time in nanoseconds (paused).
+   * @return The packed state.
+   */
+  static long pack(PomodoroState phase, boolean paused, int generation, long time) {
+    if (time < 0 || time > TIME_MASK) {
+      throw new IllegalArgumentException("Time doesn't fit the state: " + time);
+    }
+    return ((long) phase.ordinal() << PHASE_SHIFT) | (paused ? PAUSED_BIT : 0) |
+           ((long) (generation & GENERATION_MASK) << GENERATION_SHIFT) | time;
+  }
+
+  static PomodoroState getPhase(long state) {
+    return PHASES[(int) (state >>> PHASE_SHIFT)];
+  }
+
+  static boolean isRunning(long state) {
+    return (state >>> PHASE_SHIFT) != PomodoroState.NONE.ordinal();
+  }
+
+  static boolean isPaused(long state) {
+    return (state & PAUSED_BIT) != 0;
+  }
+
+  static int getGeneration(long state) {
+    return (int) (state >>> GENERATION_SHIFT) & GENERATION_MASK;
+  }
+
+  static long getTime(long state) {
+    return state & TIME_MASK;
+  }
+
+  /**
+   * Builds the next state word, with the generation of the given state incremented.
+   */
+  static long next(long state, PomodoroState phase, boolean paused, long time) {
+    return pack(phase, paused, getGeneration(state) + 1, time);
+  }
+
+  /**
+   * Converts a time of the session clock to a deadline that can be packed, rounding to the nearest millisecond.
+   *
+   * @param nanos Nanoseconds of the session clock.
+   * @return Milliseconds of the session clock.
+   */
+  static long toDeadline(long nanos) {
+    return (nanos + NANOS_PER_MILLI / 2) / NANOS_PER_MILLI;
+  }
+
+  /**
+   * Gets the deadline of a running state.
+   *
+   * @param state Packed running state.
+   * @return Nanoseconds of the session clock.
+   */
+  static long getDeadlineNanos(long state) {
+    return getTime(state) * NANOS_PER_MILLI;
+  }
+
+  /**
+   * Gets the time left in the phase.
+   *
+   * @param state Packed state.
+   * @param now   Current time of the session clock, in nanoseconds.
+   * @return Nanoseconds left, 0 if not running or the deadline passed.
+   */
+  static long getRemainingNanos(long state, long now) {
+    if (!isRunning(state)) {
+      return 0;
+    }
+    if (isPaused(state)) {
+      return getTime(state);
+    }
+    return Math.max(getDeadlineNanos(state) - now, 0);
+  }
+
+  /**
+   * Builds the checkpoint of a state.
+   *
+   * @param state       Packed state.
+   * @param epochMillis Wall clock time when the session clock was 0, in milliseconds since 1970-01-01.
+   * @return The checkpoint, NO_CHECKPOINT if not running.
+   */
+  static long toCheckpoint(long state, long epochMillis) {
+    if (!isRunning(state)) {
+      return NO_CHECKPOINT;
+    }
+    long time = isPaused(state) ? getTime(state) : epochMillis + getTime(state);
+    return ((long) getPhase(state).ordinal() << CHECKPOINT_PHASE_SHIFT) |
+           (isPaused(state) ? CHECKPOINT_PAUSED_BIT : 0) | (time & CHECKPOINT_TIME_MASK);
+  }
+
+  static PomodoroState getCheckpointPhase(long checkpoint) {
+    return PHASES[(int) (checkpoint >>> CHECKPOINT_PHASE_SHIFT)];
+  }
+
+  static boolean isCheckpointPaused(long checkpoint) {
+    return (checkpoint & CHECKPOINT_PAUSED_BIT) != 0;
+  }
+
+  static long getCheckpointTime(long checkpoint) {
+    return checkpoint & CHECKPOINT_TIME_MASK;
+  }
+
+  static String toString(long state) {
+    return String.format("SessionState(phase:%s, paused:%b, generation:%d, time:%d)", getPhase(state),
+                         isPaused(state), getGeneration(state), getTime(state));
+  }
+}
@@ -0,0 +1,189 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.mindfulst.dneves.pomotivity.R;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Saves only what changed in the state of a PomodoroApi since it was last saved (or loaded).
+ * <p/>
+ * The stats and their history go to a StatsSnapshot and the rest to the preferences.
+ * <p/>
+ * The single values are compared with the ones last written, which is cheap. The projects and the days of the history
+ * are marked when they change instead, so saving is proportional to the number of them that changed and not to the
+ * number of projects or days. Nothing is written if nothing changed.
+ * <p/>
+ * Projects and days can be marked from any thread. They're unmarked before they're read, so a change that happens
+ * while saving is either written or stays marked for the next save.
+ */
+final class StatePersister {
+  private final Set<String>  mDirtyProjects = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final Set<Integer> mDirtyDays     = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+  // What was last written, guarded by this
+  private StatsSnapshot mSnapshot       = null;
+  private Stats         mSavedStats     = null;
+  private boolean       mSavedAutoStart = false;
+  private int           mSavedLastDay   = LogicalDayClock.NO_DAY;
+  private String        mSavedProject   = "";
+  private long          mSavedSession   = SessionState.NO_CHECKPOINT;
+  // Set until the state is loaded, or when the preferences are in an old format, everything is written then
+  private boolean       mNeedsFullSave  = true;
+  // Set when the stats couldn't be written, they're all written by the next save
+  private boolean       mStatsFailed    = false;
+  // Set when the preferences written by the last save weren't committed, they're all written by the next save
+  private boolean       mPrefsFailed    = false;
+
+  /**
+   * Marks the counter of a project as changed.
+   *
+   * @param project Name of the project.
+   */
+  void projectChanged(String project) {
+    if (project != null && !project.isEmpty()) {
+      mDirtyProjects.add(project);
+    }
+  }
+
+  /**
+   * Marks a day of the history as changed.
+   *
+   * @param day Logical day.
+   */
+  void dayChanged(int day) {
+    mDirtyDays.add(day);
+  }
+
+  /**
+   * Sets the state as it's saved, right after loading it.
+   *
+   * @param snapshot  Snapshot where the stats are saved.
+   * @param stats     Stats as they were loaded.
+   * @param autoStart Auto start as it was loaded.
+   * @param lastDay   Day of the last pomodoro as it was loaded.
+   * @param project   Current project as it was loaded.
+   * @param session   Checkpoint of the session as it was loaded.
+   * @param isLegacy  true if the preferences have an older format that needs a full save.
+   */
+  synchronized void loaded(StatsSnapshot snapshot, Stats stats, boolean autoStart, int lastDay, String project,
+                           long session, boolean isLegacy) {
+    mSnapshot = snapshot;
+    mSavedStats = stats;
+    mSavedAutoStart = autoStart;
+    mSavedLastDay = lastDay;
+    mSavedProject = project;
+    mSavedSession = session;
+    mNeedsFullSave = isLegacy;
+    mStatsFailed = false;
+    mPrefsFailed = false;
+    mDirtyProjects.clear();
+    mDirtyDays.clear();
+  }
+
+  /**
+   * Marks the preferences written by the last save as not saved, e.g. because committing the editor failed.
+   */
+  synchronized void commitFailed() {
+    mPrefsFailed = true;
+  }
+
+  /**
+   * Writes what changed, but doesn't call apply() or commit().
+   *
+   * @param context    Context where to get the attribute keys from.
+   * @param prefEditor Editor used to save the state.
+   * @param api        Session to save.
+   * @return true if anything was written to the preferences, there's no need to apply the editor otherwise.
+   * @throws IOException if the stats couldn't be written, after writing the rest to the editor (commit it anyway).
+   *                     They're all written by the next save.
+   */
+  synchronized boolean save(Context context, SharedPreferences.Editor prefEditor, PomodoroApi api)
+      throws IOException {
+    // Before reading the state, see the class comment
+    List<String> dirtyProjects = new ArrayList<String>(mDirtyProjects.size());
+    for (Iterator<String> it = mDirtyProjects.iterator(); it.hasNext(); ) {
+      dirtyProjects.add(it.next());
+      it.remove();
+    }
+    List<Integer> dirtyDays = new ArrayList<Integer>(mDirtyDays.size());
+    for (Iterator<Integer> it = mDirtyDays.iterator(); it.hasNext(); ) {
+      dirtyDays.add(it.next());
+      it.remove();
+    }
+
+    Stats stats = api.getStats();
+    StatsHistory history = api.getHistory();
+    boolean autoStart = api.getAutoStart();
+    int lastDay = api.getLastPomodoroDay();
+    String project = api.getCurrentProject();
+    long session = api.getSessionCheckpoint();
+
+    if (mSnapshot == null) {
+      mSnapshot = PomodoroApi.createSnapshot(context);
+    }
+    boolean isFullSave = mNeedsFullSave;
+    boolean changed = false;
+    IOException statsError = null;
+    try {
+      if (isFullSave || mStatsFailed) {
+        mSnapshot.writeFull(stats, history);
+      }
+      else {
+        boolean countersChanged = stats.finishedToday != mSavedStats.finishedToday ||
+                                  stats.allTime != mSavedStats.allTime || stats.totalDays != mSavedStats.totalDays;
+        mSnapshot.append(stats, countersChanged, dirtyProjects, history, dirtyDays);
+      }
+      mSavedStats = stats;
+      mStatsFailed = false;
+    }
+    catch (IOException e) {
+      // The preferences are only cleaned up once the stats are in the snapshot
+      statsError = e;
+      mStatsFailed = true;
+      isFullSave = false;
+    }
+    if (isFullSave) {
+      Stats.removeSaved(context, prefEditor);
+      prefEditor.remove(context.getString(R.string.last_pomodoro_key));
+      mNeedsFullSave = false;
+      changed = true;
+    }
+
+    // What the editor of a commit that failed had isn't on disk, whatever the values saved say
+    boolean writePrefs = isFullSave || mPrefsFailed;
+    mPrefsFailed = false;
+    if (writePrefs || autoStart != mSavedAutoStart) {
+      prefEditor.putBoolean(context.getString(R.string.auto_start_key), autoStart);
+      mSavedAutoStart = autoStart;
+      changed = true;
+    }
+    if (writePrefs || lastDay != mSavedLastDay) {
+      prefEditor.putInt(context.getString(R.string.last_pomodoro_day_key), lastDay);
+      mSavedLastDay = lastDay;
+      changed = true;
+    }
+    if (writePrefs || !project.equals(mSavedProject)) {
+      prefEditor.putString(context.getString(R.string.current_project), project);
+      mSavedProject = project;
+      changed = true;
+    }
+    if (writePrefs || session != mSavedSession) {
+      prefEditor.putLong(context.getString(R.string.session_checkpoint_key), session);
+      mSavedSession = session;
+      changed = true;
+    }
+    if (statsError != null) {
+      throw statsError;
+    }
+    return changed;
+  }
+}
@@ -0,0 +1,338 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.mindfulst.dneves.pomotivity.api.PomodoroApi.PomodoroEvent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves the state of a session in a background thread, grouping the saves that are requested close together into a
+ * single commit.
+ * <p/>
+ * Saves are requested with requestSave(), which only bumps a counter, so it can be called from the timer thread. The
+ * writer commits once the oldest pending request is older than the interval, or there are batchSize of them, so at
+ * most an interval of changes is lost if the process dies. flush() commits right away and sync() also waits until
+ * it's on disk, for when that's needed (e.g. before the app goes away).
+ * <p/>
+ * A commit that fails (the stats or the preferences couldn't be written) leaves the requests pending, they're tried
+ * again an interval later or on the next flush(), and sync() doesn't return true until they're on disk.
+ * <p/>
+ * It's also a listener that requests a save on every transition of the session (which changes its checkpoint, and
+ * the stats when a pomodoro ends), register it in the event bus of the session.
+ * <p/>
+ * After each commit it also checkpoints the metrics of a StatsAggregator, if one was set with setAggregator(), so
+ * starting the app only replays the events journaled since the last save.
+ */
+public class StateWriter implements PomodoroApi.PomodoroEventListener {
+  public static final long DEFAULT_INTERVAL_MILLIS = 2000;
+  public static final int  DEFAULT_BATCH_SIZE      = 16;
+
+  private static final String DEBUG_TAG = "pomowriter";
+
+  private final PomodoroApi       mApi;
+  private final Context           mContext;
+  private final SharedPreferences mPreferences;
+  private final long              mIntervalNanos;
+  private final int               mBatchSize;
+
+  // All guarded by mLock
+  private final Object  mLock         = new Object();
+  // Sequence of the last save requested and of the last one committed, everything up to it is on disk
+  private       long    mRequested    = 0;
+  private       long    mCommitted    = 0;
+  // When the oldest request that isn't committed was made
+  private       long    mFirstPending = 0;
+  private       boolean mFlush        = false;
+  private       boolean mClosed       = false;
+  // Set while the last commit failed, it's only tried again after the interval or on a flush
+  private       boolean mFailing      = false;
+  private       int     mCommitCount  = 0;
+  private       int     mFailureCount = 0;
+
+  // Both guarded by mLock, null until set
+  private StatsAggregator mAggregator = null;
+  private File            mCheckpoint = null;
+
+  /**
+   * Constructor, starts the writer thread.
+   *
+   * @param api            Session to save.
+   * @param context        Context where to get the attribute keys and files directory from, it's kept.
+   * @param preferences    Preferences where to save the state.
+   * @param intervalMillis Longest a requested save waits for others to be grouped with.
+   * @param batchSize      Number of requested saves that are committed right away.
+   */
+  public StateWriter(PomodoroApi api, Context context, SharedPreferences preferences, long intervalMillis,
+                     int batchSize) {
+    if (intervalMillis < 0 || batchSize < 1) {
+      throw new IllegalArgumentException("Invalid interval or batch size: " + intervalMillis + ", " + batchSize);
+    }
+    mApi = api;
+    mContext = context;
+    mPreferences = preferences;
+    mIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    mBatchSize = batchSize;
+
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    }, "pomodoro-writer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Sets the aggregator whose metrics are checkpointed after every commit, it must get its events from a
+   * JournalListener.
+   *
+   * @param aggregator Aggregator to checkpoint.
+   * @param checkpoint Checkpoint file, see StatsAggregator.save().
+   */
+  public void setAggregator(StatsAggregator aggregator, File checkpoint) {
+    synchronized (mLock) {
+      mAggregator = aggregator;
+      mCheckpoint = checkpoint;
+    }
+  }
+
+  /**
+   * Requests the state to be saved, it's committed with the other requests at most an interval from now.
+   *
+   * @return Sequence of the request.
+   */
+  public long requestSave() {
+    synchronized (mLock) {
+      if (mClosed) {
+        return mRequested;
+      }
+      if (mRequested == mCommitted) {
+        mFirstPending = System.nanoTime();
+      }
+      long sequence = ++mRequested;
+      // The first one so the writer starts timing the interval
+      if (sequence - mCommitted == 1 || sequence - mCommitted >= mBatchSize) {
+        mLock.notifyAll();
+      }
+      return sequence;
+    }
+  }
+
+  /**
+   * Requests the state to be saved right away, without waiting for it.
+   */
+  public void flush() {
+    synchronized (mLock) {
+      requestSave();
+      mFlush = true;
+      mLock.notifyAll();
+    }
+  }
+
+  /**
+   * Durability barrier, saves the state right away and waits until it's on disk.
+   *
+   * @param timeout Longest time to wait.
+   * @param unit    Unit of the timeout.
+   * @return true if it was saved, false if it timed out or failed (it's still tried later).
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public boolean sync(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    synchronized (mLock) {
+      flush();
+      long sequence = mRequested;
+      while (mCommitted < sequence) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return false;
+        }
+        TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Commits what's pending and stops the writer thread, saves requested after this are ignored.
+   * If that commit fails, what's pending is lost.
+   */
+  public void close() {
+    synchronized (mLock) {
+      mClosed = true;
+      mLock.notifyAll();
+    }
+  }
+
+  /**
+   * @return Number of commits made, for tests.
+   */
+  int getCommitCount() {
+    synchronized (mLock) {
+      return mCommitCount;
+    }
+  }
+
+  /**
+   * @return Number of commits that failed, for tests.
+   */
+  int getFailureCount() {
+    synchronized (mLock) {
+      return mFailureCount;
+    }
+  }
+
+  private void writeLoop() {
+    while (true) {
+      long sequence;
+      synchronized (mLock) {
+        try {
+          while (!isCommitDue()) {
+            if (mClosed && mRequested == mCommitted) {
+              return;
+            }
+            if (mRequested == mCommitted) {
+              mLock.wait();
+            }
+            else {
+              TimeUnit.NANOSECONDS.timedWait(mLock, mFirstPending + mIntervalNanos - System.nanoTime());
+            }
+          }
+        }
+        catch (InterruptedException e) {
+          Log.w(DEBUG_TAG, "Writer interrupted, the pending saves are lost");
+          return;
+        }
+        sequence = mRequested;
+        mFlush = false;
+      }
+
+      boolean committed = commit();
+      if (committed) {
+        checkpointAggregator();
+      }
+      synchronized (mLock) {
+        mFailing = !committed;
+        if (committed) {
+          mCommitted = sequence;
+          ++mCommitCount;
+        }
+        else {
+          ++mFailureCount;
+          if (mClosed) {
+            Log.e(DEBUG_TAG, "Closed with " + (mRequested - mCommitted) + " saves that failed, they're lost");
+            return;
+          }
+        }
+        // Requests that came in while committing (or the ones that failed) wait from now
+        mFirstPending = System.nanoTime();
+        mLock.notifyAll();
+      }
+    }
+  }
+
+  private boolean isCommitDue() {
+    long pending = mRequested - mCommitted;
+    if (pending == 0) {
+      return false;
+    }
+    boolean isIntervalOver = System.nanoTime() - mFirstPending >= mIntervalNanos;
+    if (mFailing) {
+      // Don't keep hammering a disk that's full or gone
+      return mFlush || isIntervalOver;
+    }
+    return mFlush || mClosed || pending >= mBatchSize || isIntervalOver;
+  }
+
+  private void checkpointAggregator() {
+    StatsAggregator aggregator;
+    File checkpoint;
+    synchronized (mLock) {
+      aggregator = mAggregator;
+      checkpoint = mCheckpoint;
+    }
+    if (aggregator == null) {
+      return;
+    }
+    try {
+      aggregator.checkpoint(checkpoint);
+    }
+    catch (IOException e) {
+      // Only makes the next start slower, the journal still has every event
+      Log.e(DEBUG_TAG, "Failed to checkpoint the metrics: " + e.toString());
+    }
+  }
+
+  /**
+   * @return true if everything was written.
+   */
+  private boolean commit() {
+    try {
+      SharedPreferences.Editor editor = mPreferences.edit();
+      boolean isSaved = true;
+      boolean changed;
+      try {
+        changed = mApi.save(mContext, editor);
+      }
+      catch (IOException e) {
+        Log.e(DEBUG_TAG, "Failed to save the stats: " + e.getMessage());
+        isSaved = false;
+        // The rest of the state is in the editor
+        changed = true;
+      }
+      // The stats are synced to disk by the snapshot, commit() waits for the rest
+      if (changed && !editor.commit()) {
+        Log.e(DEBUG_TAG, "Failed to commit the preferences");
+        mApi.commitFailed();
+        isSaved = false;
+      }
+      return isSaved;
+    }
+    catch (RuntimeException e) {
+      // Don't let a bad save stop the ones after it
+      Log.e(DEBUG_TAG, "Failed to save the state: " + e.toString());
+      mApi.commitFailed();
+      return false;
+    }
+  }
+
+  @Override
+  public void pomodoroStarted(PomodoroEvent event) {
+    requestSave();
+  }
+
+  @Override
+  public void pomodoroTicked(PomodoroEvent event) {
+  }
+
+  @Override
+  public void pomodoroEnded(PomodoroEvent event) {
+    // The stats were just incremented, and the break started in the same transition
+    requestSave();
+  }
+
+  @Override
+  public void breakStarted(PomodoroEvent event) {
+  }
+
+  @Override
+  public void pomodoroFinished(PomodoroEvent event) {
+    requestSave();
+  }
+
+  @Override
+  public void paused(PomodoroEvent event) {
+    requestSave();
+  }
+
+  @Override
+  public void resumed(PomodoroEvent event) {
+    requestSave();
+  }
+}
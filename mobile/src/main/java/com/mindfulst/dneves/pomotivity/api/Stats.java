@@ -5,8 +5,6 @@ import android.content.SharedPreferences;
 
 import com.mindfulst.dneves.pomotivity.R;
 
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -14,10 +12,18 @@ import java.util.Set;
  * Immutable class responsible for keeping simple stats state.
  */
 public final class Stats {
-  public final  int                  finishedToday;
-  public final  int                  allTime;
-  public final  int                  totalDays;
-  private final Map<String, Integer> mProjectMap;
+  /**
+   * Receives the counter of every project, without boxing.
+   */
+  public interface ProjectVisitor {
+    void visit(String project, int count);
+  }
+
+  public final  int             finishedToday;
+  public final  int             allTime;
+  public final  int             totalDays;
+  // Persistent, so every new Stats shares most of it with the one it came from
+  private final ProjectCounters mProjectMap;
 
   /**
    * Default constructor.
@@ -26,14 +32,13 @@ public final class Stats {
     finishedToday = 0;
     allTime = 0;
     totalDays = 0;
-    // For simplicity always create the map even though it can't get changed
-    mProjectMap = new HashMap<String, Integer>();
+    mProjectMap = ProjectCounters.create();
   }
 
   /**
    * Attribute constructor.
    * <p/>
-   * This should be used internally only.
+   * This should be used internally only (and by StatsSnapshot).
    * This class should only be constructed with default values, load constructor or by any of the methods.
    *
    * @param finishedToday Today's counter.
@@ -41,16 +46,16 @@ public final class Stats {
    * @param totalDays     Total days with Pomodoros.
    * @param projectMap    Map of current projects with their individual pomodoro counters.
    */
-  private Stats(int finishedToday, int allTime, int totalDays, Map<String, Integer> projectMap) {
+  Stats(int finishedToday, int allTime, int totalDays, ProjectCounters projectMap) {
     this.finishedToday = finishedToday;
     this.allTime = allTime;
     this.totalDays = totalDays;
-    // Don't copy because this is accessed only from this class and it was mutated already before calling this
     this.mProjectMap = projectMap;
   }
 
   /**
-   * Constructor that loads the initial values from the preferences.
+   * Constructor that loads the values saved in the preferences by older versions, they're saved in a StatsSnapshot
+   * now.
    *
    * @param context     Context where to get the attribute keys from.
    * @param preferences Preferences to load the attributes from.
@@ -62,6 +67,39 @@ public final class Stats {
     this.mProjectMap = parseProjectMap(preferences.getStringSet(context.getString(R.string.projects_key), null));
   }
 
+  /**
+   * Checks if the preferences have stats saved by older versions.
+   *
+   * @param context     Context where to get the attribute keys from.
+   * @param preferences Preferences to check.
+   * @return true if they have any.
+   */
+  static boolean hasSaved(Context context, SharedPreferences preferences) {
+    return preferences.contains(context.getString(R.string.all_time_key)) ||
+           preferences.contains(context.getString(R.string.projects_key));
+  }
+
+  /**
+   * Removes the stats saved in the preferences by older versions, once they're in a StatsSnapshot.
+   * Doesn't call apply() or commit().
+   *
+   * @param context    Context where to get the attribute keys from.
+   * @param prefEditor Editor used to remove them.
+   */
+  static void removeSaved(Context context, SharedPreferences.Editor prefEditor) {
+    prefEditor.remove(context.getString(R.string.finished_today_key))
+              .remove(context.getString(R.string.all_time_key))
+              .remove(context.getString(R.string.total_days_key))
+              .remove(context.getString(R.string.projects_key));
+  }
+
+  /**
+   * @return The counters of the projects, for StatsSnapshot.
+   */
+  ProjectCounters getProjectCounters() {
+    return mProjectMap;
+  }
+
   /**
    * Resets the today counter but keeps the other counters intact.
    *
@@ -78,14 +116,10 @@ public final class Stats {
    * @return A new stats object with the new project or the same Stats object if the project already exists.
    */
   protected Stats addProject(String project) {
-    if (project == null || project.isEmpty()) {
+    if (project == null || project.isEmpty() || mProjectMap.contains(project)) {
       return this;
     }
-
-    // We need to copy because some code might use the previous Stats objects which should be immutable
-    HashMap<String, Integer> newProjectsMap = new HashMap<String, Integer>(mProjectMap);
-    newProjectsMap.put(project, newProjectsMap.containsKey(project) ? newProjectsMap.get(project) : 0);
-    return new Stats(finishedToday, allTime, totalDays, newProjectsMap);
+    return new Stats(finishedToday, allTime, totalDays, mProjectMap.put(project, 0));
   }
 
   /**
@@ -94,14 +128,16 @@ public final class Stats {
    * @param currentProject Name of a project or null. This will increment its counter too. You must call addProject
    *                       first.
    * @return new Stats instance with the incremented counters.
+   * @throws NullPointerException if the project wasn't added.
    */
   protected Stats incrementCounter(String currentProject) {
-    Map<String, Integer> newProjectsMap = mProjectMap;
+    ProjectCounters newProjectsMap = mProjectMap;
     // If we have a current project we'll have to change it...
     if (currentProject != null && !currentProject.isEmpty()) {
-      // We need to copy because some code might use the previous Stats objects which should be immutable
-      newProjectsMap = new HashMap<String, Integer>(mProjectMap);
-      newProjectsMap.put(currentProject, newProjectsMap.get(currentProject) + 1);
+      if (!mProjectMap.contains(currentProject)) {
+        throw new NullPointerException("Unknown project: " + currentProject);
+      }
+      newProjectsMap = mProjectMap.put(currentProject, mProjectMap.get(currentProject, 0) + 1);
     }
     return new Stats(finishedToday + 1, allTime + 1, totalDays, newProjectsMap);
   }
@@ -123,41 +159,42 @@ public final class Stats {
                 allTime, totalDays, mProjectMap.size());
   }
 
+  /**
+   * @return The pomodoro counter of every project, can't be changed.
+   */
   public Map<String, Integer> getProjects() {
-    return new HashMap<String, Integer>(mProjectMap);
+    return mProjectMap.asMap();
   }
 
   /**
-   * Saves all the Stats attributes but doesn't call apply() or commit().
+   * Gets the pomodoro counter of a project.
    *
-   * @param context    Context where to get the attribute keys from.
-   * @param prefEditor Editor used to save the state.
+   * @param project Name of the project.
+   * @return The counter, 0 if it isn't a project.
    */
-  protected void save(Context context, SharedPreferences.Editor prefEditor) {
-    prefEditor.putInt(context.getString(R.string.finished_today_key), finishedToday)
-              .putInt(context.getString(R.string.all_time_key), allTime)
-              .putInt(context.getString(R.string.total_days_key), totalDays)
-              .putStringSet(context.getString(R.string.projects_key), getProjectMapAsSet());
+  public int getProjectCount(String project) {
+    return mProjectMap.get(project, 0);
   }
 
-  private Set<String> getProjectMapAsSet() {
-    Set<String> projectSet = new HashSet<String>(mProjectMap.size());
-    for (Map.Entry<String, Integer> projectInfo : mProjectMap.entrySet()) {
-      projectSet.add(String.format("%s,%d", projectInfo.getKey(), projectInfo.getValue()));
-    }
-    return projectSet;
+  /**
+   * Calls the visitor with the pomodoro counter of every project, in the order they were added.
+   * Unlike getProjects(), this doesn't box anything.
+   *
+   * @param visitor Visitor to call.
+   */
+  public void forEachProject(ProjectVisitor visitor) {
+    mProjectMap.forEach(visitor);
   }
 
-  private static Map<String, Integer> parseProjectMap(Set<String> projectSet) {
-    if (projectSet == null) {
-      return new HashMap<String, Integer>();
-    }
-
-    HashMap<String, Integer> projectMap = new HashMap<String, Integer>(projectSet.size());
-    for (String projectInfo : projectSet) {
-      String[] projectValues = projectInfo.split(",");
-      projectMap.put(projectValues[0], Integer.parseInt(projectValues[1]));
+  private static ProjectCounters parseProjectMap(Set<String> projectSet) {
+    ProjectCounters.Builder builder = new ProjectCounters.Builder();
+    if (projectSet != null) {
+      for (String projectInfo : projectSet) {
+        // The counter is after the last comma, names could have commas too
+        int separator = projectInfo.lastIndexOf(',');
+        builder.add(projectInfo.substring(0, separator), Integer.parseInt(projectInfo.substring(separator + 1)));
+      }
     }
-    return projectMap;
+    return builder.build();
   }
 }
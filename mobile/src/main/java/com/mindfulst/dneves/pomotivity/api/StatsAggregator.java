@@ -0,0 +1,446 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import com.mindfulst.dneves.pomotivity.api.PomodoroApi.ListenerAction;
+import com.mindfulst.dneves.pomotivity.api.PomodoroApi.PomodoroEvent;
+import com.mindfulst.dneves.pomotivity.api.PomodoroApi.PomodoroState;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the metrics of the stats screens up to date from the lifecycle events, so they never scan the history.
+ * <p/>
+ * Every event updates them in O(1): the streaks are counters compared with the day of the last pomodoro, the heatmap
+ * and the histogram are fixed arrays indexed by the time of the event, and the projects are in a hash map.
+ * <p/>
+ * Register it in the event bus of the session, or feed it the events of an EventJournal with replay() to rebuild the
+ * metrics of the whole history (e.g. when the app starts).
+ * <p/>
+ * So that rebuilding doesn't take longer the longer the history is, save() checkpoints the metrics together with the
+ * offset of the journal they include, and load() restores them so only the events after that offset are replayed.
+ * To keep that offset right while the session runs, feed it the events through the JournalListener that journals
+ * them instead of registering it, and call checkpoint() every now and then (e.g. after the state is saved).
+ * <p/>
+ * Checkpoint layout:
+ * magic (int) - CHECKPOINT_MAGIC
+ * version (byte) - CHECKPOINT_VERSION, other versions aren't read
+ * journal offset (long) - see EventJournal.Reader.getOffset()
+ * time zone (UTF) - ID of the time zone of the days and hours, a checkpoint of another one isn't read
+ * last day, current streak, best streak, completed, interrupted (ints)
+ * heatmap (HOURS_PER_WEEK ints)
+ * histogram length (int) and histogram (ints)
+ * number of projects (int) and then each project: name (UTF), completed (int), interrupted (int)
+ * checksum (long) - CRC32 of everything before it
+ */
+public class StatsAggregator implements PomodoroApi.PomodoroEventListener {
+  public static final int HOURS_PER_WEEK = 7 * 24;
+
+  private static final long MILLIS_PER_HOUR = 60 * 60 * 1000L;
+  private static final long MILLIS_PER_DAY  = 24 * MILLIS_PER_HOUR;
+  // 1970-01-01 was a Thursday, the heatmap weeks start on Monday
+  private static final int  EPOCH_WEEKDAY   = 3;
+
+  private static final int  CHECKPOINT_MAGIC   = 0x504f4d41;
+  private static final byte CHECKPOINT_VERSION = 1;
+
+  /**
+   * Pomodoros of a project, mutable but only changed by the aggregator.
+   */
+  private static final class ProjectRate {
+    private int mCompleted   = 0;
+    private int mInterrupted = 0;
+  }
+
+  private final TimeZone        mTimeZone;
+  private final LogicalDayClock mDayClock;
+
+  // All guarded by this
+  private final int[]                    mHeatmap          = new int[HOURS_PER_WEEK];
+  // Interrupted pomodoros by the whole minutes they ran for
+  private final int[]                    mInterruptions    = new int[PomodoroApi.POMODORO_DURATION / 60 + 1];
+  private final Map<String, ProjectRate> mProjects         = new HashMap<String, ProjectRate>();
+  private       int                      mLastDay          = LogicalDayClock.NO_DAY;
+  private       int                      mCurrentStreak    = 0;
+  private       int                      mBestStreak       = 0;
+  private       int                      mCompleted        = 0;
+  private       int                      mInterrupted      = 0;
+  // Offset of the journal right after the last event added, and the one of the last checkpoint saved or loaded
+  private       long                     mJournalOffset    = EventJournal.START_OFFSET;
+  private       long                     mCheckpointOffset = EventJournal.START_OFFSET;
+
+  /**
+   * Constructor.
+   *
+   * @param timeZone Time zone of the days and hours.
+   */
+  public StatsAggregator(TimeZone timeZone) {
+    mTimeZone = (TimeZone) timeZone.clone();
+    mDayClock = new LogicalDayClock(timeZone, PomodoroApi.DAY_START_HOUR);
+  }
+
+  /**
+   * Adds an event to the metrics.
+   *
+   * @param action      Action of the event.
+   * @param phase       Phase of the event.
+   * @param currentTime Time left of the event.
+   * @param millis      Wall clock time of the event, in milliseconds since the epoch.
+   * @param project     Current project when the event happened, empty if none.
+   */
+  public synchronized void add(ListenerAction action, PomodoroState phase, int currentTime, long millis,
+                               String project) {
+    if (action == ListenerAction.END_POMODORO) {
+      addCompleted(millis, project);
+    }
+    else if (action == ListenerAction.FINISH && phase == PomodoroState.POMODORO && currentTime > 0) {
+      // Stopped before the end, breaks stopped early aren't interruptions
+      addInterrupted(PomodoroApi.POMODORO_DURATION - currentTime, project);
+    }
+  }
+
+  /**
+   * Adds an event that was just journaled to the metrics.
+   *
+   * @param action        Action of the event.
+   * @param phase         Phase of the event.
+   * @param currentTime   Time left of the event.
+   * @param millis        Wall clock time of the event, in milliseconds since the epoch.
+   * @param project       Current project when the event happened, empty if none.
+   * @param journalOffset Offset of the journal right after the event, see EventJournal.append().
+   */
+  public synchronized void add(ListenerAction action, PomodoroState phase, int currentTime, long millis,
+                               String project, long journalOffset) {
+    add(action, phase, currentTime, millis, project);
+    mJournalOffset = journalOffset;
+  }
+
+  /**
+   * Adds every event of a journal, in order.
+   *
+   * @param reader Reader of the journal, at its start or where the last checkpoint loaded ends.
+   * @throws IOException if the journal can't be read.
+   */
+  public void replay(EventJournal.Reader reader) throws IOException {
+    while (reader.next()) {
+      ListenerAction action = reader.getAction();
+      // Only read the project of the events that use it
+      if (action == ListenerAction.END_POMODORO || action == ListenerAction.FINISH) {
+        add(action, reader.getPhase(), reader.getCurrentTime(), reader.getTime(), reader.getProject());
+      }
+    }
+    synchronized (this) {
+      mJournalOffset = reader.getOffset();
+    }
+  }
+
+  private void addCompleted(long millis, String project) {
+    ++mCompleted;
+    ++getProjectRate(project).mCompleted;
+    ++mHeatmap[getHourOfWeek(millis)];
+
+    int day = mDayClock.getDay(millis);
+    if (day == mLastDay) {
+      return;
+    }
+    // A pomodoro on the day after the last one carries on the streak, a gap or the clock going back starts a new one
+    mCurrentStreak = day == mLastDay + 1 && mLastDay != LogicalDayClock.NO_DAY ? mCurrentStreak + 1 : 1;
+    mBestStreak = Math.max(mBestStreak, mCurrentStreak);
+    mLastDay = day;
+  }
+
+  private void addInterrupted(int elapsedSeconds, String project) {
+    ++mInterrupted;
+    ++getProjectRate(project).mInterrupted;
+    ++mInterruptions[Math.max(0, Math.min(elapsedSeconds / 60, mInterruptions.length - 1))];
+  }
+
+  private ProjectRate getProjectRate(String project) {
+    ProjectRate rate = mProjects.get(project);
+    if (rate == null) {
+      rate = new ProjectRate();
+      mProjects.put(project, rate);
+    }
+    return rate;
+  }
+
+  /**
+   * Gets the hour of the week of the local time, without a calendar.
+   *
+   * @return From 0 (Monday 0h) to HOURS_PER_WEEK - 1 (Sunday 23h).
+   */
+  private int getHourOfWeek(long millis) {
+    long local = millis + mTimeZone.getOffset(millis);
+    long day = floorDiv(local, MILLIS_PER_DAY);
+    int weekday = (int) ((day + EPOCH_WEEKDAY) % 7 + 7) % 7;
+    int hour = (int) ((local - day * MILLIS_PER_DAY) / MILLIS_PER_HOUR);
+    return weekday * 24 + hour;
+  }
+
+  private static long floorDiv(long x, long y) {
+    long quotient = x / y;
+    return (x % y != 0 && (x < 0) != (y < 0)) ? quotient - 1 : quotient;
+  }
+
+  /**
+   * Gets the current streak, days in a row with at least one pomodoro.
+   *
+   * @param today Current logical day, see PomodoroApi.getToday().
+   * @return The streak, it's still current if there are no pomodoros today yet but there were yesterday.
+   */
+  public synchronized int getCurrentStreak(int today) {
+    return mLastDay != LogicalDayClock.NO_DAY && today - mLastDay <= 1 ? mCurrentStreak : 0;
+  }
+
+  /**
+   * @return The longest streak ever.
+   */
+  public synchronized int getBestStreak() {
+    return mBestStreak;
+  }
+
+  /**
+   * @return Pomodoros completed in each hour of the week, indexed from Monday 0h, see HOURS_PER_WEEK.
+   */
+  public synchronized int[] getHeatmap() {
+    return mHeatmap.clone();
+  }
+
+  /**
+   * @return Pomodoros interrupted, indexed by the whole minutes they ran for.
+   */
+  public synchronized int[] getInterruptionHistogram() {
+    return mInterruptions.clone();
+  }
+
+  /**
+   * @return Pomodoros completed.
+   */
+  public synchronized int getCompleted() {
+    return mCompleted;
+  }
+
+  /**
+   * @return Pomodoros interrupted.
+   */
+  public synchronized int getInterrupted() {
+    return mInterrupted;
+  }
+
+  /**
+   * Gets the completion rate of a project.
+   *
+   * @param project Name of the project, empty for the pomodoros without one.
+   * @return Pomodoros completed over the ones started (completed or interrupted), 0 if none.
+   */
+  public synchronized float getCompletionRate(String project) {
+    ProjectRate rate = mProjects.get(project);
+    if (rate == null || rate.mCompleted + rate.mInterrupted == 0) {
+      return 0;
+    }
+    return rate.mCompleted / (float) (rate.mCompleted + rate.mInterrupted);
+  }
+
+  /**
+   * Saves a checkpoint if events were journaled since the last one, see save().
+   *
+   * @param file Checkpoint file.
+   * @return true if it was saved, false if it didn't need to be.
+   * @throws IOException if the file can't be written.
+   */
+  public boolean checkpoint(File file) throws IOException {
+    synchronized (this) {
+      if (mJournalOffset == mCheckpointOffset) {
+        return false;
+      }
+    }
+    save(file);
+    return true;
+  }
+
+  /**
+   * Writes the metrics, with the offset of the journal right after the last event in them, to a new file that replaces
+   * the checkpoint, so it's never left half written.
+   *
+   * @param file Checkpoint file.
+   * @throws IOException if the file can't be written.
+   */
+  public void save(File file) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(bytes);
+    data.writeInt(CHECKPOINT_MAGIC);
+    data.writeByte(CHECKPOINT_VERSION);
+    long journalOffset;
+    synchronized (this) {
+      // Taken with the metrics, so they always match
+      journalOffset = mJournalOffset;
+      data.writeLong(journalOffset);
+      data.writeUTF(mTimeZone.getID());
+      data.writeInt(mLastDay);
+      data.writeInt(mCurrentStreak);
+      data.writeInt(mBestStreak);
+      data.writeInt(mCompleted);
+      data.writeInt(mInterrupted);
+      writeInts(data, mHeatmap);
+      data.writeInt(mInterruptions.length);
+      writeInts(data, mInterruptions);
+      data.writeInt(mProjects.size());
+      for (Map.Entry<String, ProjectRate> entry : mProjects.entrySet()) {
+        data.writeUTF(entry.getKey());
+        data.writeInt(entry.getValue().mCompleted);
+        data.writeInt(entry.getValue().mInterrupted);
+      }
+    }
+    CRC32 crc = new CRC32();
+    crc.update(bytes.toByteArray());
+    data.writeLong(crc.getValue());
+
+    File temp = new File(file.getPath() + ".tmp");
+    FileOutputStream output = new FileOutputStream(temp);
+    try {
+      bytes.writeTo(output);
+      output.getFD().sync();
+    }
+    finally {
+      output.close();
+    }
+    if (!temp.renameTo(file)) {
+      throw new IOException("Can't replace " + file);
+    }
+    synchronized (this) {
+      mCheckpointOffset = journalOffset;
+    }
+  }
+
+  /**
+   * Replaces the metrics with the ones of a checkpoint, if there's one.
+   *
+   * @param file Checkpoint file, it doesn't need to exist.
+   * @return Offset of the journal where to carry on replaying, EventJournal.START_OFFSET if there's no checkpoint.
+   * @throws IOException if the checkpoint can't be read, is damaged or doesn't match this aggregator (e.g. the time
+   *                     zone changed), the metrics are left as they were then.
+   */
+  public long load(File file) throws IOException {
+    if (!file.exists()) {
+      return EventJournal.START_OFFSET;
+    }
+    byte[] bytes;
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      bytes = new byte[(int) input.length()];
+      input.readFully(bytes);
+    }
+    finally {
+      input.close();
+    }
+    if (bytes.length < 8) {
+      throw new IOException("Checkpoint too short: " + file);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length - 8);
+    DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+    if (data.readInt() != CHECKPOINT_MAGIC || data.readByte() != CHECKPOINT_VERSION) {
+      throw new IOException("Not a checkpoint of this version: " + file);
+    }
+    long journalOffset = data.readLong();
+    String timeZone = data.readUTF();
+    if (!timeZone.equals(mTimeZone.getID())) {
+      throw new IOException("Checkpoint of another time zone: " + timeZone);
+    }
+    int lastDay = data.readInt();
+    int currentStreak = data.readInt();
+    int bestStreak = data.readInt();
+    int completed = data.readInt();
+    int interrupted = data.readInt();
+    int[] heatmap = readInts(data, HOURS_PER_WEEK);
+    int histogramLength = data.readInt();
+    if (histogramLength != mInterruptions.length) {
+      throw new IOException("Checkpoint of another pomodoro duration: " + histogramLength);
+    }
+    int[] interruptions = readInts(data, histogramLength);
+    int projectCount = data.readInt();
+    Map<String, ProjectRate> projects = new HashMap<String, ProjectRate>();
+    for (int i = 0; i < projectCount; ++i) {
+      ProjectRate rate = new ProjectRate();
+      projects.put(data.readUTF(), rate);
+      rate.mCompleted = data.readInt();
+      rate.mInterrupted = data.readInt();
+    }
+    if (data.readLong() != crc.getValue() || data.available() > 0) {
+      throw new IOException("Damaged checkpoint: " + file);
+    }
+
+    synchronized (this) {
+      mLastDay = lastDay;
+      mCurrentStreak = currentStreak;
+      mBestStreak = bestStreak;
+      mCompleted = completed;
+      mInterrupted = interrupted;
+      System.arraycopy(heatmap, 0, mHeatmap, 0, HOURS_PER_WEEK);
+      System.arraycopy(interruptions, 0, mInterruptions, 0, histogramLength);
+      mProjects.clear();
+      mProjects.putAll(projects);
+      mJournalOffset = journalOffset;
+      mCheckpointOffset = journalOffset;
+    }
+    return journalOffset;
+  }
+
+  private static void writeInts(DataOutputStream data, int[] values) throws IOException {
+    for (int value : values) {
+      data.writeInt(value);
+    }
+  }
+
+  private static int[] readInts(DataInputStream data, int count) throws IOException {
+    int[] values = new int[count];
+    for (int i = 0; i < count; ++i) {
+      values[i] = data.readInt();
+    }
+    return values;
+  }
+
+  private void addEvent(ListenerAction action, PomodoroEvent event) {
+    // When it happened, a pomodoro caught up after a restart goes to the day and hour it ended in
+    add(action, event.currentState, event.currentTime, event.time, event.project);
+  }
+
+  @Override
+  public void pomodoroStarted(PomodoroEvent event) {
+  }
+
+  @Override
+  public void pomodoroTicked(PomodoroEvent event) {
+  }
+
+  @Override
+  public void pomodoroEnded(PomodoroEvent event) {
+    addEvent(ListenerAction.END_POMODORO, event);
+  }
+
+  @Override
+  public void breakStarted(PomodoroEvent event) {
+  }
+
+  @Override
+  public void pomodoroFinished(PomodoroEvent event) {
+    addEvent(ListenerAction.FINISH, event);
+  }
+
+  @Override
+  public void paused(PomodoroEvent event) {
+  }
+
+  @Override
+  public void resumed(PomodoroEvent event) {
+  }
+}
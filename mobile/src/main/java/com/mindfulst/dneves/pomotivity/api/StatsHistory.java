@@ -0,0 +1,423 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Number of pomodoros finished on every logical day, in total and per project.
+ * <p/>
+ * Days are the ones of the LogicalDayClock (days since 1970-01-01). The recent days are kept in a ring buffer where
+ * every day is a row with a column of project ids and a column of counters, so recording is a short scan of the
+ * projects of that day. Days that fall out of the ring are compressed (varints) into blocks of BLOCK_DAYS aligned
+ * days, found with a binary search, so a query only reads the blocks of the days it asks for.
+ * <p/>
+ * Days without pomodoros take no space. Only the days still in the ring can be recorded.
+ * <p/>
+ * It's saved with the stats in their StatsSnapshot, a day at a time: forEachRecord() gives the whole days and
+ * restore() puts them back, oldest first.
+ * <p/>
+ * All the methods are synchronized, recording happens once per pomodoro and queries are for the UI.
+ */
+public final class StatsHistory {
+  /**
+   * Number of recent days kept uncompressed.
+   */
+  public static final int RING_DAYS = 32;
+
+  private static final int BLOCK_SHIFT = 5;
+  private static final int BLOCK_DAYS  = 1 << BLOCK_SHIFT;
+  private static final int NO_DAY      = LogicalDayClock.NO_DAY;
+
+  /**
+   * Receives the pomodoros of a day.
+   */
+  public interface DayVisitor {
+    void visit(int day, int count);
+  }
+
+  /**
+   * Receives a whole day, the arrays are reused so only the first size entries are the ones of the day.
+   */
+  interface RecordVisitor {
+    void visit(int day, int total, String[] projects, int[] counts, int size);
+  }
+
+  /**
+   * Compressed days, each one: day offset in the block, total, number of projects and then the id and counter of
+   * every project, all as varints.
+   */
+  private static final class Block {
+    private final int    mIndex;
+    private       byte[] mData   = new byte[64];
+    private       int    mLength = 0;
+
+    private Block(int index) {
+      mIndex = index;
+    }
+
+    private void writeVarint(int value) {
+      if (mLength + 5 > mData.length) {
+        mData = Arrays.copyOf(mData, mData.length * 2);
+      }
+      while ((value & ~0x7f) != 0) {
+        mData[mLength++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      mData[mLength++] = (byte) value;
+    }
+  }
+
+  /**
+   * Reads the varints of a block, the position is the only state so it's reused.
+   */
+  private static final class BlockReader {
+    private byte[] mData;
+    private int    mPosition;
+
+    private void reset(Block block) {
+      mData = block.mData;
+      mPosition = 0;
+    }
+
+    private int readVarint() {
+      int value = 0;
+      for (int shift = 0; ; shift += 7) {
+        byte b = mData[mPosition++];
+        value |= (b & 0x7f) << shift;
+        if (b >= 0) {
+          return value;
+        }
+      }
+    }
+  }
+
+  private final ProjectIndex mProjects = new ProjectIndex();
+
+  // The ring, indexed by day % RING_DAYS
+  private final int[]   mRingDays     = new int[RING_DAYS];
+  private final int[]   mRingTotals   = new int[RING_DAYS];
+  private final int[][] mRingProjects = new int[RING_DAYS][];
+  private final int[][] mRingCounts   = new int[RING_DAYS][];
+  private final int[]   mRingSizes    = new int[RING_DAYS];
+  private       int     mLatestDay    = NO_DAY;
+
+  // Sorted by index, every day in them is older than the ring
+  private final List<Block> mBlocks = new ArrayList<Block>();
+  private final BlockReader mReader = new BlockReader();
+
+  public StatsHistory() {
+    Arrays.fill(mRingDays, NO_DAY);
+    for (int slot = 0; slot < RING_DAYS; ++slot) {
+      mRingProjects[slot] = new int[4];
+      mRingCounts[slot] = new int[4];
+    }
+  }
+
+  /**
+   * Counts a finished pomodoro.
+   *
+   * @param day     Logical day the pomodoro finished on.
+   * @param project Project of the pomodoro, null or empty if none.
+   * @throws IllegalArgumentException if the day is no longer in the ring.
+   */
+  public synchronized void record(int day, String project) {
+    if (mLatestDay != NO_DAY && day <= mLatestDay - RING_DAYS) {
+      throw new IllegalArgumentException("Day " + day + " is too old to record, the latest is " + mLatestDay);
+    }
+    if (mLatestDay == NO_DAY || day > mLatestDay) {
+      advanceTo(day);
+    }
+
+    int slot = day & (RING_DAYS - 1);
+    if (mRingDays[slot] != day) {
+      mRingDays[slot] = day;
+      mRingTotals[slot] = 0;
+      mRingSizes[slot] = 0;
+    }
+    ++mRingTotals[slot];
+    if (project == null || project.isEmpty()) {
+      return;
+    }
+
+    int projectId = mProjects.intern(project);
+    int[] projects = mRingProjects[slot];
+    int size = mRingSizes[slot];
+    for (int i = 0; i < size; ++i) {
+      if (projects[i] == projectId) {
+        ++mRingCounts[slot][i];
+        return;
+      }
+    }
+    if (size == projects.length) {
+      mRingProjects[slot] = projects = Arrays.copyOf(projects, size * 2);
+      mRingCounts[slot] = Arrays.copyOf(mRingCounts[slot], size * 2);
+    }
+    projects[size] = projectId;
+    mRingCounts[slot][size] = 1;
+    mRingSizes[slot] = size + 1;
+  }
+
+  /**
+   * @return The latest day recorded, LogicalDayClock.NO_DAY if none.
+   */
+  public synchronized int getLatestDay() {
+    return mLatestDay;
+  }
+
+  /**
+   * Gets the total of a range of days, e.g. a week.
+   *
+   * @param fromDay First day, inclusive.
+   * @param toDay   Last day, exclusive.
+   * @return Pomodoros finished in the range.
+   */
+  public synchronized int getTotal(int fromDay, int toDay) {
+    final int[] total = new int[1];
+    scan(fromDay, toDay, -1, new DayVisitor() {
+      @Override
+      public void visit(int day, int count) {
+        total[0] += count;
+      }
+    });
+    return total[0];
+  }
+
+  /**
+   * Calls the visitor for every day with pomodoros in a range, in order.
+   *
+   * @param fromDay First day, inclusive.
+   * @param toDay   Last day, exclusive.
+   * @param visitor Visitor called with the day and its total.
+   */
+  public synchronized void forEachDay(int fromDay, int toDay, DayVisitor visitor) {
+    scan(fromDay, toDay, -1, visitor);
+  }
+
+  /**
+   * Gets the pomodoros of a project on every day of a range, e.g. to show its trend.
+   *
+   * @param project Name of the project.
+   * @param fromDay First day, inclusive.
+   * @param toDay   Last day, exclusive.
+   * @return Counter of every day, index 0 is fromDay.
+   */
+  public synchronized int[] getProjectCounts(String project, final int fromDay, int toDay) {
+    final int[] counts = new int[Math.max(toDay - fromDay, 0)];
+    int projectId = mProjects.idOf(project);
+    if (projectId >= 0) {
+      scan(fromDay, toDay, projectId, new DayVisitor() {
+        @Override
+        public void visit(int day, int count) {
+          counts[day - fromDay] = count;
+        }
+      });
+    }
+    return counts;
+  }
+
+  /**
+   * Calls the visitor for every day recorded in a range, in order, with all its projects.
+   *
+   * @param fromDay First day, inclusive.
+   * @param toDay   Last day, exclusive.
+   * @param visitor Visitor called with every day.
+   */
+  synchronized void forEachRecord(int fromDay, int toDay, RecordVisitor visitor) {
+    if (fromDay >= toDay || mLatestDay == NO_DAY) {
+      return;
+    }
+
+    String[] projects = new String[4];
+    int[] counts = new int[4];
+    int firstBlock = findFirstBlock(fromDay >> BLOCK_SHIFT);
+    int lastBlockIndex = (toDay - 1) >> BLOCK_SHIFT;
+    for (int i = firstBlock; i < mBlocks.size() && mBlocks.get(i).mIndex <= lastBlockIndex; ++i) {
+      Block block = mBlocks.get(i);
+      BlockReader reader = mReader;
+      reader.reset(block);
+      while (reader.mPosition < block.mLength) {
+        int day = (block.mIndex << BLOCK_SHIFT) + reader.readVarint();
+        int total = reader.readVarint();
+        int size = reader.readVarint();
+        if (size > projects.length) {
+          projects = new String[size];
+          counts = new int[size];
+        }
+        for (int j = 0; j < size; ++j) {
+          projects[j] = mProjects.getName(reader.readVarint());
+          counts[j] = reader.readVarint();
+        }
+        if (day >= fromDay && day < toDay) {
+          visitor.visit(day, total, projects, counts, size);
+        }
+      }
+    }
+
+    int firstRingDay = Math.max(fromDay, mLatestDay - RING_DAYS + 1);
+    int lastRingDay = Math.min(toDay - 1, mLatestDay);
+    for (int day = firstRingDay; day <= lastRingDay; ++day) {
+      int slot = day & (RING_DAYS - 1);
+      if (mRingDays[slot] != day) {
+        continue;
+      }
+      int size = mRingSizes[slot];
+      if (size > projects.length) {
+        projects = new String[size];
+        counts = new int[size];
+      }
+      for (int j = 0; j < size; ++j) {
+        projects[j] = mProjects.getName(mRingProjects[slot][j]);
+      }
+      System.arraycopy(mRingCounts[slot], 0, counts, 0, size);
+      visitor.visit(day, mRingTotals[slot], projects, counts, size);
+    }
+  }
+
+  /**
+   * Puts back a day given by forEachRecord(), replacing what was recorded on it.
+   * Days must be restored oldest first, like they're recorded.
+   *
+   * @param day      Logical day.
+   * @param total    Pomodoros finished on the day.
+   * @param projects Projects of the day.
+   * @param counts   Counter of every project.
+   * @param size     Number of projects.
+   * @return false if the day is too old to restore, nothing is changed then.
+   */
+  synchronized boolean restore(int day, int total, String[] projects, int[] counts, int size) {
+    if (mLatestDay != NO_DAY && day <= mLatestDay - RING_DAYS) {
+      return false;
+    }
+    if (mLatestDay == NO_DAY || day > mLatestDay) {
+      advanceTo(day);
+    }
+
+    int slot = day & (RING_DAYS - 1);
+    mRingDays[slot] = day;
+    mRingTotals[slot] = total;
+    if (mRingProjects[slot].length < size) {
+      mRingProjects[slot] = new int[size];
+      mRingCounts[slot] = new int[size];
+    }
+    for (int i = 0; i < size; ++i) {
+      mRingProjects[slot][i] = mProjects.intern(projects[i]);
+    }
+    System.arraycopy(counts, 0, mRingCounts[slot], 0, size);
+    mRingSizes[slot] = size;
+    return true;
+  }
+
+  /**
+   * Moves the ring forward, compressing the days that fall out of it.
+   */
+  private void advanceTo(int day) {
+    if (mLatestDay != NO_DAY) {
+      // Only the days that were in the ring, no matter how far it jumps
+      int firstEvicted = mLatestDay - RING_DAYS + 1;
+      int lastEvicted = Math.min(day - RING_DAYS, mLatestDay);
+      for (int evicted = firstEvicted; evicted <= lastEvicted; ++evicted) {
+        int slot = evicted & (RING_DAYS - 1);
+        if (mRingDays[slot] == evicted) {
+          compress(slot);
+          mRingDays[slot] = NO_DAY;
+        }
+      }
+    }
+    mLatestDay = day;
+  }
+
+  private void compress(int slot) {
+    int day = mRingDays[slot];
+    int blockIndex = day >> BLOCK_SHIFT;
+    Block block = mBlocks.isEmpty() ? null : mBlocks.get(mBlocks.size() - 1);
+    if (block == null || block.mIndex != blockIndex) {
+      block = new Block(blockIndex);
+      mBlocks.add(block);
+    }
+    int size = mRingSizes[slot];
+    block.writeVarint(day & (BLOCK_DAYS - 1));
+    block.writeVarint(mRingTotals[slot]);
+    block.writeVarint(size);
+    for (int i = 0; i < size; ++i) {
+      block.writeVarint(mRingProjects[slot][i]);
+      block.writeVarint(mRingCounts[slot][i]);
+    }
+  }
+
+  /**
+   * Visits the days of a range, with their total or, if a project is given, with the counter of that project (days
+   * without it are skipped).
+   */
+  private void scan(int fromDay, int toDay, int projectId, DayVisitor visitor) {
+    if (fromDay >= toDay || mLatestDay == NO_DAY) {
+      return;
+    }
+
+    // Compressed days first, they're all older
+    int firstBlock = findFirstBlock(fromDay >> BLOCK_SHIFT);
+    int lastBlockIndex = (toDay - 1) >> BLOCK_SHIFT;
+    for (int i = firstBlock; i < mBlocks.size() && mBlocks.get(i).mIndex <= lastBlockIndex; ++i) {
+      Block block = mBlocks.get(i);
+      BlockReader reader = mReader;
+      reader.reset(block);
+      while (reader.mPosition < block.mLength) {
+        int day = (block.mIndex << BLOCK_SHIFT) + reader.readVarint();
+        int total = reader.readVarint();
+        int size = reader.readVarint();
+        int count = projectId < 0 ? total : 0;
+        for (int j = 0; j < size; ++j) {
+          int id = reader.readVarint();
+          int projectCount = reader.readVarint();
+          if (id == projectId) {
+            count = projectCount;
+          }
+        }
+        if (day >= fromDay && day < toDay && count > 0) {
+          visitor.visit(day, count);
+        }
+      }
+    }
+
+    int firstRingDay = Math.max(fromDay, mLatestDay - RING_DAYS + 1);
+    int lastRingDay = Math.min(toDay - 1, mLatestDay);
+    for (int day = firstRingDay; day <= lastRingDay; ++day) {
+      int slot = day & (RING_DAYS - 1);
+      if (mRingDays[slot] != day) {
+        continue;
+      }
+      int count = projectId < 0 ? mRingTotals[slot] : getRingCount(slot, projectId);
+      if (count > 0) {
+        visitor.visit(day, count);
+      }
+    }
+  }
+
+  private int getRingCount(int slot, int projectId) {
+    int[] projects = mRingProjects[slot];
+    for (int i = 0; i < mRingSizes[slot]; ++i) {
+      if (projects[i] == projectId) {
+        return mRingCounts[slot][i];
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Finds the first block with an index not smaller than the given one.
+   */
+  private int findFirstBlock(int blockIndex) {
+    int low = 0;
+    int high = mBlocks.size();
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (mBlocks.get(middle).mIndex < blockIndex) {
+        low = middle + 1;
+      }
+      else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+}
@@ -0,0 +1,482 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary file with the Stats and their StatsHistory, replacing the string sets in the preferences.
+ * <p/>
+ * The file is a header followed by records. The first records have all the stats and every day of the history, and
+ * saves only append records with what changed since, so a save is proportional to the number of projects and days
+ * that changed. When the appended records are bigger than the full ones the file is compacted, rewriting it with
+ * only full records.
+ * <p/>
+ * Every record has a checksum, a record that was cut short (e.g. the app was killed while appending) or doesn't match
+ * its checksum ends the file: loading keeps everything before it and the next save rewrites the whole file.
+ * <p/>
+ * A file that can't be read at all (not a snapshot, or from another version) is moved aside to the same name with
+ * ".bad" appended, so the saves that come after don't overwrite it. If it can't be moved, nothing is saved.
+ * <p/>
+ * File layout:
+ * magic (int) - MAGIC
+ * version (byte) - VERSION, files of other versions aren't read
+ * records:
+ * type (byte) - RECORD_FULL, RECORD_COUNTERS, RECORD_PROJECT or RECORD_DAY
+ * length (varint) - of the payload, in bytes
+ * payload
+ * checksum (int) - CRC32 of the type, length and payload
+ * <p/>
+ * Payloads, all numbers are unsigned varints:
+ * RECORD_FULL: finishedToday, allTime, totalDays, number of projects and then each project
+ * RECORD_COUNTERS: finishedToday, allTime, totalDays
+ * RECORD_PROJECT: a project, added if it's new
+ * RECORD_DAY: day, total, number of projects and then each project, replacing that day of the history
+ * A project is the length of its name in bytes, the name in UTF-8 and its counter.
+ */
+final class StatsSnapshot {
+  static final int MAGIC   = 0x504f4d53;
+  static final int VERSION = 1;
+
+  private static final byte RECORD_FULL     = 1;
+  private static final byte RECORD_COUNTERS = 2;
+  private static final byte RECORD_PROJECT  = 3;
+  private static final byte RECORD_DAY      = 4;
+
+  private static final int     HEADER_SIZE = 5;
+  // Compacts when the file is over twice the size of the full record, plus some slack for small files
+  private static final int     SLACK       = 4096;
+  private static final Charset UTF_8       = Charset.forName("UTF-8");
+
+  private final File mFile;
+  // Size of the file when it was last written with a full record, -1 if it needs to be rewritten
+  private long       mFullLength = -1;
+  private long       mLength     = -1;
+  // An unreadable file that couldn't be moved aside, it must not be overwritten
+  private boolean    mIsBlocked  = false;
+
+  /**
+   * Constructor.
+   *
+   * @param file File with the stats, it doesn't need to exist.
+   */
+  StatsSnapshot(File file) {
+    mFile = file;
+  }
+
+  /**
+   * Reads the stats from the file, memory mapping it.
+   *
+   * @param history Empty history where the days are restored.
+   * @return The stats, or null if there's no file.
+   * @throws IOException if the file can't be read or isn't a stats file, it's moved aside then.
+   */
+  synchronized Stats load(StatsHistory history) throws IOException {
+    if (!mFile.exists()) {
+      return null;
+    }
+    try {
+      return map(history);
+    }
+    catch (IOException e) {
+      moveAside();
+      throw e;
+    }
+  }
+
+  private Stats map(StatsHistory history) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(mFile, "r");
+    ByteBuffer buffer;
+    try {
+      // The mapping stays valid after closing the file
+      buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+    }
+    finally {
+      randomAccessFile.close();
+    }
+    int[] fullLength = new int[1];
+    Stats stats = read(buffer, history, fullLength);
+    mLength = buffer.limit();
+    // Anything after the last good record is dropped by rewriting the file
+    mFullLength = buffer.hasRemaining() ? -1 : fullLength[0];
+    return stats;
+  }
+
+  /**
+   * Moves the file out of the way of the next save, replacing the one moved aside before if any.
+   */
+  private void moveAside() {
+    File bad = new File(mFile.getPath() + ".bad");
+    bad.delete();
+    mIsBlocked = !mFile.renameTo(bad);
+    mLength = -1;
+    mFullLength = -1;
+  }
+
+  /**
+   * Reads the stats, applying every record in order until the end or the first damaged one.
+   *
+   * @param buffer  Buffer with a whole file, it's left after the last good record.
+   * @param history Empty history where the days are restored.
+   * @return The stats.
+   * @throws IOException if it isn't a stats file or it's from another version.
+   */
+  static Stats read(ByteBuffer buffer, StatsHistory history) throws IOException {
+    return read(buffer, history, new int[1]);
+  }
+
+  /**
+   * Same as read(ByteBuffer, StatsHistory), also giving how long the file would be with only the full records.
+   */
+  private static Stats read(ByteBuffer buffer, StatsHistory history, int[] fullLength) throws IOException {
+    if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+      throw new IOException("Not a stats snapshot");
+    }
+    int version = buffer.get();
+    if (version != VERSION) {
+      throw new IOException("Unsupported stats snapshot version: " + version);
+    }
+
+    Stats stats = new Stats();
+    int good = buffer.position();
+    fullLength[0] = good;
+    CRC32 crc = new CRC32();
+    byte[] record = new byte[256];
+    while (buffer.hasRemaining()) {
+      int start = buffer.position();
+      ByteBuffer payload;
+      try {
+        buffer.get();
+        int length = readVarint(buffer);
+        int headerLength = buffer.position() - start;
+        if (length < 0 || buffer.remaining() < length + 4) {
+          break;
+        }
+        if (record.length < headerLength + length) {
+          record = new byte[Math.max(record.length * 2, headerLength + length)];
+        }
+        buffer.position(start);
+        buffer.get(record, 0, headerLength + length);
+        crc.reset();
+        crc.update(record, 0, headerLength + length);
+        if ((int) crc.getValue() != buffer.getInt()) {
+          break;
+        }
+        payload = ByteBuffer.wrap(record, headerLength, length);
+      }
+      catch (BufferUnderflowException e) {
+        break;
+      }
+
+      Stats next = apply(stats, history, record[0], payload);
+      if (next == null) {
+        break;
+      }
+      stats = next;
+      // The days right after the full record were written with it (or appended right after, close enough)
+      if (record[0] == RECORD_FULL || (record[0] == RECORD_DAY && fullLength[0] == start)) {
+        fullLength[0] = buffer.position();
+      }
+      good = buffer.position();
+    }
+    buffer.position(good);
+    return stats;
+  }
+
+  /**
+   * Writes all the stats to a new file that replaces the current one, so the file is never left half written.
+   *
+   * @param stats   Stats to write.
+   * @param history History to write, every day of it.
+   * @throws IOException if the file can't be written, or there's an unreadable file that couldn't be moved aside.
+   */
+  synchronized void writeFull(Stats stats, StatsHistory history) throws IOException {
+    if (mIsBlocked) {
+      throw new IOException("Not overwriting the unreadable " + mFile);
+    }
+    Writer writer = new Writer();
+    writer.writeHeader();
+    writer.writeFull(stats);
+    writer.writeDays(history, Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+    File temp = new File(mFile.getPath() + ".tmp");
+    FileOutputStream output = new FileOutputStream(temp);
+    try {
+      output.write(writer.mData, 0, writer.mLength);
+      output.getFD().sync();
+    }
+    finally {
+      output.close();
+    }
+    if (!temp.renameTo(mFile)) {
+      throw new IOException("Can't replace " + mFile);
+    }
+    mLength = writer.mLength;
+    mFullLength = writer.mLength;
+  }
+
+  /**
+   * Appends what changed and syncs it to disk, compacting the file instead when it grew too much.
+   *
+   * @param stats           Stats to write.
+   * @param countersChanged true if the counters that aren't per project changed.
+   * @param projects        Projects that changed.
+   * @param history         History to write.
+   * @param days            Days of the history that changed.
+   * @throws IOException if the file can't be written.
+   */
+  synchronized void append(Stats stats, boolean countersChanged, Collection<String> projects, StatsHistory history,
+                           Collection<Integer> days) throws IOException {
+    if (needsFullWrite()) {
+      writeFull(stats, history);
+      return;
+    }
+
+    Writer writer = new Writer();
+    if (countersChanged) {
+      writer.writeCounters(stats);
+    }
+    for (String project : projects) {
+      writer.writeProject(project, stats.getProjectCount(project));
+    }
+    for (int day : days) {
+      writer.writeDays(history, day, day + 1);
+    }
+    if (writer.mLength == 0) {
+      return;
+    }
+    FileOutputStream output = new FileOutputStream(mFile, true);
+    try {
+      output.write(writer.mData, 0, writer.mLength);
+      output.getFD().sync();
+    }
+    finally {
+      output.close();
+    }
+    mLength += writer.mLength;
+  }
+
+  /**
+   * @return true if the next save has to rewrite the whole file.
+   */
+  synchronized boolean needsFullWrite() {
+    return mFullLength < 0 || !mFile.exists() || mLength > mFullLength * 2 + SLACK;
+  }
+
+  /**
+   * Encodes the stats as a whole file with a single full record, without a history.
+   *
+   * @param stats Stats to encode.
+   * @return The file contents.
+   */
+  static byte[] encode(Stats stats) {
+    Writer writer = new Writer();
+    writer.writeHeader();
+    writer.writeFull(stats);
+    return Arrays.copyOf(writer.mData, writer.mLength);
+  }
+
+  /**
+   * Applies a record to the stats.
+   *
+   * @return The new stats, or null if the record isn't valid.
+   */
+  private static Stats apply(Stats stats, StatsHistory history, byte type, ByteBuffer payload) {
+    try {
+      switch (type) {
+        case RECORD_FULL: {
+          int finishedToday = readVarint(payload);
+          int allTime = readVarint(payload);
+          int totalDays = readVarint(payload);
+          int projectCount = readVarint(payload);
+          ProjectCounters.Builder builder = new ProjectCounters.Builder();
+          for (int i = 0; i < projectCount; ++i) {
+            String project = readString(payload);
+            builder.add(project, readVarint(payload));
+          }
+          return new Stats(finishedToday, allTime, totalDays, builder.build());
+        }
+        case RECORD_COUNTERS:
+          return new Stats(readVarint(payload), readVarint(payload), readVarint(payload),
+                           stats.getProjectCounters());
+        case RECORD_PROJECT: {
+          String project = readString(payload);
+          return new Stats(stats.finishedToday, stats.allTime, stats.totalDays,
+                           stats.getProjectCounters().put(project, readVarint(payload)));
+        }
+        case RECORD_DAY: {
+          int day = readVarint(payload);
+          int total = readVarint(payload);
+          int size = readVarint(payload);
+          if (size < 0 || size > payload.remaining()) {
+            return null;
+          }
+          String[] projects = new String[size];
+          int[] counts = new int[size];
+          for (int i = 0; i < size; ++i) {
+            projects[i] = readString(payload);
+            counts[i] = readVarint(payload);
+          }
+          // Skipped if it's too old for the history, only possible if the clock went back a lot
+          history.restore(day, total, projects, counts, size);
+          return stats;
+        }
+        default:
+          return null;
+      }
+    }
+    catch (BufferUnderflowException e) {
+      return null;
+    }
+    catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static int readVarint(ByteBuffer buffer) {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      byte b = buffer.get();
+      value |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Varint too long");
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = readVarint(buffer);
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IllegalArgumentException("Invalid name length: " + length);
+    }
+    String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF_8);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+
+  /**
+   * Growable byte array the records are encoded into before being written in one go.
+   */
+  private static final class Writer {
+    private final CRC32  mCrc     = new CRC32();
+    private       byte[] mData    = new byte[256];
+    private       int    mLength  = 0;
+    // Payload of the record being written, it's only known how long it is at the end
+    private       byte[] mPayload = new byte[256];
+    private       int    mPayloadLength;
+
+    void writeHeader() {
+      ensure(HEADER_SIZE);
+      mData[mLength++] = (byte) (MAGIC >>> 24);
+      mData[mLength++] = (byte) (MAGIC >>> 16);
+      mData[mLength++] = (byte) (MAGIC >>> 8);
+      mData[mLength++] = (byte) MAGIC;
+      mData[mLength++] = (byte) VERSION;
+    }
+
+    void writeFull(Stats stats) {
+      mPayloadLength = 0;
+      putVarint(stats.finishedToday);
+      putVarint(stats.allTime);
+      putVarint(stats.totalDays);
+      putVarint(stats.getProjectCounters().size());
+      stats.forEachProject(new Stats.ProjectVisitor() {
+        @Override
+        public void visit(String project, int count) {
+          putProject(project, count);
+        }
+      });
+      endRecord(RECORD_FULL);
+    }
+
+    void writeCounters(Stats stats) {
+      mPayloadLength = 0;
+      putVarint(stats.finishedToday);
+      putVarint(stats.allTime);
+      putVarint(stats.totalDays);
+      endRecord(RECORD_COUNTERS);
+    }
+
+    void writeProject(String project, int count) {
+      mPayloadLength = 0;
+      putProject(project, count);
+      endRecord(RECORD_PROJECT);
+    }
+
+    void writeDays(StatsHistory history, int fromDay, int toDay) {
+      history.forEachRecord(fromDay, toDay, new StatsHistory.RecordVisitor() {
+        @Override
+        public void visit(int day, int total, String[] projects, int[] counts, int size) {
+          mPayloadLength = 0;
+          putVarint(day);
+          putVarint(total);
+          putVarint(size);
+          for (int i = 0; i < size; ++i) {
+            putProject(projects[i], counts[i]);
+          }
+          endRecord(RECORD_DAY);
+        }
+      });
+    }
+
+    private void putProject(String project, int count) {
+      byte[] name = project.getBytes(UTF_8);
+      putVarint(name.length);
+      ensurePayload(name.length);
+      System.arraycopy(name, 0, mPayload, mPayloadLength, name.length);
+      mPayloadLength += name.length;
+      putVarint(count);
+    }
+
+    private void putVarint(int value) {
+      ensurePayload(5);
+      mPayloadLength = writeVarint(mPayload, mPayloadLength, value);
+    }
+
+    private void endRecord(byte type) {
+      ensure(1 + 5 + mPayloadLength + 4);
+      int start = mLength;
+      mData[mLength++] = type;
+      mLength = writeVarint(mData, mLength, mPayloadLength);
+      System.arraycopy(mPayload, 0, mData, mLength, mPayloadLength);
+      mLength += mPayloadLength;
+      mCrc.reset();
+      mCrc.update(mData, start, mLength - start);
+      int checksum = (int) mCrc.getValue();
+      mData[mLength++] = (byte) (checksum >>> 24);
+      mData[mLength++] = (byte) (checksum >>> 16);
+      mData[mLength++] = (byte) (checksum >>> 8);
+      mData[mLength++] = (byte) checksum;
+    }
+
+    private void ensure(int extra) {
+      if (mLength + extra > mData.length) {
+        mData = Arrays.copyOf(mData, Math.max(mData.length * 2, mLength + extra));
+      }
+    }
+
+    private void ensurePayload(int extra) {
+      if (mPayloadLength + extra > mPayload.length) {
+        mPayload = Arrays.copyOf(mPayload, Math.max(mPayload.length * 2, mPayloadLength + extra));
+      }
+    }
+
+    private static int writeVarint(byte[] data, int offset, int value) {
+      while ((value & ~0x7f) != 0) {
+        data[offset++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      data[offset++] = (byte) value;
+      return offset;
+    }
+  }
+}
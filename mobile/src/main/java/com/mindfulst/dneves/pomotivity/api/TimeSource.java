@@ -0,0 +1,38 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+/**
+ * Clock used by the PomodoroApi, for both the phase deadlines and the wall clock (e.g. to know when a day ends).
+ * <p/>
+ * Use SYSTEM on devices. Tests and simulations can use a VirtualTimeScheduler, which is also a TimeSource, to move
+ * the clock and run the timer without waiting.
+ */
+public interface TimeSource {
+  /**
+   * The clocks of the system.
+   */
+  public static final TimeSource SYSTEM = new TimeSource() {
+    @Override
+    public long nanoTime() {
+      return System.nanoTime();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+      return System.currentTimeMillis();
+    }
+  };
+
+  /**
+   * Monotonic clock, only meaningful to measure elapsed time, like System.nanoTime().
+   *
+   * @return Current time in nanoseconds.
+   */
+  public long nanoTime();
+
+  /**
+   * Wall clock, like System.currentTimeMillis().
+   *
+   * @return Milliseconds since the epoch.
+   */
+  public long currentTimeMillis();
+}
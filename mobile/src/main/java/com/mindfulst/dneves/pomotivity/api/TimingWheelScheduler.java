@@ -0,0 +1,413 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import android.util.Log;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * PomodoroScheduler meant to be shared by lots of PomodoroApi instances.
+ * <p/>
+ * Timers are kept in a hierarchical timing wheel: level 0 has one slot per tick, each level above has slots that
+ * are WHEEL_SIZE times longer. Timers far in the future live in the upper levels and cascade down as their slot
+ * comes up, so scheduling and cancelling are O(1) no matter how many timers are waiting.
+ * <p/>
+ * A single wheel thread owns the wheel. Other threads only push timers into lock-free queues, so they never
+ * contend with it. Expired tasks are handed over to a small pool of workers (or run on the wheel thread if there
+ * are none), so a slow task doesn't delay the other timers.
+ * <p/>
+ * Timers never fire early, but they can fire up to one tick late.
+ */
+public class TimingWheelScheduler implements PomodoroScheduler {
+  private static final String DEBUG_TAG = "pomowheel";
+
+  public static final long DEFAULT_TICK_MILLIS = 10;
+
+  private static final int WHEEL_BITS = 8;
+  private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+  private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+  // With the default 10ms tick this covers more than a year before a timer has to sit in the top level for a while
+  private static final int LEVELS     = 4;
+
+  private static final int STATE_WAITING   = 0;
+  private static final int STATE_CANCELLED = 1;
+  private static final int STATE_EXPIRED   = 2;
+
+  private static final AtomicIntegerFieldUpdater<Timer> STATE_UPDATER =
+      AtomicIntegerFieldUpdater.newUpdater(Timer.class, "mState");
+
+  /**
+   * A task in the wheel, also its own ScheduledTask handle.
+   * Links and bucket are only touched by the wheel thread.
+   */
+  private final class Timer implements ScheduledTask, Runnable {
+    private final Runnable mTask;
+    private final long     mPeriod;
+    private       long     mDeadline;
+
+    // Not private so the field updater can reach it
+    volatile int mState = STATE_WAITING;
+
+    private Bucket mBucket;
+    private Timer  mPrevious;
+    private Timer  mNext;
+
+    /**
+     * Constructor.
+     *
+     * @param task     Task to run.
+     * @param deadline Nanoseconds since the wheel started.
+     * @param period   Nanoseconds between runs, 0 if it only runs once.
+     */
+    private Timer(Runnable task, long deadline, long period) {
+      mTask = task;
+      mDeadline = deadline;
+      mPeriod = period;
+    }
+
+    @Override
+    public boolean cancel() {
+      if (!STATE_UPDATER.compareAndSet(this, STATE_WAITING, STATE_CANCELLED)) {
+        return false;
+      }
+      mTimerCount.decrementAndGet();
+      // Let the wheel thread unlink it, otherwise we'd have to lock the bucket
+      mCancelledTimers.add(this);
+      return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return mState == STATE_CANCELLED;
+    }
+
+    @Override
+    public void run() {
+      try {
+        mTask.run();
+      }
+      catch (Throwable e) {
+        Log.e(DEBUG_TAG, "Exception thrown by a scheduled task: " + e.toString());
+      }
+
+      if (mPeriod > 0 && mState == STATE_WAITING && !mIsShutdown) {
+        mDeadline += mPeriod;
+        addPending(this);
+      }
+    }
+  }
+
+  /**
+   * Doubly linked list of timers in a slot.
+   */
+  private static final class Bucket {
+    private Timer mHead;
+    private Timer mTail;
+
+    private void add(Timer timer) {
+      timer.mBucket = this;
+      timer.mPrevious = mTail;
+      timer.mNext = null;
+      if (mTail == null) {
+        mHead = timer;
+      }
+      else {
+        mTail.mNext = timer;
+      }
+      mTail = timer;
+    }
+
+    private void remove(Timer timer) {
+      if (timer.mPrevious == null) {
+        mHead = timer.mNext;
+      }
+      else {
+        timer.mPrevious.mNext = timer.mNext;
+      }
+      if (timer.mNext == null) {
+        mTail = timer.mPrevious;
+      }
+      else {
+        timer.mNext.mPrevious = timer.mPrevious;
+      }
+      timer.mBucket = null;
+      timer.mPrevious = null;
+      timer.mNext = null;
+    }
+
+    /**
+     * Empties the bucket.
+     *
+     * @return The first timer of the list that was in the bucket.
+     */
+    private Timer detach() {
+      Timer head = mHead;
+      for (Timer timer = head; timer != null; timer = timer.mNext) {
+        timer.mBucket = null;
+      }
+      mHead = null;
+      mTail = null;
+      return head;
+    }
+  }
+
+  private final long            mTickNanos;
+  private final long            mStartTime;
+  private final Bucket[][]      mWheel           = new Bucket[LEVELS][WHEEL_SIZE];
+  private final Queue<Timer>    mPendingTimers   = new ConcurrentLinkedQueue<Timer>();
+  private final Queue<Timer>    mCancelledTimers = new ConcurrentLinkedQueue<Timer>();
+  private final AtomicInteger   mTimerCount      = new AtomicInteger(0);
+  private final ExecutorService mWorkers;
+  private final Thread          mWheelThread;
+
+  private volatile boolean mIsShutdown = false;
+  private volatile boolean mIsIdle     = false;
+
+  // Last tick processed, only used by the wheel thread
+  private long mCurrentTick = 0;
+
+  /**
+   * Constructor with the default tick duration.
+   *
+   * @param workerThreads Number of threads running the expired tasks, 0 to run them in the wheel thread.
+   */
+  public TimingWheelScheduler(int workerThreads) {
+    this(DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, workerThreads);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param tickDuration  Resolution of the wheel. Timers can fire up to this much later than asked.
+   * @param unit          Unit of the tick duration.
+   * @param workerThreads Number of threads running the expired tasks, 0 to run them in the wheel thread.
+   */
+  public TimingWheelScheduler(long tickDuration, TimeUnit unit, int workerThreads) {
+    if (tickDuration <= 0) {
+      throw new IllegalArgumentException("Tick duration must be positive");
+    }
+    mTickNanos = unit.toNanos(tickDuration);
+
+    for (Bucket[] level : mWheel) {
+      for (int i = 0; i < level.length; ++i) {
+        level[i] = new Bucket();
+      }
+    }
+
+    ThreadFactory threadFactory = new ThreadFactory() {
+      private final AtomicInteger mThreadCount = new AtomicInteger(0);
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "pomodoro-worker-" + mThreadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    mWorkers = workerThreads > 0 ? Executors.newFixedThreadPool(workerThreads, threadFactory) : null;
+
+    mStartTime = System.nanoTime();
+    mWheelThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        runWheel();
+      }
+    }, "pomodoro-wheel");
+    mWheelThread.setDaemon(true);
+    mWheelThread.start();
+  }
+
+  @Override
+  public ScheduledTask schedule(Runnable task, long delay, TimeUnit unit) {
+    return addTimer(task, unit.toNanos(delay), 0);
+  }
+
+  @Override
+  public ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+    if (period <= 0) {
+      throw new IllegalArgumentException("Period must be positive");
+    }
+    return addTimer(task, unit.toNanos(initialDelay), unit.toNanos(period));
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    if (mWorkers == null) {
+      // Runs on the next tick
+      addTimer(task, 0, 0);
+      return;
+    }
+    if (mIsShutdown) {
+      throw new RejectedExecutionException("Scheduler was shutdown");
+    }
+    mWorkers.execute(task);
+  }
+
+  @Override
+  public void shutdown() {
+    mIsShutdown = true;
+    LockSupport.unpark(mWheelThread);
+    if (mWorkers != null) {
+      mWorkers.shutdownNow();
+    }
+  }
+
+  /**
+   * @return Number of timers waiting to run (periodic timers count until they're cancelled).
+   */
+  public int getTimerCount() {
+    return mTimerCount.get();
+  }
+
+  private Timer addTimer(Runnable task, long delayNanos, long periodNanos) {
+    if (task == null) {
+      throw new NullPointerException("Task can't be null");
+    }
+    if (mIsShutdown) {
+      throw new RejectedExecutionException("Scheduler was shutdown");
+    }
+
+    Timer timer = new Timer(task, System.nanoTime() - mStartTime + Math.max(delayNanos, 0), periodNanos);
+    mTimerCount.incrementAndGet();
+    addPending(timer);
+    return timer;
+  }
+
+  private void addPending(Timer timer) {
+    mPendingTimers.add(timer);
+    if (mIsIdle) {
+      LockSupport.unpark(mWheelThread);
+    }
+  }
+
+  private void runWheel() {
+    while (!mIsShutdown) {
+      removeCancelled();
+
+      if (mTimerCount.get() == 0 && mPendingTimers.isEmpty()) {
+        // Nothing to do, sleep until someone schedules a timer instead of waking up every tick
+        mIsIdle = true;
+        if (mPendingTimers.isEmpty() && !mIsShutdown) {
+          LockSupport.park(this);
+        }
+        mIsIdle = false;
+        // The wheel is empty, so there's nothing to process in the ticks we slept through
+        mCurrentTick = Math.max(mCurrentTick, (System.nanoTime() - mStartTime) / mTickNanos);
+        continue;
+      }
+
+      addPendingToWheel();
+
+      long targetTick = (System.nanoTime() - mStartTime) / mTickNanos;
+      while (mCurrentTick < targetTick) {
+        processTick(mCurrentTick + 1);
+      }
+
+      long nextTickTime = mStartTime + (mCurrentTick + 1) * mTickNanos;
+      long sleepTime = nextTickTime - System.nanoTime();
+      if (sleepTime > 0) {
+        LockSupport.parkNanos(this, sleepTime);
+      }
+    }
+  }
+
+  private void removeCancelled() {
+    Timer timer;
+    while ((timer = mCancelledTimers.poll()) != null) {
+      if (timer.mBucket != null) {
+        timer.mBucket.remove(timer);
+      }
+    }
+  }
+
+  private void addPendingToWheel() {
+    Timer timer;
+    while ((timer = mPendingTimers.poll()) != null) {
+      if (timer.mState == STATE_WAITING) {
+        place(timer);
+      }
+    }
+  }
+
+  /**
+   * Puts the timer in the lowest level that can hold it, or runs it if it's already due.
+   */
+  private void place(Timer timer) {
+    // Round up so we never fire before the deadline
+    long deadlineTick = (timer.mDeadline + mTickNanos - 1) / mTickNanos;
+    long remaining = deadlineTick - mCurrentTick;
+    if (remaining <= 0) {
+      expire(timer);
+      return;
+    }
+
+    int level = 0;
+    while (level < LEVELS - 1 && (remaining >>> ((level + 1) * WHEEL_BITS)) != 0) {
+      ++level;
+    }
+    // If it doesn't fit the top level it'll cascade back into the top level until it does
+    int slot = (int) ((deadlineTick >>> (level * WHEEL_BITS)) & WHEEL_MASK);
+    mWheel[level][slot].add(timer);
+  }
+
+  private void processTick(long tick) {
+    mCurrentTick = tick;
+
+    // Cascade the upper levels whose slot starts at this tick, timers due now end up being expired by place()
+    for (int level = LEVELS - 1; level > 0; --level) {
+      int levelShift = level * WHEEL_BITS;
+      if ((tick & ((1L << levelShift) - 1)) == 0) {
+        int slot = (int) ((tick >>> levelShift) & WHEEL_MASK);
+        Timer timer = mWheel[level][slot].detach();
+        while (timer != null) {
+          Timer next = timer.mNext;
+          timer.mPrevious = null;
+          timer.mNext = null;
+          place(timer);
+          timer = next;
+        }
+      }
+    }
+
+    Timer timer = mWheel[0][(int) (tick & WHEEL_MASK)].detach();
+    while (timer != null) {
+      Timer next = timer.mNext;
+      timer.mPrevious = null;
+      timer.mNext = null;
+      expire(timer);
+      timer = next;
+    }
+  }
+
+  private void expire(Timer timer) {
+    if (timer.mPeriod == 0) {
+      if (!STATE_UPDATER.compareAndSet(timer, STATE_WAITING, STATE_EXPIRED)) {
+        return;
+      }
+      mTimerCount.decrementAndGet();
+    }
+    else if (timer.mState != STATE_WAITING) {
+      return;
+    }
+
+    if (mWorkers == null) {
+      timer.run();
+      return;
+    }
+
+    try {
+      mWorkers.execute(timer);
+    }
+    catch (RejectedExecutionException e) {
+      Log.w(DEBUG_TAG, "Dropped an expired timer because the workers were shutdown");
+    }
+  }
+}
@@ -0,0 +1,221 @@
+package com.mindfulst.dneves.pomotivity.api;
+
+import android.util.Log;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PomodoroScheduler with its own clock, that only moves when told to.
+ * <p/>
+ * Nothing runs on its own: advanceBy() moves the clock forward and runs every task that became due, in deadline
+ * order, on the calling thread. Tasks due at the same time run in the order they were scheduled, so a simulation
+ * always runs the same way. As it never waits, years of pomodoros run in a fraction of a second.
+ * <p/>
+ * Give it to the PomodoroApi as both the scheduler and the time source.
+ */
+public class VirtualTimeScheduler implements PomodoroScheduler, TimeSource {
+  private static final String DEBUG_TAG = "pomovirtual";
+
+  private static final long NANOS_PER_MILLI = 1000000L;
+
+  private final class Task implements ScheduledTask, Comparable<Task> {
+    private final Runnable mTask;
+    private final long     mPeriod;
+    private       long     mDeadline;
+    private       long     mSequence;
+    private       boolean  mIsCancelled = false;
+    private       boolean  mIsDone      = false;
+
+    private Task(Runnable task, long deadline, long period) {
+      mTask = task;
+      mDeadline = deadline;
+      mPeriod = period;
+    }
+
+    @Override
+    public boolean cancel() {
+      synchronized (mQueue) {
+        if (mIsCancelled || mIsDone) {
+          return false;
+        }
+        mIsCancelled = true;
+        mQueue.remove(this);
+        return true;
+      }
+    }
+
+    @Override
+    public boolean isCancelled() {
+      synchronized (mQueue) {
+        return mIsCancelled;
+      }
+    }
+
+    @Override
+    public int compareTo(Task other) {
+      if (mDeadline != other.mDeadline) {
+        return mDeadline < other.mDeadline ? -1 : 1;
+      }
+      return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+    }
+  }
+
+  private final long                mStartTimeMillis;
+  // Also the lock of everything else here
+  private final PriorityQueue<Task> mQueue = new PriorityQueue<Task>();
+
+  private long    mNow          = 0;
+  private long    mNextSequence = 0;
+  private boolean mIsShutdown   = false;
+
+  /**
+   * Constructor, the wall clock starts at the epoch.
+   */
+  public VirtualTimeScheduler() {
+    this(0);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param startTimeMillis Wall clock time when the simulation starts, in milliseconds since the epoch.
+   */
+  public VirtualTimeScheduler(long startTimeMillis) {
+    mStartTimeMillis = startTimeMillis;
+  }
+
+  @Override
+  public long nanoTime() {
+    synchronized (mQueue) {
+      return mNow;
+    }
+  }
+
+  @Override
+  public long currentTimeMillis() {
+    synchronized (mQueue) {
+      return mStartTimeMillis + mNow / NANOS_PER_MILLI;
+    }
+  }
+
+  @Override
+  public ScheduledTask schedule(Runnable task, long delay, TimeUnit unit) {
+    return addTask(task, unit.toNanos(delay), 0);
+  }
+
+  @Override
+  public ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+    if (period <= 0) {
+      throw new IllegalArgumentException("Period must be positive");
+    }
+    return addTask(task, unit.toNanos(initialDelay), unit.toNanos(period));
+  }
+
+  /**
+   * Runs the task on the next call to advanceBy() or runPending(), without moving the clock.
+   */
+  @Override
+  public void execute(Runnable task) {
+    addTask(task, 0, 0);
+  }
+
+  @Override
+  public void shutdown() {
+    synchronized (mQueue) {
+      mIsShutdown = true;
+      mQueue.clear();
+    }
+  }
+
+  /**
+   * Runs the tasks that are due now, including the ones they schedule to run now.
+   */
+  public void runPending() {
+    advanceBy(0, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Moves the clock forward, running every task that becomes due on the way.
+   * The clock is set to the deadline of each task before it runs, so tasks see the time they were scheduled for.
+   *
+   * @param time How much to move the clock.
+   * @param unit Unit of the time.
+   */
+  public void advanceBy(long time, TimeUnit unit) {
+    if (time < 0) {
+      throw new IllegalArgumentException("Time can't go backwards");
+    }
+
+    long target;
+    synchronized (mQueue) {
+      target = mNow + unit.toNanos(time);
+    }
+    Task task;
+    while ((task = pollDue(target)) != null) {
+      try {
+        task.mTask.run();
+      }
+      catch (Throwable e) {
+        Log.e(DEBUG_TAG, "Exception thrown by a scheduled task: " + e.toString());
+      }
+      reschedule(task);
+    }
+    synchronized (mQueue) {
+      mNow = target;
+    }
+  }
+
+  /**
+   * @return Number of tasks waiting to run (periodic tasks count until they're cancelled).
+   */
+  public int getTaskCount() {
+    synchronized (mQueue) {
+      return mQueue.size();
+    }
+  }
+
+  private Task addTask(Runnable task, long delayNanos, long periodNanos) {
+    if (task == null) {
+      throw new NullPointerException("Task can't be null");
+    }
+    synchronized (mQueue) {
+      if (mIsShutdown) {
+        throw new RejectedExecutionException("Scheduler was shutdown");
+      }
+      Task scheduled = new Task(task, mNow + Math.max(delayNanos, 0), periodNanos);
+      enqueue(scheduled);
+      return scheduled;
+    }
+  }
+
+  private void enqueue(Task task) {
+    task.mSequence = mNextSequence++;
+    mQueue.add(task);
+  }
+
+  private Task pollDue(long target) {
+    synchronized (mQueue) {
+      Task task = mQueue.peek();
+      if (task == null || task.mDeadline > target) {
+        return null;
+      }
+      mQueue.poll();
+      mNow = Math.max(mNow, task.mDeadline);
+      if (task.mPeriod == 0) {
+        task.mIsDone = true;
+      }
+      return task;
+    }
+  }
+
+  private void reschedule(Task task) {
+    synchronized (mQueue) {
+      if (task.mPeriod > 0 && !task.mIsCancelled && !mIsShutdown) {
+        task.mDeadline += task.mPeriod;
+        enqueue(task);
+      }
+    }
+  }
+}